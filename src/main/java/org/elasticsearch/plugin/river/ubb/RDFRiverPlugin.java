@@ -1,11 +1,18 @@
 package org.elasticsearch.plugin.river.ubb;
 
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.plugins.AbstractPlugin;
 import org.elasticsearch.river.RiversModule;
+import org.elasticsearch.river.ubb.HarvestExecutorModule;
+import org.elasticsearch.river.ubb.HarvestExecutorService;
 import org.elasticsearch.river.ubb.RDFRiverModule;
 import org.elasticsearch.river.ubb.settings.Defaults;
 
+import java.util.Collection;
+import java.util.Collections;
+
 /**
  * @author iulia, EEA
  */
@@ -25,6 +32,22 @@ public class RDFRiverPlugin extends AbstractPlugin {
         return "Turtle RDF River Plugin";
     }
 
+    /**
+     * All rivers of a node share one harvesting executor
+     */
+    @Override
+    public Collection<Class<? extends Module>> modules() {
+        return Collections.<Class<? extends Module>>singletonList(HarvestExecutorModule.class);
+    }
+
+    /**
+     * The harvesting executor is closed with the node
+     */
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> services() {
+        return Collections.<Class<? extends LifecycleComponent>>singletonList(HarvestExecutorService.class);
+    }
+
     public void onModule(RiversModule module) {
         module.registerRiver(Defaults.EEA_SETTINGS_KEY, RDFRiverModule.class);
     }
@@ -0,0 +1,15 @@
+package org.elasticsearch.river.ubb;
+
+import org.elasticsearch.common.inject.AbstractModule;
+
+/**
+ * Binds the harvesting service which all RDF rivers of a node share. It is started and closed
+ * with the node, see {@link org.elasticsearch.plugin.river.ubb.RDFRiverPlugin#services()}.
+ */
+public class HarvestExecutorModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(HarvestExecutorService.class).asEagerSingleton();
+    }
+}
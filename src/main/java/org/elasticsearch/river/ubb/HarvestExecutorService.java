@@ -0,0 +1,46 @@
+package org.elasticsearch.river.ubb;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.river.ubb.settings.Defaults;
+import org.elasticsearch.river.ubb.support.HarvestExecutor;
+
+/**
+ * Holds the harvesting executor which all RDF rivers of a node share, and shuts its threads
+ * down when the node closes
+ */
+public class HarvestExecutorService extends AbstractLifecycleComponent<HarvestExecutorService> {
+    private final HarvestExecutor executor;
+
+    @Inject
+    public HarvestExecutorService(Settings settings) {
+        super(settings);
+        int maxConcurrentHarvests = settings.getAsInt(Defaults.MAX_CONCURRENT_HARVESTS_SETTING,
+                Math.max(1, EsExecutors.boundedNumberOfProcessors(settings) / 2));
+        this.executor = new HarvestExecutor(EsExecutors.threadName(settings, "ubbRiver[harvest]"),
+                maxConcurrentHarvests);
+    }
+
+    /**
+     * Gets the executor which runs the harvests of all rivers on this node
+     */
+    public HarvestExecutor executor() {
+        return executor;
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+        executor.close();
+    }
+}
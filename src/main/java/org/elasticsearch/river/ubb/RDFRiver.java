@@ -4,14 +4,18 @@ import org.elasticsearch.client.Client;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
-import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.env.Environment;
 import org.elasticsearch.river.*;
 import org.elasticsearch.river.ubb.settings.Defaults;
 import org.elasticsearch.river.ubb.support.ContextFactory;
+import org.elasticsearch.river.ubb.support.HarvestExecutor;
 import org.elasticsearch.river.ubb.support.Harvester;
 import org.elasticsearch.river.ubb.support.JsonFileLoader;
 
+import java.io.File;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -26,19 +30,39 @@ import java.util.Map;
 public class RDFRiver extends AbstractRiverComponent implements River {
     private static final ESLogger logger = Loggers.getLogger(RDFRiver.class);
     private volatile Harvester harvester;
-    private volatile Thread harvesterThread;
+    private final HarvestExecutor harvestExecutor;
+    private final int harvestWeight;
+    private volatile boolean closed = false;
 
     @Inject
     public RDFRiver(RiverName riverName,
                     RiverSettings settings,
                     @RiverIndexName String riverIndexName,
-                    Client client) {
+                    Client client,
+                    Environment environment,
+                    HarvestExecutorService harvestExecutorService) {
         super(riverName, settings);
+        this.harvestExecutor = harvestExecutorService.executor();
+        this.harvestWeight = XContentMapValues.nodeIntegerValue(
+                extractSettings(settings).get("harvestWeight"), Defaults.DEFAULT_HARVEST_WEIGHT);
         harvester = new Harvester();
-        harvester.client(client).riverName(riverName.name());
+        harvester.client(client).riverName(riverName.name())
+                .labelStorePath(getRiverDataPath(environment, riverName).resolve("labels"))
+                .textCachePath(getRiverDataPath(environment, riverName).resolve("text"))
+                .dumpCachePath(getRiverDataPath(environment, riverName).resolve("dumps"))
+                .fingerprintStorePath(getRiverDataPath(environment, riverName).resolve("fingerprints"));
         buildHarvester(settings);
     }
 
+    /**
+     * Gets a directory under the data path of the node where a river can keep its files
+     */
+    private static Path getRiverDataPath(Environment environment, RiverName riverName) {
+        File[] dataFiles = environment.dataFiles();
+        File base = dataFiles != null && dataFiles.length > 0 ? dataFiles[0] : environment.workFile();
+        return base.toPath().resolve(Defaults.RIVER_PLUGIN_NAME).resolve(riverName.name());
+    }
+
     /**
      * Type casting accessors for river settings
      **/
@@ -114,6 +138,75 @@ public class RDFRiver extends AbstractRiverComponent implements River {
                 .rdfNumberOfBulkActions(XContentMapValues.nodeLongValue(
                         rdfSettings.get("bulkActions"),
                         Defaults.DEFAULT_NUMBER_OF_BULK_ACTIONS))
+                .rdfBulkSize(XContentMapValues.nodeStringValue(
+                        rdfSettings.get("bulkSize"),
+                        Defaults.DEFAULT_BULK_SIZE))
+                .rdfBulkConcurrentRequests(XContentMapValues.nodeIntegerValue(
+                        rdfSettings.get("bulkConcurrentRequests"),
+                        Defaults.DEFAULT_BULK_CONCURRENT_REQUESTS))
+                .rdfBulkFlushInterval(XContentMapValues.nodeStringValue(
+                        rdfSettings.get("bulkFlushInterval"),
+                        Defaults.DEFAULT_BULK_FLUSH_INTERVAL))
+                .rdfAdaptiveBulk(XContentMapValues.nodeBooleanValue(
+                        rdfSettings.get("adaptiveBulk"),
+                        Defaults.DEFAULT_ADAPTIVE_BULK),
+                        XContentMapValues.nodeLongValue(
+                                rdfSettings.get("minBulkActions"),
+                                Defaults.DEFAULT_MIN_BULK_ACTIONS),
+                        XContentMapValues.nodeLongValue(
+                                rdfSettings.get("maxBulkActions"),
+                                Defaults.DEFAULT_MAX_BULK_ACTIONS),
+                        XContentMapValues.nodeIntegerValue(
+                                rdfSettings.get("maxBulkConcurrentRequests"),
+                                Defaults.DEFAULT_MAX_BULK_CONCURRENT_REQUESTS),
+                        XContentMapValues.nodeStringValue(
+                                rdfSettings.get("bulkTargetLatency"),
+                                Defaults.DEFAULT_BULK_TARGET_LATENCY))
+                .rdfBulkMaxRetries(XContentMapValues.nodeIntegerValue(
+                        rdfSettings.get("bulkMaxRetries"),
+                        Defaults.DEFAULT_NUMBER_OF_RETRY))
+                .rdfQueryPaging(XContentMapValues.nodeStringValue(
+                        rdfSettings.get("queryPaging"),
+                        Defaults.DEFAULT_QUERY_PAGING))
+                .rdfPageSize(XContentMapValues.nodeLongValue(
+                        rdfSettings.get("pageSize"),
+                        Defaults.DEFAULT_QUERY_LIMIT))
+                .harvestThreads(XContentMapValues.nodeIntegerValue(
+                        rdfSettings.get("harvestThreads"),
+                        Defaults.DEFAULT_HARVEST_THREADS))
+                .maxConcurrentQueriesPerEndpoint(XContentMapValues.nodeIntegerValue(
+                        rdfSettings.get("maxConcurrentQueriesPerEndpoint"),
+                        Defaults.DEFAULT_MAX_CONCURRENT_QUERIES_PER_ENDPOINT))
+                .labelCacheSize(XContentMapValues.nodeLongValue(
+                        rdfSettings.get("labelCacheSize"),
+                        Defaults.DEFAULT_LABEL_CACHE_SIZE))
+                .labelBatchSize(XContentMapValues.nodeIntegerValue(
+                        rdfSettings.get("labelBatchSize"),
+                        Defaults.DEFAULT_LABEL_BATCH_SIZE))
+                .preloadLabels(XContentMapValues.nodeBooleanValue(
+                        rdfSettings.get("preloadLabels"),
+                        Defaults.DEFAULT_PRELOAD_LABELS))
+                .persistentLabels(XContentMapValues.nodeBooleanValue(
+                        rdfSettings.get("persistentLabels"),
+                        Defaults.DEFAULT_PERSISTENT_LABELS),
+                        XContentMapValues.nodeStringValue(
+                                rdfSettings.get("persistentLabelsTTL"),
+                                Defaults.DEFAULT_PERSISTENT_LABELS_TTL))
+                .tdbPartitions(XContentMapValues.nodeIntegerValue(
+                        rdfSettings.get("tdbPartitions"),
+                        Defaults.DEFAULT_TDB_PARTITIONS))
+                .pipeline(XContentMapValues.nodeIntegerValue(
+                        rdfSettings.get("pipelineGroupThreads"),
+                        Defaults.DEFAULT_PIPELINE_GROUP_THREADS),
+                        XContentMapValues.nodeIntegerValue(
+                                rdfSettings.get("pipelineBuildThreads"),
+                                Defaults.DEFAULT_PIPELINE_BUILD_THREADS),
+                        XContentMapValues.nodeIntegerValue(
+                                rdfSettings.get("pipelineIndexThreads"),
+                                Defaults.DEFAULT_PIPELINE_INDEX_THREADS),
+                        XContentMapValues.nodeIntegerValue(
+                                rdfSettings.get("pipelineQueueSize"),
+                                Defaults.DEFAULT_PIPELINE_QUEUE_SIZE))
                 .rdfUpdateDocuments(XContentMapValues.nodeBooleanValue(
                         rdfSettings.get("updateDocuments"),
                         Defaults.DEFAULT_UPDATE_DOCUMENTS))
@@ -142,6 +235,27 @@ public class RDFRiver extends AbstractRiverComponent implements River {
                         rdfSettings.get("deleteRiverAfterCreation"), false))
                 .generateSortLabel(XContentMapValues.nodeBooleanValue(
                         rdfSettings.get("generateSortLabel"), false))
+                .rdfStreamDumps(XContentMapValues.nodeBooleanValue(
+                        rdfSettings.get("streamDumps"),
+                        Defaults.DEFAULT_STREAM_DUMPS))
+                .rdfDumpFormat(XContentMapValues.nodeStringValue(
+                        rdfSettings.get("dumpFormat"),
+                        Defaults.DEFAULT_DUMP_FORMAT))
+                .cacheDumps(XContentMapValues.nodeBooleanValue(
+                        rdfSettings.get("cacheDumps"),
+                        Defaults.DEFAULT_CACHE_DUMPS))
+                .skipUnchanged(XContentMapValues.nodeBooleanValue(
+                        rdfSettings.get("skipUnchanged"),
+                        Defaults.DEFAULT_SKIP_UNCHANGED))
+                .checkpoints(XContentMapValues.nodeBooleanValue(
+                        rdfSettings.get("checkpoints"),
+                        Defaults.DEFAULT_CHECKPOINTS),
+                        XContentMapValues.nodeStringValue(
+                                rdfSettings.get("checkpointInterval"),
+                                Defaults.DEFAULT_CHECKPOINT_INTERVAL))
+                .dumpParseThreads(XContentMapValues.nodeIntegerValue(
+                        rdfSettings.get("dumpParseThreads"),
+                        Runtime.getRuntime().availableProcessors()))
                 .maxSuggestInputLength(XContentMapValues.nodeIntegerValue(
                         rdfSettings.get("maxSuggestInputLength"),
                         Defaults.DEFAULT_MAX_SUGGEST_INPUT_LENGTH))
@@ -160,7 +274,25 @@ public class RDFRiver extends AbstractRiverComponent implements River {
                         Defaults.DEFAULT_SYNC_TIME_PROP))
                 .rdfSyncOldData(XContentMapValues.nodeBooleanValue(
                         rdfSettings.get("syncOldData"),
-                        Defaults.DEFAULT_SYNC_OLD_DATA));
+                        Defaults.DEFAULT_SYNC_OLD_DATA))
+                .rdfSyncBatches(XContentMapValues.nodeIntegerValue(
+                        rdfSettings.get("syncBatchSize"),
+                        Defaults.DEFAULT_SYNC_BATCH_SIZE),
+                        XContentMapValues.nodeIntegerValue(
+                                rdfSettings.get("maxSyncBatchSize"),
+                                Defaults.DEFAULT_MAX_SYNC_BATCH_SIZE),
+                        XContentMapValues.nodeIntegerValue(
+                                rdfSettings.get("syncConcurrency"),
+                                Defaults.DEFAULT_SYNC_CONCURRENCY),
+                        XContentMapValues.nodeStringValue(
+                                rdfSettings.get("syncTargetLatency"),
+                                Defaults.DEFAULT_SYNC_TARGET_LATENCY))
+                .syncSchedule(XContentMapValues.nodeStringValue(
+                        rdfSettings.get("syncInterval"),
+                        Defaults.DEFAULT_SYNC_INTERVAL),
+                        XContentMapValues.nodeStringValue(
+                                rdfSettings.get("syncJitter"),
+                                Defaults.DEFAULT_SYNC_JITTER));
 
         if (rdfSettings.containsKey("uriDescription")) {
             harvester.rdfURIDescription(getStrListFromSettings(rdfSettings, "uriDescription"));
@@ -200,10 +332,28 @@ public class RDFRiver extends AbstractRiverComponent implements River {
         }
         if (rdfSettings.containsKey("indexTextFrom")) {
             harvester.textField(XContentMapValues.nodeStringValue(rdfSettings.get("indexTextFrom"), ""));
+            harvester.textFetch(XContentMapValues.nodeIntegerValue(
+                    rdfSettings.get("textFetchThreads"), Defaults.DEFAULT_TEXT_FETCH_THREADS),
+                    XContentMapValues.nodeIntegerValue(rdfSettings.get("textFetchConnectionsPerHost"),
+                            Defaults.DEFAULT_TEXT_FETCH_CONNECTIONS_PER_HOST),
+                    XContentMapValues.nodeIntegerValue(rdfSettings.get("textFetchMaxRetries"),
+                            Defaults.DEFAULT_NUMBER_OF_RETRY),
+                    XContentMapValues.nodeStringValue(rdfSettings.get("textFetchTimeout"),
+                            Defaults.DEFAULT_TEXT_FETCH_TIMEOUT))
+                    .textContentCache(XContentMapValues.nodeBooleanValue(
+                            rdfSettings.get("textContentCache"), Defaults.DEFAULT_TEXT_CONTENT_CACHE))
+                    .textContentCacheSize(XContentMapValues.nodeLongValue(
+                            rdfSettings.get("textContentCacheSize"), Defaults.DEFAULT_TEXT_CONTENT_CACHE_SIZE));
         }
         if (rdfSettings.containsKey("embedResourceUsingProperty")) {
             harvester.embedResource(XContentMapValues.nodeStringValue(
                     rdfSettings.get("embedResourceUsingProperty"), ""));
+            harvester.embedDepth(XContentMapValues.nodeIntegerValue(
+                    rdfSettings.get("embedDepth"), Defaults.DEFAULT_EMBED_DEPTH))
+                    .embedBatchSize(XContentMapValues.nodeIntegerValue(
+                            rdfSettings.get("embedBatchSize"), Defaults.DEFAULT_EMBED_BATCH_SIZE))
+                    .embedCacheSize(XContentMapValues.nodeLongValue(
+                            rdfSettings.get("embedCacheSize"), Defaults.DEFAULT_EMBED_CACHE_SIZE));
         }
         if (settings.settings().containsKey("index")) {
             Map<String, Object> indexSettings = extractSettings(settings, "index");
@@ -220,18 +370,33 @@ public class RDFRiver extends AbstractRiverComponent implements River {
     public void start() {
         harvester.log("Starting river [" + riverName.name() + "]");
         harvester.timeStarted(System.currentTimeMillis());
-        harvesterThread = EsExecutors.daemonThreadFactory(
-                settings.globalSettings(), "ubbRiver[" + riverName().name() + "]")
-                .newThread(harvester);
-        harvesterThread.start();
+        //Runs wait for their turn on the harvesting executor which all rivers of the node share
+        harvestExecutor.submit(riverName.name(), harvestWeight, this::runHarvester);
+    }
+
+    /**
+     * Runs the harvester and, if the river runs on a schedule, queues its next run once this
+     * one has ended
+     */
+    private void runHarvester() {
+        try {
+            harvester.run();
+        } finally {
+            if (harvester.isScheduled() && !closed) {
+                long delay = harvester.getNextRunDelay();
+                logger.info("Next run of river [{}] in {}", riverName.name(), TimeValue.timeValueMillis(delay));
+                harvestExecutor.schedule(riverName.name(), harvestWeight, this::runHarvester, delay);
+            }
+        }
     }
 
     @Override
     public void close() {
         harvester.log("Closing river [" + riverName.name() + "]");
+        closed = true;
         harvester.setClose(true);
-        if (harvesterThread != null && !harvesterThread.isInterrupted()) {
-            harvesterThread.interrupt();
-        }
+        //Drops the waiting and scheduled runs of the river and interrupts the harvesting thread
+        //of its active run, or keeps a run which is about to start from starting
+        harvestExecutor.cancel(riverName.name());
     }
 }
@@ -19,9 +19,16 @@ public final class Defaults {
     public final static String SUGGESTION_OUTPUT_FIELD = "output";
     public final static String SUGGESTION_PAYLOAD_FIELD = "payload";
     public final static int DEFAULT_NUMBER_OF_BULK_ACTIONS = 100;
+    public final static String DEFAULT_BULK_SIZE = "5mb";
+    public final static int DEFAULT_BULK_CONCURRENT_REQUESTS = 1;
+    public final static String DEFAULT_BULK_FLUSH_INTERVAL = "5s";
+    public final static boolean DEFAULT_ADAPTIVE_BULK = false;
+    public final static int DEFAULT_MIN_BULK_ACTIONS = 10;
+    public final static int DEFAULT_MAX_BULK_ACTIONS = 10000;
+    public final static int DEFAULT_MAX_BULK_CONCURRENT_REQUESTS = 4;
+    public final static String DEFAULT_BULK_TARGET_LATENCY = "1s";
     public final static int DEFAULT_MAX_SUGGEST_INPUT_LENGTH = 50;
     public final static int DEFAULT_NUMBER_OF_RETRY = 5;
-    public final static int DEFAULT_BULK_REQ = 30;
     public final static List<String> DEFAULT_QUERIES = new ArrayList<>();
     public final static String DEFAULT_QUERYTYPE = "construct";
     public final static String DEFAULT_PROPLIST = "[" +
@@ -49,7 +56,43 @@ public final class Defaults {
     public final static String DEFAULT_SYNC_COND = "";
     public final static String DEFAULT_SYNC_TIME_PROP = "http://cr.eionet.europa.eu/ontologies/contreg.rdf#lastRefreshed";
     public final static Boolean DEFAULT_SYNC_OLD_DATA = false;
+    public final static int DEFAULT_SYNC_BATCH_SIZE = 30;
+    public final static int DEFAULT_MAX_SYNC_BATCH_SIZE = 500;
+    public final static int DEFAULT_SYNC_CONCURRENCY = 4;
+    public final static String DEFAULT_SYNC_TARGET_LATENCY = "5s";
+    public final static String DEFAULT_SYNC_INTERVAL = "";
+    public final static String DEFAULT_SYNC_JITTER = "0s";
+    public final static int DEFAULT_HARVEST_WEIGHT = 1;
+    public final static String MAX_CONCURRENT_HARVESTS_SETTING = "ubb_rdf_river.max_concurrent_harvests";
     public final static long DEFAULT_QUERY_LIMIT = 1000;
+    public final static String DEFAULT_QUERY_PAGING = "none";
+    public final static int DEFAULT_HARVEST_THREADS = 1;
+    public final static int DEFAULT_MAX_CONCURRENT_QUERIES_PER_ENDPOINT = 4;
+    public final static int DEFAULT_TDB_PARTITIONS = 1;
+    public final static long DEFAULT_LABEL_CACHE_SIZE = 100000;
+    public final static int DEFAULT_LABEL_BATCH_SIZE = 100;
+    public final static boolean DEFAULT_PERSISTENT_LABELS = false;
+    public final static String DEFAULT_PERSISTENT_LABELS_TTL = "7d";
+    public final static boolean DEFAULT_PRELOAD_LABELS = false;
+    public final static int DEFAULT_EMBED_DEPTH = 3;
+    public final static int DEFAULT_EMBED_BATCH_SIZE = 50;
+    public final static long DEFAULT_EMBED_CACHE_SIZE = 10000L;
+    public final static int DEFAULT_TEXT_FETCH_THREADS = 4;
+    public final static int DEFAULT_TEXT_FETCH_CONNECTIONS_PER_HOST = 2;
+    public final static String DEFAULT_TEXT_FETCH_TIMEOUT = "30s";
+    public final static boolean DEFAULT_TEXT_CONTENT_CACHE = true;
+    public final static long DEFAULT_TEXT_CONTENT_CACHE_SIZE = 100000;
+    public final static boolean DEFAULT_CACHE_DUMPS = false;
+    public final static String DEFAULT_DUMP_DOWNLOAD_TIMEOUT = "5m";
+    public final static boolean DEFAULT_SKIP_UNCHANGED = false;
+    public final static boolean DEFAULT_CHECKPOINTS = false;
+    public final static String DEFAULT_CHECKPOINT_INTERVAL = "1m";
+    public final static int DEFAULT_PIPELINE_GROUP_THREADS = 1;
+    public final static int DEFAULT_PIPELINE_BUILD_THREADS = 1;
+    public final static int DEFAULT_PIPELINE_INDEX_THREADS = 1;
+    public final static int DEFAULT_PIPELINE_QUEUE_SIZE = 1000;
+    public final static Boolean DEFAULT_STREAM_DUMPS = false;
+    public final static String DEFAULT_DUMP_FORMAT = "RDF/XML";
     public static final String SORT_LABEL_NAME = "labelSort";
     public  static final String TEXT_CONTENT_FIELD =  "textContent";
 
@@ -0,0 +1,437 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects index, update and delete requests and sends them to Elasticsearch
+ * in bulks. A bulk is sent when it reaches a given number of actions, a given
+ * size in bytes or when the flush interval has elapsed, whichever comes first.
+ * <p>
+ * Bulks are sent asynchronously, with a bounded number of bulks in flight at the same time.
+ * Adding a request blocks while all of them are in flight. With zero concurrent requests,
+ * bulks are sent synchronously. The number of actions per bulk and the number of bulks in
+ * flight are taken from a {@link BulkSizeController}, which may adjust them as bulks complete.
+ * <p>
+ * Requests rejected because the cluster is busy are sent again after an exponential backoff,
+ * up to a given number of retries. Retries are scheduled on their own thread, which never
+ * waits for a bulk to complete, and the flush interval skips a round while all bulks are in
+ * flight. Both threads are only started once they are needed.
+ * <p>
+ * A {@link Listener} may be told about each request which succeeded or finally failed.
+ * <p>
+ * The indexer is thread safe, such that several producers can share it.
+ */
+public class BulkIndexer implements Closeable {
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+    private final ESLogger logger = Loggers.getLogger(BulkIndexer.class);
+    private final Client client;
+    private final BulkSizeController controller;
+    private final long bulkSizeInBytes;
+    private final int maxRetries;
+    private final long flushIntervalMillis;
+    private final Object schedulerLock = new Object();
+    private ScheduledExecutorService flushScheduler;
+    private ScheduledExecutorService retryScheduler;
+    private final AtomicLong numberOfFailures = new AtomicLong();
+    private final AtomicLong numberOfRetries = new AtomicLong();
+    private final AtomicLong numberOfDeletes = new AtomicLong();
+    private final Object inFlightLock = new Object();
+    private int inFlight = 0;
+    private BulkRequest bulkRequest = new BulkRequest();
+    private long numberOfActions = 0;
+    private volatile boolean closed = false;
+    private volatile Listener listener;
+
+    /**
+     * Creates a synchronous indexer which sends bulks by number of actions only
+     *
+     * @param client      a client to send bulks with
+     * @param bulkActions number of actions after which a bulk is executed
+     */
+    public BulkIndexer(Client client, long bulkActions) {
+        this(client, new BulkSizeController(bulkActions, 0), null, null, 0);
+    }
+
+    /**
+     * @param client        a client to send bulks with
+     * @param controller    decides number of actions per bulk and number of bulks in flight
+     * @param bulkSize      size after which a bulk is executed, or null for no limit
+     * @param flushInterval interval after which a bulk is executed, or null for no interval
+     * @param maxRetries    number of times rejected requests are sent again
+     */
+    public BulkIndexer(Client client, BulkSizeController controller, ByteSizeValue bulkSize,
+                       TimeValue flushInterval, int maxRetries) {
+        this.client = client;
+        this.controller = controller;
+        this.bulkSizeInBytes = bulkSize != null && bulkSize.bytes() > 0 ? bulkSize.bytes() : Long.MAX_VALUE;
+        this.maxRetries = Math.max(maxRetries, 0);
+        this.flushIntervalMillis = flushInterval != null && flushInterval.millis() > 0 ? flushInterval.millis() : 0;
+    }
+
+    /**
+     * Sets a listener which is told about the outcome of each request
+     *
+     * @param listener a listener, or null for none
+     * @return this indexer
+     */
+    public BulkIndexer setListener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Adds a request to the current bulk and executes the bulk if it is full
+     *
+     * @param request an index, update or delete request
+     */
+    public synchronized void add(ActionRequest request) {
+        if (flushIntervalMillis > 0 && numberOfActions == 0) {
+            startFlushScheduler();
+        }
+        bulkRequest.add(request);
+        numberOfActions++;
+        if (bulkRequest.numberOfActions() >= controller.getBulkActions()
+                || bulkRequest.estimatedSizeInBytes() >= bulkSizeInBytes) {
+            execute();
+        }
+    }
+
+    /**
+     * Executes remaining requests, if any, and waits until all bulks in flight,
+     * including retries, have completed
+     */
+    public void flush() {
+        executeIfNotEmpty();
+        try {
+            synchronized (inFlightLock) {
+                while (inFlight > 0) {
+                    inFlightLock.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for bulks in flight");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets number of actions that were added to this indexer
+     */
+    public synchronized long getNumberOfActions() {
+        return numberOfActions;
+    }
+
+    /**
+     * Gets number of actions that failed, after retries
+     */
+    public long getNumberOfFailures() {
+        return numberOfFailures.get();
+    }
+
+    /**
+     * Counts actions which failed before they could be added to this indexer, e.g documents
+     * which could not be built, such that they are reported like actions which failed in a bulk
+     *
+     * @param n number of failed actions
+     */
+    public void addFailures(long n) {
+        numberOfFailures.addAndGet(n);
+    }
+
+    /**
+     * Gets number of documents that delete actions found and deleted
+     */
+    public long getNumberOfDeletes() {
+        return numberOfDeletes.get();
+    }
+
+    /**
+     * Gets number of actions that were sent again after being rejected
+     */
+    public long getNumberOfRetries() {
+        return numberOfRetries.get();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        flush();
+        synchronized (schedulerLock) {
+            if (flushScheduler != null) {
+                flushScheduler.shutdownNow();
+            }
+            if (retryScheduler != null) {
+                retryScheduler.shutdownNow();
+            }
+        }
+    }
+
+    private synchronized void executeIfNotEmpty() {
+        if (bulkRequest.numberOfActions() > 0) {
+            execute();
+        }
+    }
+
+    /**
+     * Executes the current bulk on the flush interval, unless all bulks are in flight. Waiting
+     * for a free slot here would hold the lock, and the next round tries again anyway.
+     */
+    private synchronized void executeOnInterval() {
+        if (bulkRequest.numberOfActions() == 0 || !tryAcquire()) {
+            return;
+        }
+        BulkRequest request = bulkRequest;
+        bulkRequest = new BulkRequest();
+        send(request, 0);
+    }
+
+    private void startFlushScheduler() {
+        synchronized (schedulerLock) {
+            if (flushScheduler == null && !closed) {
+                flushScheduler = Executors.newSingleThreadScheduledExecutor(
+                        EsExecutors.daemonThreadFactory("ubbRiver[bulk]"));
+                flushScheduler.scheduleWithFixedDelay(this::executeOnInterval,
+                        flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private ScheduledExecutorService getRetryScheduler() {
+        synchronized (schedulerLock) {
+            if (retryScheduler == null) {
+                retryScheduler = Executors.newSingleThreadScheduledExecutor(
+                        EsExecutors.daemonThreadFactory("ubbRiver[bulk][retry]"));
+            }
+            return retryScheduler;
+        }
+    }
+
+    /**
+     * Sends the current bulk and starts a new one. Must be called while holding the lock,
+     * such that producers block while all bulks are in flight.
+     */
+    private void execute() {
+        BulkRequest request = bulkRequest;
+        bulkRequest = new BulkRequest();
+        try {
+            acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            onFailure(request, e);
+            return;
+        }
+        send(request, 0);
+    }
+
+    /**
+     * Sends a bulk which has already been counted as in flight
+     *
+     * @param request a bulk
+     * @param attempt number of times the bulk has been sent before
+     */
+    private void send(BulkRequest request, int attempt) {
+        long startTime = System.currentTimeMillis();
+        if (controller.getConcurrentRequests() == 0) {
+            try {
+                onResponse(request, attempt, client.bulk(request).actionGet(), startTime);
+            } catch (Exception e) {
+                onFailure(request, attempt, e);
+            }
+            return;
+        }
+        try {
+            client.bulk(request, new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(BulkResponse response) {
+                    BulkIndexer.this.onResponse(request, attempt, response, startTime);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    BulkIndexer.this.onFailure(request, attempt, e);
+                }
+            });
+        } catch (Exception e) {
+            onFailure(request, attempt, e);
+        }
+    }
+
+    private void onResponse(BulkRequest request, int attempt, BulkResponse response, long startTime) {
+        try {
+            BulkRequest rejected = new BulkRequest();
+            if (response.hasFailures()) {
+                processBulkResponseFailure(request, response, rejected, attempt < maxRetries);
+            }
+            notifySucceeded(request, response);
+            controller.onCompleted(System.currentTimeMillis() - startTime, rejected.numberOfActions());
+            if (rejected.numberOfActions() > 0) {
+                retry(rejected, attempt + 1);
+                return;
+            }
+        } catch (Exception e) {
+            logger.error("Exception while processing bulk response: {}", e.getLocalizedMessage());
+        }
+        release();
+    }
+
+    private void onFailure(BulkRequest request, int attempt, Throwable e) {
+        if (ExceptionsHelper.unwrapCause(e) instanceof EsRejectedExecutionException && attempt < maxRetries) {
+            controller.onRejected();
+            retry(request, attempt + 1);
+            return;
+        }
+        onFailure(request, e);
+        release();
+    }
+
+    private void onFailure(BulkRequest request, Throwable e) {
+        numberOfFailures.addAndGet(request.numberOfActions());
+        logger.error("Failed to execute bulk of {} actions: {}",
+                request.numberOfActions(), e.getLocalizedMessage());
+        Listener current = listener;
+        if (current != null) {
+            for (ActionRequest failed : request.requests()) {
+                current.onFailed(failed);
+            }
+        }
+    }
+
+    private void notifySucceeded(BulkRequest request, BulkResponse response) {
+        Listener current = listener;
+        for (BulkItemResponse item : response.getItems()) {
+            if (item.isFailed()) {
+                continue;
+            }
+            ActionRequest succeeded = request.requests().get(item.getItemId());
+            //A delete of a document which is not in the index succeeds without deleting anything
+            if (item.getResponse() instanceof DeleteResponse && ((DeleteResponse) item.getResponse()).isFound()) {
+                numberOfDeletes.incrementAndGet();
+            }
+            if (current != null) {
+                current.onSucceeded(succeeded);
+            }
+        }
+    }
+
+    /**
+     * Sends a bulk again after a backoff. The bulk stays in flight meanwhile.
+     */
+    private void retry(BulkRequest request, int attempt) {
+        long delay = Math.min(INITIAL_BACKOFF_MILLIS << (attempt - 1), MAX_BACKOFF_MILLIS);
+        numberOfRetries.addAndGet(request.numberOfActions());
+        logger.warn("Bulk of {} actions was rejected. Retrying in {} ms... {}",
+                request.numberOfActions(), delay, attempt);
+        try {
+            getRetryScheduler().schedule(() -> send(request, attempt), delay, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            onFailure(request, e);
+            release();
+        }
+    }
+
+    private void acquire() throws InterruptedException {
+        synchronized (inFlightLock) {
+            while (inFlight > 0 && inFlight >= controller.getConcurrentRequests()) {
+                inFlightLock.wait();
+            }
+            inFlight++;
+        }
+    }
+
+    private boolean tryAcquire() {
+        synchronized (inFlightLock) {
+            if (inFlight > 0 && inFlight >= controller.getConcurrentRequests()) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        }
+    }
+
+    private void release() {
+        synchronized (inFlightLock) {
+            inFlight--;
+            inFlightLock.notifyAll();
+        }
+    }
+
+    /**
+     * This method processes failures by iterating through each bulk
+     * response item. Items rejected because the cluster is busy are collected
+     * for a retry, if retries are left.
+     *
+     * @param request  the bulk which was sent
+     * @param response a BulkResponse
+     * @param rejected a bulk to collect rejected requests in
+     * @param retry    whether rejected requests should be retried
+     */
+    private void processBulkResponseFailure(BulkRequest request, BulkResponse response,
+                                            BulkRequest rejected, boolean retry) {
+        int failed = 0;
+        for (BulkItemResponse item : response.getItems()) {
+            if (!item.isFailed()) {
+                continue;
+            }
+            if (retry && item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS) {
+                rejected.add(request.requests().get(item.getItemId()));
+                continue;
+            }
+            failed++;
+            numberOfFailures.incrementAndGet();
+            Listener current = listener;
+            if (current != null) {
+                current.onFailed(request.requests().get(item.getItemId()));
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Error {} occurred on index {}, type {}, id {} for {} operation ",
+                        item.getFailureMessage(),
+                        item.getIndex(),
+                        item.getType(),
+                        item.getId(),
+                        item.getOpType());
+            }
+        }
+        if (failed > 0) {
+            logger.warn("There was failures when executing bulk : " + response.buildFailureMessage());
+        }
+    }
+
+    /**
+     * Told about the outcome of each request, on the thread which handles the bulk response
+     */
+    public interface Listener {
+        /**
+         * Called when a request has succeeded
+         */
+        void onSucceeded(ActionRequest request);
+
+        /**
+         * Called when a request has failed and will not be retried
+         */
+        void onFailed(ActionRequest request);
+    }
+}
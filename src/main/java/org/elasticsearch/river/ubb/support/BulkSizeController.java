@@ -0,0 +1,141 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Decides how many actions go into a bulk and how many bulks may be in flight at the same time.
+ * <p>
+ * When adaptive, sizes are adjusted from the outcome of each bulk, in an additive increase,
+ * multiplicative decrease fashion:
+ * <ul>
+ * <li>A bulk which completes faster than the target latency, without rejections, grows the
+ * bulk size by a step, and every few such bulks the concurrency is increased by a step.</li>
+ * <li>A bulk which is slower than twice the target latency shrinks the bulk size by a quarter.</li>
+ * <li>A rejection, of the whole bulk or of any of its items, halves both the bulk size and the
+ * concurrency, such that the river backs off while the bulk thread pool is busy.</li>
+ * </ul>
+ * When not adaptive, the initial sizes are kept.
+ */
+public class BulkSizeController {
+    private static final int SUCCESSES_BEFORE_MORE_CONCURRENCY = 10;
+    private final ESLogger logger = Loggers.getLogger(BulkSizeController.class);
+    private final boolean adaptive;
+    private final long minBulkActions;
+    private final long maxBulkActions;
+    private final int maxConcurrentRequests;
+    private final long targetLatencyMillis;
+    private final long step;
+    private final int concurrencyStep;
+    private long bulkActions;
+    private int concurrentRequests;
+    private int successes = 0;
+
+    /**
+     * Creates a controller which keeps the given sizes
+     *
+     * @param bulkActions        number of actions per bulk
+     * @param concurrentRequests number of bulks in flight
+     */
+    public BulkSizeController(long bulkActions, int concurrentRequests) {
+        this(false, bulkActions, bulkActions, bulkActions, concurrentRequests, concurrentRequests, null);
+    }
+
+    /**
+     * @param adaptive              whether to adjust sizes
+     * @param bulkActions           initial number of actions per bulk
+     * @param minBulkActions        lower bound of actions per bulk
+     * @param maxBulkActions        upper bound of actions per bulk
+     * @param concurrentRequests    initial number of bulks in flight
+     * @param maxConcurrentRequests upper bound of bulks in flight
+     * @param targetLatency         bulk latency above which bulks are not grown
+     */
+    public BulkSizeController(boolean adaptive, long bulkActions, long minBulkActions, long maxBulkActions,
+                              int concurrentRequests, int maxConcurrentRequests, TimeValue targetLatency) {
+        this(adaptive, bulkActions, minBulkActions, maxBulkActions, concurrentRequests, maxConcurrentRequests,
+                targetLatency, 1);
+    }
+
+    /**
+     * @param adaptive              whether to adjust sizes
+     * @param bulkActions           initial number of actions per bulk
+     * @param minBulkActions        lower bound of actions per bulk
+     * @param maxBulkActions        upper bound of actions per bulk
+     * @param concurrentRequests    initial number of bulks in flight
+     * @param maxConcurrentRequests upper bound of bulks in flight
+     * @param targetLatency         bulk latency above which bulks are not grown
+     * @param concurrencyStep       number of bulks in flight which are added at a time
+     */
+    public BulkSizeController(boolean adaptive, long bulkActions, long minBulkActions, long maxBulkActions,
+                              int concurrentRequests, int maxConcurrentRequests, TimeValue targetLatency,
+                              int concurrencyStep) {
+        this.adaptive = adaptive;
+        this.minBulkActions = Math.max(minBulkActions, 1);
+        this.maxBulkActions = Math.max(maxBulkActions, this.minBulkActions);
+        this.bulkActions = Math.min(Math.max(bulkActions, this.minBulkActions), this.maxBulkActions);
+        this.concurrentRequests = Math.max(concurrentRequests, 0);
+        this.maxConcurrentRequests = Math.max(maxConcurrentRequests, this.concurrentRequests);
+        this.targetLatencyMillis = targetLatency != null ? targetLatency.millis() : Long.MAX_VALUE;
+        this.step = Math.max(this.minBulkActions / 2, 1);
+        this.concurrencyStep = Math.max(concurrencyStep, 1);
+    }
+
+    public synchronized long getBulkActions() {
+        return bulkActions;
+    }
+
+    /**
+     * Gets number of bulks that may be in flight, 0 meaning that bulks are sent synchronously
+     */
+    public synchronized int getConcurrentRequests() {
+        return concurrentRequests;
+    }
+
+    /**
+     * Called when a bulk has completed
+     *
+     * @param latencyMillis time taken by the bulk
+     * @param rejections    number of items rejected because the cluster was busy
+     */
+    public synchronized void onCompleted(long latencyMillis, int rejections) {
+        if (!adaptive) {
+            return;
+        }
+        if (rejections > 0) {
+            onRejected();
+        } else if (latencyMillis > 2 * targetLatencyMillis) {
+            successes = 0;
+            resize(bulkActions * 3 / 4, concurrentRequests);
+        } else if (latencyMillis <= targetLatencyMillis) {
+            int concurrency = concurrentRequests;
+            if (++successes >= SUCCESSES_BEFORE_MORE_CONCURRENCY && concurrency > 0) {
+                successes = 0;
+                concurrency = Math.min(concurrency + concurrencyStep, maxConcurrentRequests);
+            }
+            resize(bulkActions + step, concurrency);
+        }
+    }
+
+    /**
+     * Called when a whole bulk, or some of its items, were rejected
+     */
+    public synchronized void onRejected() {
+        if (!adaptive) {
+            return;
+        }
+        successes = 0;
+        //Synchronous bulks stay synchronous
+        resize(bulkActions / 2, concurrentRequests == 0 ? 0 : Math.max(concurrentRequests / 2, 1));
+    }
+
+    private void resize(long newBulkActions, int newConcurrentRequests) {
+        long actions = Math.min(Math.max(newBulkActions, minBulkActions), maxBulkActions);
+        if (actions != bulkActions || newConcurrentRequests != concurrentRequests) {
+            logger.debug("Resizing bulks from [{} actions, {} in flight] to [{} actions, {} in flight]",
+                    bulkActions, concurrentRequests, actions, newConcurrentRequests);
+        }
+        bulkActions = actions;
+        concurrentRequests = newConcurrentRequests;
+    }
+}
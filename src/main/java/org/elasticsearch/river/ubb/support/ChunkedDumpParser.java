@@ -0,0 +1,298 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.RiotException;
+import org.apache.jena.riot.system.StreamRDF;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Parses a line based dump (N-Triples or N-Quads) in parallel, by splitting the
+ * file into byte ranges and parsing each range on its own thread. Ranges start at a
+ * line whose subject differs from the subject of the line before, such that the
+ * triples of a subject which are grouped in the dump are never split between two
+ * ranges. Ranges are read with positioned reads on a shared {@link FileChannel}, so
+ * the file is never loaded into memory. Compressed dumps cannot be split.
+ * <p>
+ * Note that blank node labels are scoped to a range, such that the same label in
+ * two different ranges gives two different blank nodes.
+ */
+public class ChunkedDumpParser {
+    private static final ESLogger logger = Loggers.getLogger(ChunkedDumpParser.class);
+    private static final int SCAN_BUFFER_SIZE = 8192;
+    private static final int MAX_SUBJECT_LENGTH = 64 * 1024;
+    private final Path path;
+    private final Lang lang;
+
+    /**
+     * @param path path to a local dump
+     * @param lang language of the dump, either N-Triples or N-Quads
+     */
+    public ChunkedDumpParser(Path path, Lang lang) {
+        if (!isLineBased(lang)) {
+            throw new IllegalArgumentException("Expected N-Triples or N-Quads but found [" + lang + "]");
+        }
+        this.path = path;
+        this.lang = lang;
+    }
+
+    /**
+     * Checks whether the given language is a line based language that can be split
+     */
+    public static boolean isLineBased(Lang lang) {
+        return RDFLanguages.sameLang(RDFLanguages.NTRIPLES, lang)
+                || RDFLanguages.sameLang(RDFLanguages.NQUADS, lang);
+    }
+
+    /**
+     * Resolves a dump URL to a local file, if the dump is a readable local file.
+     *
+     * @param url a path or a <tt>file:</tt> URL
+     * @return path to the file or null if the dump is not a local file
+     */
+    public static Path toLocalFile(String url) {
+        try {
+            Path path = url.startsWith("file:") ? Paths.get(URI.create(url)) : Paths.get(url);
+            return Files.isRegularFile(path) && Files.isReadable(path) ? path : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether a local dump can be split into ranges, i.e it is in a line based
+     * language and it is not compressed
+     */
+    public static boolean isSplittable(Path dump, Lang lang) {
+        String name = dump.getFileName().toString().toLowerCase(Locale.ROOT);
+        return isLineBased(lang) && !name.endsWith(".gz") && !name.endsWith(".bz2");
+    }
+
+    /**
+     * Parses the dump using the given number of threads. Each range gets its own stream from
+     * the supplier, so streams do not have to be thread safe.
+     *
+     * @param numberOfThreads number of ranges to parse in parallel
+     * @param streams         a supplier of a stream for each range
+     * @return number of ranges that were parsed successfully
+     */
+    public int parse(int numberOfThreads, Supplier<StreamRDF> streams) throws IOException, InterruptedException {
+        return parse(numberOfThreads, streams, Collections.emptySet(), start -> {
+        });
+    }
+
+    /**
+     * Parses the dump using the given number of threads, skipping ranges which were parsed
+     * before. Ranges only depend on the size of the dump and the number of threads, such
+     * that a range is identified by its start offset.
+     *
+     * @param numberOfThreads number of ranges to parse in parallel
+     * @param streams         a supplier of a stream for each range
+     * @param skippedRanges   start offsets of ranges not to parse
+     * @param onRangeParsed   told about start offset of each range once it has been parsed
+     * @return number of ranges that were parsed successfully, including skipped ranges
+     */
+    public int parse(int numberOfThreads, Supplier<StreamRDF> streams, Set<Long> skippedRanges,
+                     LongConsumer onRangeParsed) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            List<long[]> ranges = computeRanges(channel, numberOfThreads);
+            logger.info("Parsing [{}] in {} ranges", path, ranges.size());
+
+            ExecutorService executor = Executors.newFixedThreadPool(ranges.size(),
+                    EsExecutors.daemonThreadFactory("ubbRiver[dump-parser]"));
+            try {
+                int success = 0;
+                List<Future<Boolean>> futures = new ArrayList<>();
+                for (long[] range : ranges) {
+                    if (skippedRanges.contains(range[0])) {
+                        logger.info("Skipping range [{}, {}) of [{}], which was parsed before", range[0], range[1], path);
+                        success++;
+                        continue;
+                    }
+                    futures.add(executor.submit(() -> {
+                        boolean parsed = parseRange(channel, range[0], range[1], streams.get());
+                        if (parsed) {
+                            onRangeParsed.accept(range[0]);
+                        }
+                        return parsed;
+                    }));
+                }
+                for (Future<Boolean> future : futures) {
+                    try {
+                        if (future.get()) {
+                            success++;
+                        }
+                    } catch (ExecutionException e) {
+                        logger.error("Exception while parsing [{}]: {}", path, e.getCause().getLocalizedMessage());
+                    }
+                }
+                return success;
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Splits the channel into at most <tt>numberOfRanges</tt> ranges of [start, end), such
+     * that every range starts at the beginning of a line with a new subject.
+     */
+    static List<long[]> computeRanges(FileChannel channel, int numberOfRanges) throws IOException {
+        long size = channel.size();
+        int n = numberOfRanges > 0 ? numberOfRanges : 1;
+        List<long[]> ranges = new ArrayList<>();
+        long start = 0;
+        for (int i = 1; i <= n && start < size; i++) {
+            long end = i == n ? size : nextSubjectStart(channel, Math.max(start, size * i / n));
+            if (end > start) {
+                ranges.add(new long[]{start, end});
+                start = end;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Gets position of the first byte after the next new line at or after a given position
+     */
+    private static long nextLineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long pos = position;
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, pos);
+            if (read <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += read;
+        }
+    }
+
+    /**
+     * Gets position of the first line after a given position whose subject differs from the
+     * subject of the line before it
+     */
+    private static long nextSubjectStart(FileChannel channel, long position) throws IOException {
+        long size = channel.size();
+        long lineStart = nextLineStart(channel, position);
+        if (lineStart >= size) {
+            return size;
+        }
+        byte[] subject = readSubject(channel, lineStart);
+        while (true) {
+            long next = nextLineStart(channel, lineStart);
+            if (next >= size || !Arrays.equals(subject, readSubject(channel, next))) {
+                return next;
+            }
+            lineStart = next;
+        }
+    }
+
+    /**
+     * Reads the subject of the line starting at a given position, i.e its bytes up to the
+     * first white space
+     */
+    private static byte[] readSubject(FileChannel channel, long lineStart) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        byte[] subject = new byte[0];
+        long pos = lineStart;
+        while (subject.length < MAX_SUBJECT_LENGTH) {
+            buffer.clear();
+            int read = channel.read(buffer, pos);
+            if (read <= 0) {
+                return subject;
+            }
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+                if (b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+                    byte[] result = Arrays.copyOf(subject, subject.length + i);
+                    buffer.position(0);
+                    buffer.get(result, subject.length, i);
+                    return result;
+                }
+            }
+            byte[] result = Arrays.copyOf(subject, subject.length + read);
+            buffer.position(0);
+            buffer.get(result, subject.length, read);
+            subject = result;
+            pos += read;
+        }
+        return subject;
+    }
+
+    private boolean parseRange(FileChannel channel, long start, long end, StreamRDF stream) {
+        try (InputStream in = new RangeInputStream(channel, start, end)) {
+            RDFDataMgr.parse(stream, in, lang);
+            return true;
+        } catch (RiotException | IOException e) {
+            logger.error("Could not parse range [{}, {}) of [{}]. Details: {}",
+                    start, end, path, e.getLocalizedMessage());
+        }
+        return false;
+    }
+
+    /**
+     * An input stream over a range of a file channel, using positioned reads such that
+     * many streams can share the same channel.
+     */
+    private static class RangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+        RangeInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int length = (int) Math.min(len, end - position);
+            int read = channel.read(ByteBuffer.wrap(b, off, length), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+    }
+}
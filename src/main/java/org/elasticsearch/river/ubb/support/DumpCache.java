@@ -0,0 +1,263 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * A local cache of dumps, such that dumps which have not changed since they were last
+ * harvested are neither downloaded nor parsed again.
+ * <p>
+ * Dumps served over HTTP are downloaded into the cache directory with conditional GET
+ * requests, using the ETag and Last-Modified headers of the previous download. Local dumps are
+ * read where they are. In both cases the SHA-256 hash of the content is compared to the hash
+ * of the content which was last harvested successfully into the same index, identified by the
+ * UUID of the index, such that a dump is harvested again into an index which was recreated.
+ */
+public class DumpCache {
+    private static final ESLogger logger = Loggers.getLogger(DumpCache.class);
+    private final Path directory;
+    private final int timeoutMillis;
+
+    /**
+     * @param directory directory of the cache
+     * @param timeout   connect and read timeout of a download
+     */
+    public DumpCache(Path directory, TimeValue timeout) throws IOException {
+        this.directory = directory;
+        this.timeoutMillis = (int) Math.min(timeout.millis(), Integer.MAX_VALUE);
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Gets a local copy of a dump, downloading it if it is served over HTTP and has changed
+     *
+     * @param url a URL or path of a dump
+     * @return the dump, or null if it is neither local nor served over HTTP
+     */
+    public Dump fetch(String url) throws IOException {
+        Path local = ChunkedDumpParser.toLocalFile(url);
+        Properties meta = readMeta(url);
+        if (local != null) {
+            return new Dump(url, local, hash(local), meta);
+        }
+        if (!isHttp(url)) {
+            return null;
+        }
+        Path file = directory.resolve(getKey(url) + getExtension(url));
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            if (Files.exists(file) && meta.getProperty("hash") != null) {
+                if (meta.getProperty("etag") != null) {
+                    connection.setRequestProperty("If-None-Match", meta.getProperty("etag"));
+                }
+                if (meta.getProperty("lastModified") != null) {
+                    connection.setRequestProperty("If-Modified-Since", meta.getProperty("lastModified"));
+                }
+            }
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && Files.exists(file)) {
+                logger.info("Dump [{}] is not modified, using cached copy [{}]", url, file);
+                return new Dump(url, file, meta.getProperty("hash"), meta);
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + status + " for dump " + url);
+            }
+            Path tmp = Files.createTempFile(directory, getKey(url), ".tmp");
+            String hash;
+            try (InputStream in = connection.getInputStream()) {
+                hash = copy(in, tmp);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            setOrRemove(meta, "etag", connection.getHeaderField("ETag"));
+            setOrRemove(meta, "lastModified", connection.getHeaderField("Last-Modified"));
+            meta.setProperty("hash", hash);
+            writeMeta(url, meta);
+            logger.info("Downloaded dump [{}] to [{}]", url, file);
+            return new Dump(url, file, hash, meta);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Records that a dump has been harvested successfully into an index, such that it is
+     * skipped until its content or the index changes
+     *
+     * @param dump  a dump
+     * @param index UUID of the index which the dump was harvested into
+     */
+    public void markHarvested(Dump dump, String index) throws IOException {
+        dump.meta.setProperty("harvestedHash", dump.hash);
+        dump.meta.setProperty("harvestedIndex", index);
+        writeMeta(dump.url, dump.meta);
+    }
+
+    /**
+     * A local copy of a dump
+     */
+    public static class Dump {
+        private final String url;
+        private final Path path;
+        private final String hash;
+        private final Properties meta;
+
+        Dump(String url, Path path, String hash, Properties meta) {
+            this.url = url;
+            this.path = path;
+            this.hash = hash;
+            this.meta = meta;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Whether the content differs from the content which was last harvested into an index
+         *
+         * @param index UUID of the index, or null if it does not exist
+         */
+        public boolean isChanged(String index) {
+            return index == null || !index.equals(meta.getProperty("harvestedIndex"))
+                    || !hash.equals(meta.getProperty("harvestedHash"));
+        }
+    }
+
+    private static boolean isHttp(String url) {
+        try {
+            String scheme = new URI(url).getScheme();
+            return scheme != null && (scheme.equalsIgnoreCase("http") || scheme.equalsIgnoreCase("https"));
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets extensions of the file name of a URL, e.g <tt>.nt.gz</tt>, such that the cached copy
+     * is parsed the same way as the original
+     */
+    private static String getExtension(String url) {
+        String path = URI.create(url).getPath();
+        if (path == null) {
+            return "";
+        }
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        int dot = name.indexOf('.');
+        String extension = dot < 0 ? "" : name.substring(dot);
+        return extension.matches("[A-Za-z0-9.]{1,16}") ? extension : "";
+    }
+
+    private static String getKey(String url) {
+        byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+        MurmurHash3.Hash128 hash = MurmurHash3.hash128(bytes, 0, bytes.length, 0, new MurmurHash3.Hash128());
+        return String.format(Locale.ROOT, "%016x%016x", hash.h1, hash.h2);
+    }
+
+    private static void setOrRemove(Properties properties, String key, String value) {
+        if (value == null) {
+            properties.remove(key);
+        } else {
+            properties.setProperty(key, value);
+        }
+    }
+
+    private Properties readMeta(String url) throws IOException {
+        Properties properties = new Properties();
+        Path path = directory.resolve(getKey(url) + ".properties");
+        if (Files.exists(path)) {
+            try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+            if (!url.equals(properties.getProperty("url"))) {
+                properties.clear();
+            }
+        }
+        properties.setProperty("url", url);
+        return properties;
+    }
+
+    private void writeMeta(String url, Properties properties) throws IOException {
+        Path tmp = Files.createTempFile(directory, getKey(url), ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+        }
+        Files.move(tmp, directory.resolve(getKey(url) + ".properties"), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Copies a stream to a file
+     *
+     * @return SHA-256 hash of the content
+     */
+    private static String copy(InputStream in, Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream digested = new DigestInputStream(in, digest);
+             OutputStream out = Files.newOutputStream(file)) {
+            byte[] buffer = new byte[65536];
+            for (int n = digested.read(buffer); n >= 0; n = digested.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Gets SHA-256 hash of the content of a file
+     */
+    private static String hash(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            byte[] buffer = new byte[65536];
+            while (in.read(buffer) >= 0) {
+                //Only the digest is needed
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format(Locale.ROOT, "%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,115 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.common.hash.MurmurHash3;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An on-disk store of fingerprints of indexed documents, such that documents which have not
+ * changed since they were last indexed can be skipped.
+ * <p>
+ * A fingerprint is a 128 bit hash of a canonical form of the document source, in which keys
+ * of maps are sorted and values of lists are sorted as well, as RDF values have no order.
+ * Fingerprints are kept in a {@link PersistentLabelStore}, i.e an append only log with a
+ * memory-mapped index, keyed by index, type and id of the document. The store belongs to one
+ * instance of an index, identified by its UUID, and fingerprints recorded for another instance,
+ * e.g before the index was deleted and created again, are dropped when the store is opened.
+ */
+public class FingerprintStore implements Closeable {
+    private final PersistentLabelStore store;
+
+    /**
+     * Opens or creates a store in a given directory
+     *
+     * @param directory a directory for the files of the store
+     * @param indexUUID UUID of the index which documents are indexed into
+     */
+    public FingerprintStore(Path directory, String indexUUID) throws IOException {
+        this.store = new PersistentLabelStore(directory, "index=" + indexUUID, null);
+    }
+
+    /**
+     * Checks whether a document has the same fingerprint as when it was last indexed
+     */
+    public boolean isUnchanged(String index, String type, String id, String fingerprint) {
+        return fingerprint.equals(store.get(getKey(index, type, id)));
+    }
+
+    /**
+     * Records fingerprint of a document which has been indexed
+     */
+    public void put(String index, String type, String id, String fingerprint) {
+        store.put(getKey(index, type, id), fingerprint);
+    }
+
+    /**
+     * Forgets fingerprint of a document, e.g because it has been deleted
+     */
+    public void remove(String index, String type, String id) {
+        store.put(getKey(index, type, id), null);
+    }
+
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+
+    /**
+     * Computes fingerprint of a document source
+     *
+     * @param source a document source of maps, lists and values
+     * @return a hexadecimal hash
+     */
+    public static String fingerprint(Map<String, Object> source) {
+        StringBuilder canonical = new StringBuilder();
+        appendCanonical(canonical, source);
+        byte[] bytes = canonical.toString().getBytes(StandardCharsets.UTF_8);
+        MurmurHash3.Hash128 hash = MurmurHash3.hash128(bytes, 0, bytes.length, 0, new MurmurHash3.Hash128());
+        return String.format(Locale.ROOT, "%016x%016x", hash.h1, hash.h2);
+    }
+
+    private static void appendCanonical(StringBuilder out, Object value) {
+        if (value instanceof Map) {
+            out.append('{');
+            for (Map.Entry<?, ?> entry : new TreeMap<>((Map<?, ?>) value).entrySet()) {
+                appendString(out, String.valueOf(entry.getKey()));
+                out.append(':');
+                appendCanonical(out, entry.getValue());
+                out.append(',');
+            }
+            out.append('}');
+        } else if (value instanceof Collection) {
+            List<String> values = new ArrayList<>();
+            for (Object element : (Collection<?>) value) {
+                StringBuilder canonical = new StringBuilder();
+                appendCanonical(canonical, element);
+                values.add(canonical.toString());
+            }
+            values.sort(null);
+            out.append('[');
+            for (String element : values) {
+                out.append(element).append(',');
+            }
+            out.append(']');
+        } else {
+            appendString(out, String.valueOf(value));
+        }
+    }
+
+    private static void appendString(StringBuilder out, String value) {
+        out.append(value.length()).append('"').append(value);
+    }
+
+    private static String getKey(String index, String type, String id) {
+        return index + '/' + type + '/' + id;
+    }
+}
@@ -0,0 +1,80 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.system.StreamRDF;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A temporary file which holds the later fragments of subjects streamed from a dump, until
+ * the documents of the earlier fragments have been indexed. A fragment is merged into the
+ * document which Elasticsearch holds, which would miss the values of a document which is
+ * still on its way to Elasticsearch.
+ * <p>
+ * Fragments are kept as RDF Thrift, which keeps the labels of blank nodes, such that
+ * fragments of blank nodes are merged into the documents of the same blank nodes.
+ */
+public class FragmentSpill implements Closeable {
+    private final Path file;
+    private final OutputStream out;
+    private long numberOfTriples = 0;
+
+    public FragmentSpill() throws IOException {
+        this.file = Files.createTempFile("ubb-river-fragments", ".trdf");
+        this.out = new BufferedOutputStream(Files.newOutputStream(file));
+    }
+
+    /**
+     * Adds a fragment, which may be called from several parsing threads
+     */
+    public synchronized void add(Model fragment) {
+        RDFDataMgr.write(out, fragment, Lang.RDFTHRIFT);
+        numberOfTriples += fragment.size();
+    }
+
+    /**
+     * Gets number of triples which were spilled
+     */
+    public synchronized long getNumberOfTriples() {
+        return numberOfTriples;
+    }
+
+    /**
+     * Whether no fragment has been spilled
+     */
+    public synchronized boolean isEmpty() {
+        return numberOfTriples == 0;
+    }
+
+    /**
+     * Parses the spilled fragments into a stream
+     */
+    public void replay(StreamRDF stream) throws IOException {
+        synchronized (this) {
+            out.flush();
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            RDFDataMgr.parse(stream, in, Lang.RDFTHRIFT);
+        }
+    }
+
+    /**
+     * Deletes the file
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
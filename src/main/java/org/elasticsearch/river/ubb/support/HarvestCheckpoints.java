@@ -0,0 +1,232 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Durable progress of a harvest, such that a river which is restarted halfway through a
+ * harvest resumes where it stopped instead of harvesting everything again.
+ * <p>
+ * Each source of a harvest, e.g a query, a dump or the sync cursor, records its position
+ * once a unit of work, such as a page, has been handed to the pipeline. Positions are
+ * written to a <tt>_checkpoint</tt> document of the river in the <tt>_river</tt> index
+ * every checkpoint interval. Before writing, producers are held at the end of their current
+ * unit and the pipeline is flushed, such that a written position is only ever ahead of
+ * documents which Elasticsearch has acknowledged. Once a bulk action has failed, positions are
+ * no longer written, such that the harvest resumes before the failed documents.
+ * <p>
+ * Checkpoints belong to a fingerprint of the river settings, and are ignored if the
+ * settings have changed since they were written.
+ */
+public class HarvestCheckpoints {
+    public static final String DONE = "done";
+    private static final String INDEX = "_river";
+    private static final String ID = "_checkpoint";
+    private final ESLogger logger = Loggers.getLogger(HarvestCheckpoints.class);
+    private final Client client;
+    private final String riverName;
+    private final String fingerprint;
+    private final long intervalMillis;
+    private final Flusher flusher;
+    private final LongSupplier failures;
+    private final long failuresAtStart;
+    private final Map<String, String> positions = new ConcurrentHashMap<>();
+    //Units of work hold the read lock, a commit holds the write lock
+    private final ReadWriteLock gate = new ReentrantReadWriteLock(true);
+    private long startTime;
+    private volatile long lastCommit = System.currentTimeMillis();
+
+    /**
+     * @param client      a client to store checkpoints with
+     * @param riverName   name of the river
+     * @param fingerprint fingerprint of the settings which decide what is harvested
+     * @param interval    interval between two checkpoints
+     * @param flusher     waits until everything handed to the pipeline has been indexed
+     * @param failures    gets number of bulk actions which have failed so far
+     */
+    public HarvestCheckpoints(Client client, String riverName, String fingerprint,
+                              TimeValue interval, Flusher flusher, LongSupplier failures) {
+        this.client = client;
+        this.riverName = riverName;
+        this.fingerprint = fingerprint;
+        this.intervalMillis = interval.millis();
+        this.flusher = flusher;
+        this.failures = failures;
+        this.failuresAtStart = failures.getAsLong();
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Loads the last checkpoint of the river, if it was written with the same settings
+     *
+     * @return true if a previous harvest is resumed
+     */
+    @SuppressWarnings("unchecked")
+    public boolean load() {
+        try {
+            GetResponse response = client.prepareGet(INDEX, riverName, ID).execute().actionGet();
+            if (!response.isExists()) {
+                return false;
+            }
+            Map<String, Object> source = response.getSourceAsMap();
+            if (!fingerprint.equals(source.get("fingerprint"))) {
+                logger.info("Settings of river [{}] have changed since its last checkpoint, starting over", riverName);
+                return false;
+            }
+            Object positions = source.get("positions");
+            if (positions instanceof Map) {
+                for (Map.Entry<String, Object> entry : ((Map<String, Object>) positions).entrySet()) {
+                    this.positions.put(entry.getKey(), String.valueOf(entry.getValue()));
+                }
+            }
+            if (source.get("start_time") instanceof Number) {
+                startTime = ((Number) source.get("start_time")).longValue();
+            }
+            logger.info("Resuming harvest of river [{}] from checkpoint with {} positions", riverName,
+                    this.positions.size());
+            return true;
+        } catch (Exception e) {
+            logger.warn("Could not load checkpoint of river [{}]: {}", riverName, e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Gets time at which the harvest started, which is earlier than now when it is resumed
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Gets the recorded position of a source
+     *
+     * @param source key of a source
+     * @return the position, or null if the source has not recorded any
+     */
+    public String get(String source) {
+        return positions.get(source);
+    }
+
+    /**
+     * Whether a source has been harvested completely
+     */
+    public boolean isDone(String source) {
+        return DONE.equals(positions.get(source));
+    }
+
+    /**
+     * Whether bulk actions have failed since the harvest started, such that the checkpoint is
+     * no longer advanced
+     */
+    public boolean hasFailures() {
+        return failures.getAsLong() > failuresAtStart;
+    }
+
+    /**
+     * Runs a unit of work of a producer, e.g a submission to the pipeline. A checkpoint is
+     * never written while a unit runs.
+     *
+     * @return result of the unit
+     */
+    public <T, E extends Exception> T run(Unit<T, E> unit) throws E {
+        gate.readLock().lock();
+        try {
+            return unit.run();
+        } finally {
+            gate.readLock().unlock();
+        }
+    }
+
+    /**
+     * Whether the checkpoint interval has elapsed since the last checkpoint
+     */
+    public boolean isDue() {
+        return System.currentTimeMillis() - lastCommit >= intervalMillis;
+    }
+
+    /**
+     * Records the position of a source, after its units of work up to that position have run,
+     * and writes a checkpoint if the interval has elapsed. Must not be called from within a unit.
+     *
+     * @param source   key of a source
+     * @param position position to resume from
+     */
+    public void update(String source, String position) throws InterruptedException {
+        positions.put(source, position);
+        if (isDue()) {
+            commit();
+        }
+    }
+
+    /**
+     * Waits until all running units of work have finished, flushes the pipeline and writes
+     * the recorded positions, unless bulk actions have failed
+     */
+    public void commit() throws InterruptedException {
+        gate.writeLock().lockInterruptibly();
+        try {
+            if (!isDue()) {
+                //Another producer has just written a checkpoint
+                return;
+            }
+            flusher.flush();
+            if (hasFailures()) {
+                logger.warn("Not advancing checkpoint of river [{}], as {} bulk actions have failed", riverName,
+                        failures.getAsLong() - failuresAtStart);
+                return;
+            }
+            Map<String, Object> source = new HashMap<>();
+            source.put("fingerprint", fingerprint);
+            source.put("start_time", startTime);
+            source.put("timestamp", System.currentTimeMillis());
+            source.put("positions", new HashMap<>(positions));
+            client.prepareIndex(INDEX, riverName, ID).setSource(source).execute().actionGet();
+            logger.debug("Wrote checkpoint of river [{}] with {} positions", riverName, positions.size());
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.warn("Could not write checkpoint of river [{}]: {}", riverName, e.getLocalizedMessage());
+        } finally {
+            lastCommit = System.currentTimeMillis();
+            gate.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes the checkpoint, once the harvest has completed
+     */
+    public void clear() {
+        positions.clear();
+        try {
+            client.prepareDelete(INDEX, riverName, ID).execute().actionGet();
+        } catch (Exception e) {
+            logger.warn("Could not delete checkpoint of river [{}]: {}", riverName, e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Waits until everything handed to the pipeline has been indexed
+     */
+    public interface Flusher {
+        void flush() throws InterruptedException, ExecutionException;
+    }
+
+    /**
+     * A unit of work of a producer
+     */
+    public interface Unit<T, E extends Exception> {
+        T run() throws E;
+    }
+}
@@ -0,0 +1,260 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the harvests of all rivers on a node with a bounded number of threads, such that the
+ * cost of running many rivers stays predictable however many of them there are.
+ * <p>
+ * Runs which cannot start right away wait in a queue per river. Whenever a thread becomes
+ * free, it takes the next run of the river which has used the least harvesting time relative
+ * to its weight, so a river with weight 2 gets about twice the time of a river with weight 1
+ * while both have runs waiting. A river which starts or wakes up after being idle starts at
+ * the virtual time of the executor, i.e the usage of the least served river, so it is neither
+ * starved nor able to catch up on time it did not use. The virtual time of the executor never
+ * goes back, and it is kept while all rivers are idle.
+ * <p>
+ * A river which is cancelled stays cancelled: its waiting and scheduled runs are dropped, a run
+ * which is about to start does not start and its active run is interrupted. A river started
+ * again under the same name gets a new queue.
+ */
+public class HarvestExecutor implements Closeable {
+    private final ESLogger logger = Loggers.getLogger(HarvestExecutor.class);
+    private final int maxConcurrentRuns;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+    private final Map<String, RiverQueue> rivers = new HashMap<>();
+    private int running = 0;
+    private double virtualTime = 0;
+
+    /**
+     * @param name              name of the harvesting threads
+     * @param maxConcurrentRuns maximum number of harvests running at the same time on this node
+     */
+    public HarvestExecutor(String name, int maxConcurrentRuns) {
+        this.maxConcurrentRuns = Math.max(maxConcurrentRuns, 1);
+        this.workers = Executors.newFixedThreadPool(this.maxConcurrentRuns, EsExecutors.daemonThreadFactory(name));
+        this.timer = Executors.newSingleThreadScheduledExecutor(EsExecutors.daemonThreadFactory(name + "[timer]"));
+    }
+
+    /**
+     * Queues a run of a river, which starts as soon as it gets its turn
+     *
+     * @param river  name of the river
+     * @param weight share of harvesting time of the river relative to other rivers
+     * @param run    the run
+     */
+    public synchronized void submit(String river, int weight, Runnable run) {
+        RiverQueue queue = rivers.get(river);
+        if (queue == null || queue.cancelled) {
+            //A cancelled river whose last run is still ending is replaced by the river started again
+            queue = new RiverQueue(river);
+            rivers.put(river, queue);
+        }
+        submit(queue, weight, run);
+    }
+
+    /**
+     * Queues a run of a river after a delay. The run is dropped if the river is cancelled
+     * meanwhile.
+     *
+     * @param river       name of the river
+     * @param weight      share of harvesting time of the river relative to other rivers
+     * @param run         the run
+     * @param delayMillis delay before the run is queued
+     */
+    public synchronized void schedule(String river, int weight, Runnable run, long delayMillis) {
+        RiverQueue queue = rivers.get(river);
+        if (queue == null) {
+            queue = new RiverQueue(river);
+            rivers.put(river, queue);
+        } else if (queue.cancelled) {
+            return;
+        }
+        RiverQueue scheduledQueue = queue;
+        ScheduledFuture<?> future = timer.schedule(() -> {
+            synchronized (this) {
+                scheduledQueue.scheduled.removeIf(ScheduledFuture::isDone);
+                //The queue is taken when the run is scheduled, so a cancelled river never gets it back
+                if (!scheduledQueue.cancelled) {
+                    submit(scheduledQueue, weight, run);
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        queue.scheduled.add(future);
+    }
+
+    /**
+     * Cancels a river: drops its waiting and scheduled runs, keeps a run which is about to
+     * start from starting and interrupts its active run, if any. Later runs which the river
+     * schedules or submits to the same queue are dropped.
+     *
+     * @param river name of the river
+     */
+    public synchronized void cancel(String river) {
+        RiverQueue queue = rivers.get(river);
+        if (queue == null) {
+            return;
+        }
+        queue.pending.clear();
+        queue.cancelled = true;
+        for (ScheduledFuture<?> future : queue.scheduled) {
+            future.cancel(false);
+        }
+        queue.scheduled.clear();
+        if (queue.thread != null) {
+            queue.thread.interrupt();
+        } else if (!queue.starting) {
+            rivers.remove(river);
+        }
+    }
+
+    /**
+     * Gets number of runs which wait for a free thread
+     */
+    public synchronized int getNumberOfPendingRuns() {
+        int pending = 0;
+        for (RiverQueue queue : rivers.values()) {
+            pending += queue.pending.size();
+        }
+        return pending;
+    }
+
+    /**
+     * Gets number of runs which are active
+     */
+    public synchronized int getNumberOfActiveRuns() {
+        return running;
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private void submit(RiverQueue queue, int weight, Runnable run) {
+        if (queue.isIdle()) {
+            //An idle river does not keep credit for the time it did not use
+            queue.virtualTime = Math.max(queue.virtualTime, advanceVirtualTime());
+        }
+        queue.weight = Math.max(weight, 1);
+        queue.pending.add(run);
+        dispatch();
+    }
+
+    /**
+     * Starts waiting runs while there are free threads, taking runs of the least served
+     * rivers first. A river has at most one active run.
+     */
+    private void dispatch() {
+        while (running < maxConcurrentRuns) {
+            RiverQueue next = null;
+            for (RiverQueue queue : rivers.values()) {
+                if (queue.thread == null && !queue.starting && !queue.pending.isEmpty()
+                        && (next == null || queue.virtualTime < next.virtualTime)) {
+                    next = queue;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            RiverQueue queue = next;
+            Runnable run = queue.pending.poll();
+            queue.starting = true;
+            running++;
+            workers.execute(() -> execute(queue, run));
+        }
+    }
+
+    private void execute(RiverQueue queue, Runnable run) {
+        synchronized (this) {
+            queue.starting = false;
+            if (queue.cancelled) {
+                //The river was cancelled after the run was taken from its queue
+                running--;
+                rivers.remove(queue.river, queue);
+                dispatch();
+                return;
+            }
+            queue.thread = Thread.currentThread();
+        }
+        long startTime = System.nanoTime();
+        try {
+            run.run();
+        } catch (Exception e) {
+            logger.error("Harvest of river [{}] failed: {}", e, queue.river, e.getLocalizedMessage());
+        } finally {
+            synchronized (this) {
+                //Time of a river with a higher weight counts less
+                queue.virtualTime += (double) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) / queue.weight;
+                //Counted while the river is still active, such that the time of a lone run is not lost
+                advanceVirtualTime();
+                queue.thread = null;
+                running--;
+                if (queue.cancelled && queue.isIdle()) {
+                    rivers.remove(queue.river, queue);
+                }
+                //Clear an interrupt of a cancelled river before the thread takes the next run
+                Thread.interrupted();
+                dispatch();
+            }
+        }
+    }
+
+    /**
+     * Advances the virtual time of the executor to that of the least served river which is
+     * active or waiting, if there is one
+     *
+     * @return virtual time of the executor
+     */
+    private double advanceVirtualTime() {
+        double minimum = Double.MAX_VALUE;
+        for (RiverQueue queue : rivers.values()) {
+            if (!queue.isIdle()) {
+                minimum = Math.min(minimum, queue.virtualTime);
+            }
+        }
+        if (minimum != Double.MAX_VALUE) {
+            virtualTime = Math.max(virtualTime, minimum);
+        }
+        return virtualTime;
+    }
+
+    /**
+     * Waiting runs of a river and its harvesting time divided by its weight
+     */
+    private static class RiverQueue {
+        private final String river;
+        private final Deque<Runnable> pending = new ArrayDeque<>();
+        private final Set<ScheduledFuture<?>> scheduled = new HashSet<>();
+        private int weight = 1;
+        private double virtualTime = 0;
+        private boolean starting = false;
+        private boolean cancelled = false;
+        private Thread thread;
+
+        RiverQueue(String river) {
+            this.river = river;
+        }
+
+        boolean isIdle() {
+            return thread == null && !starting && pending.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.ResIterator;
+import org.apache.jena.rdf.model.Resource;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * A staged harvest pipeline in which fetched models are grouped by subject, turned into
+ * documents and submitted to a {@link BulkIndexer}:
+ * <pre>
+ *   fetch (callers) -> [models] -> grouping -> [subjects] -> building -> [requests] -> indexing
+ * </pre>
+ * Stages are connected by bounded queues and each stage has its own threads, such that
+ * the stages overlap and a slow stage blocks the stages upstream of it instead of
+ * letting work pile up in memory. A subject which cannot be grouped, built or completed is
+ * counted as a failed action of the {@link BulkIndexer}, such that the harvest reports it like
+ * a document which failed in a bulk. An error thrown by a stage does not stop its thread, but
+ * fails the pipeline, such that {@link #flush()} reports it instead of waiting forever.
+ */
+public class HarvestPipeline implements Closeable {
+    private static final ESLogger logger = Loggers.getLogger(HarvestPipeline.class);
+    private static final Work POISON = new Work(null, null);
+    private static final ActionRequest POISON_REQUEST = new DeleteRequest();
+    private final BulkIndexer bulkIndexer;
+    private final BlockingQueue<Work> models;
+    private final BlockingQueue<Work> subjects;
+    private final BlockingQueue<ActionRequest> requests;
+    private final List<Thread> groupingThreads = new ArrayList<>();
+    private final List<Thread> buildingThreads = new ArrayList<>();
+    private final List<Thread> indexingThreads = new ArrayList<>();
+    private final AtomicLong numberOfTriples = new AtomicLong();
+    private final AtomicLong numberOfDocuments = new AtomicLong();
+    private final Object lock = new Object();
+    private long inFlight = 0;
+    private long deferred = 0;
+    private boolean closed = false;
+    private Throwable failure;
+
+    /**
+     * Creates and starts a pipeline
+     *
+     * @param name           name used for the stage threads
+     * @param groupThreads   number of threads grouping models by subject
+     * @param buildThreads   number of threads building documents
+     * @param indexThreads   number of threads submitting documents to the bulk indexer
+     * @param queueSize      capacity of the queues of subjects and of documents
+     * @param bulkIndexer    indexer to submit documents to
+     */
+    public HarvestPipeline(String name, int groupThreads, int buildThreads, int indexThreads,
+                           int queueSize, BulkIndexer bulkIndexer) {
+        this(name, groupThreads, buildThreads, indexThreads, queueSize, bulkIndexer, UnaryOperator.identity());
+    }
+
+    /**
+     * Creates and starts a pipeline whose building workers run inside a given context,
+     * e.g a read transaction which is held for the lifetime of the worker
+     *
+     * @param name           name used for the stage threads
+     * @param groupThreads   number of threads grouping models by subject
+     * @param buildThreads   number of threads building documents
+     * @param indexThreads   number of threads submitting documents to the bulk indexer
+     * @param queueSize      capacity of the queues of subjects and of documents
+     * @param bulkIndexer    indexer to submit documents to
+     * @param buildContext   wraps the loop of each building worker
+     */
+    public HarvestPipeline(String name, int groupThreads, int buildThreads, int indexThreads,
+                           int queueSize, BulkIndexer bulkIndexer, UnaryOperator<Runnable> buildContext) {
+        this.bulkIndexer = bulkIndexer;
+        this.models = new ArrayBlockingQueue<>(Math.max(groupThreads, 1));
+        this.subjects = new ArrayBlockingQueue<>(Math.max(queueSize, 1));
+        this.requests = new ArrayBlockingQueue<>(Math.max(queueSize, 1));
+
+        ThreadFactory groupFactory = EsExecutors.daemonThreadFactory(name + "[group]");
+        ThreadFactory buildFactory = EsExecutors.daemonThreadFactory(name + "[build]");
+        ThreadFactory indexFactory = EsExecutors.daemonThreadFactory(name + "[index]");
+        for (int i = 0; i < Math.max(groupThreads, 1); i++) {
+            groupingThreads.add(groupFactory.newThread(this::group));
+        }
+        for (int i = 0; i < Math.max(buildThreads, 1); i++) {
+            buildingThreads.add(buildFactory.newThread(buildContext.apply(this::build)));
+        }
+        for (int i = 0; i < Math.max(indexThreads, 1); i++) {
+            indexingThreads.add(indexFactory.newThread(this::index));
+        }
+        groupingThreads.forEach(Thread::start);
+        buildingThreads.forEach(Thread::start);
+        indexingThreads.forEach(Thread::start);
+    }
+
+    /**
+     * Submits a fetched model. The model is split by subject and each subject is
+     * turned into a document by the given builder. Blocks while the pipeline is full.
+     *
+     * @param model   a fetched model
+     * @param builder a function which turns a model of a single subject into a request,
+     *                or returns null to skip it
+     */
+    public void submit(Model model, Function<Model, ActionRequest> builder) throws InterruptedException {
+        if (model == null || model.isEmpty()) {
+            return;
+        }
+        numberOfTriples.addAndGet(model.size());
+        begin(1);
+        models.put(new Work(model, builder));
+    }
+
+    /**
+     * Submits a model which contains a single subject, skipping the grouping stage.
+     * Blocks while the pipeline is full.
+     *
+     * @param subjectModel a model of a single subject
+     * @param builder      a function which turns the model into a request, or returns null to skip it
+     */
+    public void submitSubject(Model subjectModel, Function<Model, ActionRequest> builder) throws InterruptedException {
+        numberOfTriples.addAndGet(subjectModel.size());
+        begin(1);
+        subjects.put(new Work(subjectModel, builder));
+    }
+
+    /**
+     * Submits a request which is completed later on, e.g once content it depends on has been
+     * fetched. The request is handed to the indexing stage when it completes, and the pipeline
+     * is neither flushed nor closed before that.
+     *
+     * @param request a request to be completed, which may complete with null to skip it
+     */
+    public void submitLater(CompletionStage<? extends ActionRequest> request) {
+        synchronized (lock) {
+            inFlight++;
+            deferred++;
+        }
+        request.whenComplete((completed, e) -> {
+            try {
+                if (e != null) {
+                    logger.error("Exception while completing document: {}", e.getLocalizedMessage());
+                    bulkIndexer.addFailures(1);
+                } else if (completed != null) {
+                    begin(1);
+                    requests.put(completed);
+                }
+            } catch (InterruptedException ie) {
+                end(1);
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (lock) {
+                    deferred--;
+                    inFlight--;
+                    lock.notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until everything submitted so far has been handed to the bulk indexer, and flushes it
+     *
+     * @throws ExecutionException if a stage of the pipeline has failed
+     */
+    public void flush() throws InterruptedException, ExecutionException {
+        synchronized (lock) {
+            while (inFlight > 0 && failure == null) {
+                lock.wait();
+            }
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+        }
+        bulkIndexer.flush();
+    }
+
+    /**
+     * Whether a stage of the pipeline has failed, such that some of the submitted subjects
+     * may not have been indexed
+     */
+    public boolean hasFailed() {
+        synchronized (lock) {
+            return failure != null;
+        }
+    }
+
+    /**
+     * Gets number of triples submitted to this pipeline
+     */
+    public long getNumberOfTriples() {
+        return numberOfTriples.get();
+    }
+
+    /**
+     * Gets number of documents handed to the bulk indexer
+     */
+    public long getNumberOfDocuments() {
+        return numberOfDocuments.get();
+    }
+
+    /**
+     * Drains all stages, stops their threads and flushes the bulk indexer
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            stop(groupingThreads, models, POISON);
+            stop(buildingThreads, subjects, POISON);
+            //Requests completed later on still need the indexing stage
+            synchronized (lock) {
+                while (deferred > 0) {
+                    lock.wait();
+                }
+            }
+            stop(indexingThreads, requests, POISON_REQUEST);
+            bulkIndexer.flush();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while closing harvest pipeline");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static <T> void stop(List<Thread> threads, BlockingQueue<T> queue, T poison) throws InterruptedException {
+        for (int i = 0; i < threads.size(); i++) {
+            queue.put(poison);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Grouping stage: splits models by subject
+     */
+    private void group() {
+        try {
+            for (Work work = models.take(); work != POISON; work = models.take()) {
+                try {
+                    ResIterator it = work.model.listSubjects();
+                    while (it.hasNext()) {
+                        Resource subject = it.nextResource();
+                        Model subjectModel = ModelFactory.createDefaultModel();
+                        subjectModel.add(work.model.listStatements(subject, null, (RDFNode) null));
+                        begin(1);
+                        subjects.put(new Work(subjectModel, work.builder));
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    logger.error("Exception while grouping model by subject: {}", e.getLocalizedMessage());
+                    //Subjects of the model which were not handed on are lost
+                    bulkIndexer.addFailures(1);
+                } catch (Throwable t) {
+                    fail("grouping model by subject", t);
+                } finally {
+                    end(1);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Building stage: turns subjects into requests
+     */
+    private void build() {
+        try {
+            for (Work work = subjects.take(); work != POISON; work = subjects.take()) {
+                try {
+                    ActionRequest request = work.builder.apply(work.model);
+                    if (request != null) {
+                        begin(1);
+                        requests.put(request);
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    logger.error("Exception while building document: {}", e.getLocalizedMessage());
+                    bulkIndexer.addFailures(1);
+                } catch (Throwable t) {
+                    fail("building document", t);
+                } finally {
+                    end(1);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Indexing stage: submits requests to the bulk indexer
+     */
+    private void index() {
+        try {
+            for (ActionRequest request = requests.take(); request != POISON_REQUEST; request = requests.take()) {
+                try {
+                    bulkIndexer.add(request);
+                    numberOfDocuments.incrementAndGet();
+                } catch (Exception e) {
+                    logger.error("Exception while submitting bulk: {}", e.getLocalizedMessage());
+                    bulkIndexer.addFailures(1);
+                } catch (Throwable t) {
+                    fail("submitting bulk", t);
+                } finally {
+                    end(1);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void fail(String action, Throwable t) {
+        logger.error("Error while {}, failing the harvest pipeline", t, action);
+        synchronized (lock) {
+            if (failure == null) {
+                failure = t;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void begin(long n) {
+        synchronized (lock) {
+            inFlight += n;
+        }
+    }
+
+    private void end(long n) {
+        synchronized (lock) {
+            inFlight -= n;
+            if (inFlight <= 0) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * A model together with the builder which turns its subjects into requests
+     */
+    private static class Work {
+        final Model model;
+        final Function<Model, ActionRequest> builder;
+
+        Work(Model model, Function<Model, ActionRequest> builder) {
+            this.model = model;
+            this.builder = builder;
+        }
+    }
+}
@@ -6,30 +6,56 @@ import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.query.*;
 import org.apache.jena.rdf.model.*;
+import org.apache.jena.riot.Lang;
 import org.apache.jena.riot.RDFDataMgr;
 import org.apache.jena.riot.RDFLanguages;
 import org.apache.jena.riot.RiotException;
+import org.apache.jena.sparql.engine.binding.Binding;
 import org.apache.jena.sparql.engine.http.QueryExceptionHTTP;
-import org.apache.jena.tdb.TDBFactory;
+import org.apache.jena.sparql.expr.E_GreaterThan;
+import org.apache.jena.sparql.expr.E_IsIRI;
+import org.apache.jena.sparql.expr.E_Str;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.syntax.ElementFilter;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.ElasticsearchIllegalStateException;
-import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
-import org.elasticsearch.action.delete.DeleteRequestBuilder;
-import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.hppc.cursors.ObjectObjectCursor;
 import org.elasticsearch.common.lang3.StringUtils;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.river.ubb.settings.Defaults;
 import org.elasticsearch.river.ubb.settings.RiverUtils;
 import org.elasticsearch.river.ubb.utils.FileManager;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.elasticsearch.river.ubb.settings.RiverUtils.*;
@@ -78,22 +104,89 @@ public class Harvester implements Runnable {
     private String syncConditions;
     private String syncTimeProp;
     private Boolean syncOldData;
+    private int syncBatchSize = Defaults.DEFAULT_SYNC_BATCH_SIZE;
+    private int maxSyncBatchSize = Defaults.DEFAULT_MAX_SYNC_BATCH_SIZE;
+    private int syncConcurrency = Defaults.DEFAULT_SYNC_CONCURRENCY;
+    private TimeValue syncTargetLatency = TimeValue.parseTimeValue(Defaults.DEFAULT_SYNC_TARGET_LATENCY, null);
     private Boolean updateDocuments;
     private long numberOfBulkActions;
+    private ByteSizeValue bulkSize = ByteSizeValue.parseBytesSizeValue(Defaults.DEFAULT_BULK_SIZE);
+    private int bulkConcurrentRequests = Defaults.DEFAULT_BULK_CONCURRENT_REQUESTS;
+    private TimeValue bulkFlushInterval = TimeValue.parseTimeValue(Defaults.DEFAULT_BULK_FLUSH_INTERVAL, null);
+    private boolean adaptiveBulk = Defaults.DEFAULT_ADAPTIVE_BULK;
+    private long minBulkActions = Defaults.DEFAULT_MIN_BULK_ACTIONS;
+    private long maxBulkActions = Defaults.DEFAULT_MAX_BULK_ACTIONS;
+    private int maxBulkConcurrentRequests = Defaults.DEFAULT_MAX_BULK_CONCURRENT_REQUESTS;
+    private TimeValue bulkTargetLatency = TimeValue.parseTimeValue(Defaults.DEFAULT_BULK_TARGET_LATENCY, null);
+    private int bulkMaxRetries = Defaults.DEFAULT_NUMBER_OF_RETRY;
     private int maxSuggestInputLength;
     private Client client;
     private String indexName;
     private String typeName;
     private String riverName;
     private String textField;
+    private int textFetchThreads = Defaults.DEFAULT_TEXT_FETCH_THREADS;
+    private int textFetchConnectionsPerHost = Defaults.DEFAULT_TEXT_FETCH_CONNECTIONS_PER_HOST;
+    private int textFetchMaxRetries = Defaults.DEFAULT_NUMBER_OF_RETRY;
+    private TimeValue textFetchTimeout = TimeValue.parseTimeValue(Defaults.DEFAULT_TEXT_FETCH_TIMEOUT, null);
+    private boolean textContentCache = Defaults.DEFAULT_TEXT_CONTENT_CACHE;
+    private long textContentCacheSize = Defaults.DEFAULT_TEXT_CONTENT_CACHE_SIZE;
+    private Path textCachePath;
+    private volatile TextContentFetcher textContentFetcher;
     private String embedResourceUsingProperty;
-    private Boolean closed = false;
-    private HashMap<String, String> uriLabelCache;
-    private Dataset tdbDataset = null;
+    private int embedDepth = Defaults.DEFAULT_EMBED_DEPTH;
+    private int embedBatchSize = Defaults.DEFAULT_EMBED_BATCH_SIZE;
+    private volatile Cache<String, EmbeddedDocument> embeddedDocuments =
+            newEmbeddedDocumentCache(Defaults.DEFAULT_EMBED_CACHE_SIZE);
+    private volatile Boolean closed = false;
+    private long labelCacheSize = Defaults.DEFAULT_LABEL_CACHE_SIZE;
+    private int labelBatchSize = Defaults.DEFAULT_LABEL_BATCH_SIZE;
+    private boolean persistentLabels = Defaults.DEFAULT_PERSISTENT_LABELS;
+    private TimeValue persistentLabelsTTL = TimeValue.parseTimeValue(Defaults.DEFAULT_PERSISTENT_LABELS_TTL, null);
+    private Path labelStorePath;
+    private volatile PersistentLabelStore labelStore;
+    private boolean preloadLabels = Defaults.DEFAULT_PRELOAD_LABELS;
+    private volatile LabelDictionary labelDictionary;
+    private volatile QueryTemplates queryTemplates;
+    private boolean skipUnchanged = Defaults.DEFAULT_SKIP_UNCHANGED;
+    private Path fingerprintStorePath;
+    private volatile FingerprintStore fingerprintStore;
+    private String fingerprintIndexUUID;
+    //Keyed by the request itself, such that requests for the same document do not take each other's fingerprint
+    private final Map<ActionRequest, String> pendingFingerprints = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final AtomicLong numberOfUnchangedDocuments = new AtomicLong();
+    private final AtomicLong numberOfFailedQueries = new AtomicLong();
+    private boolean checkpoints = Defaults.DEFAULT_CHECKPOINTS;
+    private TimeValue checkpointInterval = TimeValue.parseTimeValue(Defaults.DEFAULT_CHECKPOINT_INTERVAL, null);
+    private volatile HarvestCheckpoints harvestCheckpoints;
+    private TimeValue syncInterval = null;
+    private TimeValue syncJitter = TimeValue.timeValueMillis(0);
+    //A run never starts while the previous one of the same river is still active
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile boolean harvestLocalSourcesOnSync = false;
+    private volatile LabelCache labelCache = new LabelCache(labelCacheSize);
+    private volatile TDBStore tdbStore = null;
     private String queryPath;
     private boolean deleteRiverMappingAfterCreation = false;
     private boolean generateSortLabel = false;
     private long timeStarted = 0;
+    private boolean streamDumps = false;
+    private Lang dumpLang = RDFLanguages.RDFXML;
+    private boolean cacheDumps = Defaults.DEFAULT_CACHE_DUMPS;
+    private Path dumpCachePath;
+    private int dumpParseThreads = Runtime.getRuntime().availableProcessors();
+    private QueryPager.Mode queryPaging = QueryPager.Mode.NONE;
+    private long pageSize = Defaults.DEFAULT_QUERY_LIMIT;
+    private int harvestThreads = Defaults.DEFAULT_HARVEST_THREADS;
+    private int tdbPartitions = Defaults.DEFAULT_TDB_PARTITIONS;
+    private int maxConcurrentQueriesPerEndpoint = Defaults.DEFAULT_MAX_CONCURRENT_QUERIES_PER_ENDPOINT;
+    private final Map<String, Semaphore> sourcePermits = new ConcurrentHashMap<>();
+    private volatile BulkIndexer bulkIndexer;
+    private volatile HarvestPipeline pipeline;
+    private int pipelineGroupThreads = Defaults.DEFAULT_PIPELINE_GROUP_THREADS;
+    private int pipelineBuildThreads = Defaults.DEFAULT_PIPELINE_BUILD_THREADS;
+    private int pipelineIndexThreads = Defaults.DEFAULT_PIPELINE_INDEX_THREADS;
+    private int pipelineQueueSize = Defaults.DEFAULT_PIPELINE_QUEUE_SIZE;
 
 
     /**
@@ -104,11 +197,76 @@ public class Harvester implements Runnable {
      */
     public Harvester rdfUrl(String url) {
         url = url.substring(1, url.length() - 1);
-        uriLabelCache = new HashMap<>();
         rdfUrls = new HashSet<>(Arrays.asList(url.split(",")));
         return this;
     }
 
+    /**
+     * Sets whether dumps should be parsed as a stream of triples instead of
+     * being loaded into memory as a whole
+     *
+     * @param flag true to stream dumps
+     * @return the same {@link Harvester} with the {@link #streamDumps} parameter set
+     */
+    public Harvester rdfStreamDumps(boolean flag) {
+        this.streamDumps = flag;
+        return this;
+    }
+
+    /**
+     * Sets whether dumps should be kept in a local cache, such that dumps which have not
+     * changed since they were last harvested are skipped
+     *
+     * @param flag true to cache dumps
+     * @return the same {@link Harvester} with the {@link #cacheDumps} parameter set
+     */
+    public Harvester cacheDumps(boolean flag) {
+        this.cacheDumps = flag;
+        return this;
+    }
+
+    /**
+     * Sets the directory where dumps are cached
+     *
+     * @param path a directory, usually under the data path of the node
+     * @return the same {@link Harvester} with the {@link #dumpCachePath} parameter set
+     */
+    public Harvester dumpCachePath(Path path) {
+        this.dumpCachePath = path;
+        return this;
+    }
+
+    /**
+     * Sets the format of the dumps in {@link #rdfUrls}
+     *
+     * @param format a language name, e.g "RDF/XML", "N-Triples" or "N-Quads"
+     * @return the same {@link Harvester} with the {@link #dumpLang} parameter set
+     */
+    public Harvester rdfDumpFormat(String format) {
+        Lang lang = RDFLanguages.nameToLang(format);
+        if (lang == null) {
+            logger.error("Bad dump format: {}", format);
+            throw new IllegalArgumentException("Unknown dump format [" + format + "]");
+        }
+        this.dumpLang = lang;
+        return this;
+    }
+
+    /**
+     * Sets number of threads used to parse line based dumps in parallel
+     *
+     * @param threads number of threads
+     * @return the same {@link Harvester} with the {@link #dumpParseThreads} parameter set
+     */
+    public Harvester dumpParseThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Expected positive number for " +
+                    "dumpParseThreads but found [ " + threads + "]");
+        }
+        this.dumpParseThreads = threads;
+        return this;
+    }
+
     /**
      * Sets the {@link Harvester}'s {@link #rdfEndpoint} parameter
      *
@@ -137,23 +295,264 @@ public class Harvester implements Runnable {
         return timeStarted;
     }
 
+    /**
+     * Getter for the TDB store of this river, which is opened on first use
+     * and stays open until the river is closed
+     *
+     * @return a TDB store or null if no TDB location is set
+     */
+    public synchronized TDBStore getTDBStore() {
+        if (tdbStore == null && Strings.hasText(tdbLocation)) {
+            tdbStore = new TDBStore(tdbLocation.trim());
+        }
+        return tdbStore;
+    }
+
     /**
      * Getter for Dataset
      *
-     * @return a RDF dataset
+     * @return a RDF dataset or null if no TDB location is set
+     * @deprecated use {@link #getTDBStore()}, which runs reads inside a transaction
      */
+    @Deprecated
     public Dataset getTDBDataset() {
-        return tdbDataset;
+        TDBStore store = getTDBStore();
+        return store == null ? null : store.getDataset();
     }
 
     /**
      * Setter for TDB dataset
      *
      * @param ds, a RDF dataset
+     * @deprecated the TDB store is opened from {@link #tdbLocation} on first use
      */
-    public void setTDBDataset(Dataset ds) {
+    @Deprecated
+    public synchronized void setTDBDataset(Dataset ds) {
         if (ds != null) {
-            this.tdbDataset = ds;
+            if (tdbStore != null && tdbStore.getDataset() != ds) {
+                tdbStore.close();
+            }
+            this.tdbStore = new TDBStore(tdbLocation == null ? "" : tdbLocation.trim(), ds);
+        }
+    }
+
+    /**
+     * Opens the on-disk label store, if labels should be kept across runs
+     */
+    private void openLabelStore() {
+        if (!persistentLabels || labelStorePath == null || labelStore != null) {
+            return;
+        }
+        try {
+            //Labels looked up with other label properties, language or source are not reused
+            String settings = "uriDescription=" + uriDescriptionList + ";language=" + language
+                    + ";endpoint=" + rdfEndpoint + ";tdb=" + tdbLocation;
+            labelStore = new PersistentLabelStore(labelStorePath, settings, persistentLabelsTTL);
+        } catch (IOException e) {
+            logger.error("Could not open label store [{}], labels will not be kept across runs. Details: {}",
+                    labelStorePath, e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Closes the on-disk label store, if it was opened
+     */
+    private void closeLabelStore() {
+        PersistentLabelStore store = labelStore;
+        labelStore = null;
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                logger.warn("Could not close label store [{}]: {}", labelStorePath, e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates the checkpoints of a run, if progress is to be checkpointed
+     *
+     * @param harvestPipeline pipeline which is flushed before each checkpoint
+     * @return checkpoints or null if progress is not checkpointed
+     */
+    private HarvestCheckpoints openCheckpoints(HarvestPipeline harvestPipeline) {
+        if (!checkpoints) {
+            return null;
+        }
+        //Checkpoints are only resumed with the same sources and targets
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("indexAll", indexAll);
+        settings.put("index", indexName + "/" + typeName);
+        settings.put("endpoint", rdfEndpoint);
+        settings.put("tdb", tdbLocation);
+        settings.put("queries", rdfQueries);
+        settings.put("queryPath", queryPath);
+        settings.put("uris", rdfUrls);
+        settings.put("paging", queryPaging + "/" + pageSize);
+        settings.put("dumpParseThreads", dumpParseThreads);
+        settings.put("startTime", startTime);
+        settings.put("syncConditions", syncConditions);
+        return new HarvestCheckpoints(client, riverName, FingerprintStore.fingerprint(settings),
+                checkpointInterval, harvestPipeline::flush, bulkIndexer::getNumberOfFailures);
+    }
+
+    /**
+     * Gets the position from which a source resumes
+     *
+     * @param source key of a source
+     * @return the position or null if the source starts from the beginning
+     */
+    private String getCheckpoint(String source) {
+        HarvestCheckpoints current = harvestCheckpoints;
+        return current == null ? null : current.get(source);
+    }
+
+    /**
+     * Records the position from which a source would resume. Must not be called while
+     * submitting to the pipeline.
+     *
+     * @param source   key of a source
+     * @param position position after the work which has been submitted
+     */
+    private void checkpoint(String source, String position) {
+        HarvestCheckpoints current = harvestCheckpoints;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.update(source, position);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Submits to the pipeline as a unit of work, such that no checkpoint is written meanwhile
+     */
+    private <T> T submitToPipeline(HarvestCheckpoints.Unit<T, InterruptedException> submission)
+            throws InterruptedException {
+        HarvestCheckpoints current = harvestCheckpoints;
+        return current == null ? submission.run() : current.run(submission);
+    }
+
+    /**
+     * Opens the store of fingerprints of indexed documents, if unchanged documents are to be skipped.
+     * A store which was kept from an earlier run is opened again if the index has been recreated
+     * since, and no store is opened while the index does not exist.
+     */
+    private void openFingerprintStore() {
+        if (!skipUnchanged || fingerprintStorePath == null) {
+            return;
+        }
+        String indexUUID = getIndexUUID();
+        if (fingerprintStore != null && Objects.equals(indexUUID, fingerprintIndexUUID)) {
+            return;
+        }
+        closeFingerprintStore();
+        if (indexUUID == null) {
+            logger.info("Index [{}] does not exist yet, all documents will be indexed", indexName);
+            return;
+        }
+        try {
+            fingerprintStore = new FingerprintStore(fingerprintStorePath, indexUUID);
+            fingerprintIndexUUID = indexUUID;
+        } catch (IOException e) {
+            logger.error("Could not open fingerprint store [{}], all documents will be indexed. Details: {}",
+                    fingerprintStorePath, e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Closes the store of fingerprints of indexed documents, if it was opened
+     */
+    private void closeFingerprintStore() {
+        FingerprintStore store = fingerprintStore;
+        fingerprintStore = null;
+        fingerprintIndexUUID = null;
+        pendingFingerprints.clear();
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                logger.warn("Could not close fingerprint store [{}]: {}", fingerprintStorePath, e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Records fingerprints of documents once they are indexed, and forgets fingerprints of
+     * deleted documents. Fingerprints of failed documents are dropped, such that they are
+     * sent again on the next run.
+     */
+    private class FingerprintListener implements BulkIndexer.Listener {
+        private final FingerprintStore store;
+
+        FingerprintListener(FingerprintStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public void onSucceeded(ActionRequest request) {
+            if (request instanceof DeleteRequest) {
+                DeleteRequest delete = (DeleteRequest) request;
+                store.remove(delete.index(), delete.type(), delete.id());
+            } else if (request instanceof IndexRequest) {
+                IndexRequest index = (IndexRequest) request;
+                commitFingerprint(request, index.index(), index.type(), index.id());
+            } else if (request instanceof UpdateRequest) {
+                UpdateRequest update = (UpdateRequest) request;
+                commitFingerprint(request, update.index(), update.type(), update.id());
+            }
+        }
+
+        @Override
+        public void onFailed(ActionRequest request) {
+            pendingFingerprints.remove(request);
+        }
+
+        private void commitFingerprint(ActionRequest request, String index, String type, String id) {
+            String fingerprint = pendingFingerprints.remove(request);
+            if (fingerprint != null) {
+                store.put(index, type, id, fingerprint);
+            }
+        }
+    }
+
+    /**
+     * Starts fetching threads for content of {@link #textField} URLs, if there is such a field
+     */
+    private void openTextContentFetcher() {
+        if (!Strings.hasText(textField) || textContentFetcher != null) {
+            return;
+        }
+        Path cachePath = textContentCache ? textCachePath : null;
+        try {
+            textContentFetcher = new TextContentFetcher("ubbRiver[" + riverName + "]", textFetchThreads,
+                    textFetchConnectionsPerHost, textFetchMaxRetries, textFetchTimeout, cachePath, textContentCacheSize);
+        } catch (IOException e) {
+            logger.error("Could not open text content cache [{}], content will be read without fetching threads. " +
+                    "Details: {}", cachePath, e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Stops the fetching threads for content of {@link #textField} URLs, if they were started
+     */
+    private void closeTextContentFetcher() {
+        TextContentFetcher fetcher = textContentFetcher;
+        textContentFetcher = null;
+        if (fetcher != null) {
+            fetcher.close();
+        }
+    }
+
+    /**
+     * Closes the TDB store of this river, if it was opened
+     */
+    public synchronized void closeTDBStore() {
+        if (tdbStore != null) {
+            tdbStore.close();
+            tdbStore = null;
         }
     }
 
@@ -180,11 +579,318 @@ public class Harvester implements Runnable {
         return this;
     }
 
+    /**
+     * Sets how harvest queries are paged, one of "none", "offset" or "keyset"
+     *
+     * @param paging a paging mode
+     * @return the same {@link Harvester} with the {@link #queryPaging} parameter set
+     */
+    public Harvester rdfQueryPaging(String paging) {
+        try {
+            queryPaging = QueryPager.Mode.valueOf(paging.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            logger.error("Bad query paging: {}", paging);
+            throw e;
+        }
+        return this;
+    }
+
+    /**
+     * Sets number of subjects (or solutions) to fetch per page of a harvest query
+     *
+     * @param size page size
+     * @return the same {@link Harvester} with the {@link #pageSize} parameter set
+     */
+    public Harvester rdfPageSize(long size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Expected positive number for " +
+                    "pageSize but found [ " + size + "]");
+        }
+        this.pageSize = size;
+        return this;
+    }
+
+    /**
+     * Sets number of worker threads used to run harvest queries in parallel
+     *
+     * @param threads number of threads
+     * @return the same {@link Harvester} with the {@link #harvestThreads} parameter set
+     */
+    public Harvester harvestThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Expected positive number for " +
+                    "harvestThreads but found [ " + threads + "]");
+        }
+        this.harvestThreads = threads;
+        return this;
+    }
+
+    /**
+     * Sets maximum number of queries that may run at the same time against one endpoint or TDB store
+     *
+     * @param max maximum number of concurrent queries
+     * @return the same {@link Harvester} with the {@link #maxConcurrentQueriesPerEndpoint} parameter set
+     */
+    public Harvester maxConcurrentQueriesPerEndpoint(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("Expected positive number for " +
+                    "maxConcurrentQueriesPerEndpoint but found [ " + max + "]");
+        }
+        this.maxConcurrentQueriesPerEndpoint = max;
+        return this;
+    }
+
+    /**
+     * Sets maximum number of URIs whose labels are cached when describing URIs
+     *
+     * @param size maximum number of URIs, 0 to disable caching
+     * @return the same {@link Harvester} with the {@link #labelCacheSize} parameter set
+     */
+    public Harvester labelCacheSize(long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Expected positive number for labelCacheSize but found [ "
+                    + size + "]");
+        }
+        this.labelCacheSize = size;
+        this.labelCache = newLabelCache();
+        return this;
+    }
+
+    /**
+     * Sets maximum number of URIs whose labels are resolved with a single query
+     *
+     * @param size maximum number of URIs per query, 1 to resolve URIs one by one
+     * @return the same {@link Harvester} with the {@link #labelBatchSize} parameter set
+     */
+    public Harvester labelBatchSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Expected positive number for labelBatchSize but found [ "
+                    + size + "]");
+        }
+        this.labelBatchSize = size;
+        return this;
+    }
+
+    /**
+     * Sets whether labels should be kept on disk across runs, and for how long
+     *
+     * @param enabled whether to keep labels on disk
+     * @param ttl     time after which a label is looked up again, such as "7d"
+     * @return the same {@link Harvester} with the {@link #persistentLabels} parameter set
+     */
+    public Harvester persistentLabels(boolean enabled, String ttl) {
+        this.persistentLabels = enabled;
+        this.persistentLabelsTTL = TimeValue.parseTimeValue(ttl, null);
+        return this;
+    }
+
+    /**
+     * Sets whether all labels should be loaded into memory before harvesting, such that
+     * URIs are described without any lookup
+     *
+     * @param preload whether to preload labels
+     * @return the same {@link Harvester} with the {@link #preloadLabels} parameter set
+     */
+    public Harvester preloadLabels(boolean preload) {
+        this.preloadLabels = preload;
+        return this;
+    }
+
+    /**
+     * Sets whether documents which have not changed since they were last indexed are skipped
+     *
+     * @param flag true to skip unchanged documents
+     * @return the same {@link Harvester} with the {@link #skipUnchanged} parameter set
+     */
+    public Harvester skipUnchanged(boolean flag) {
+        this.skipUnchanged = flag;
+        return this;
+    }
+
+    /**
+     * Sets the directory where fingerprints of indexed documents are kept
+     *
+     * @param path a directory, usually under the data path of the node
+     * @return the same {@link Harvester} with the {@link #fingerprintStorePath} parameter set
+     */
+    public Harvester fingerprintStorePath(Path path) {
+        this.fingerprintStorePath = path;
+        return this;
+    }
+
+    /**
+     * Sets whether progress of a harvest is checkpointed, such that a harvest which is
+     * interrupted resumes where it stopped
+     *
+     * @param enabled  true to write checkpoints
+     * @param interval interval between two checkpoints, such as "1m"
+     * @return the same {@link Harvester} with checkpoint parameters set
+     */
+    public Harvester checkpoints(boolean enabled, String interval) {
+        this.checkpoints = enabled;
+        this.checkpointInterval = TimeValue.parseTimeValue(interval, null);
+        return this;
+    }
+
+    /**
+     * Sets the schedule of a river which keeps running. After the first run, which is a full
+     * harvest or a sync depending on the index type, the river syncs with the endpoint every
+     * interval plus a random delay of up to the jitter, counted from the end of the previous run.
+     *
+     * @param interval delay between two runs, such as "15m", or empty to run only once
+     * @param jitter   maximum random delay added to the interval, such as "1m"
+     * @return the same {@link Harvester} with schedule parameters set
+     */
+    public Harvester syncSchedule(String interval, String jitter) {
+        this.syncInterval = Strings.hasText(interval) ? TimeValue.parseTimeValue(interval, null) : null;
+        this.syncJitter = Strings.hasText(jitter) ? TimeValue.parseTimeValue(jitter, null) : TimeValue.timeValueMillis(0);
+        this.labelCache = newLabelCache();
+        return this;
+    }
+
+    /**
+     * Creates the label cache. Labels of a river which keeps running are looked up again after
+     * a sync interval, such that runs see labels which have changed.
+     */
+    private LabelCache newLabelCache() {
+        return new LabelCache(labelCacheSize, isScheduled() ? syncInterval : null);
+    }
+
+    /**
+     * Whether the river runs repeatedly on a schedule
+     */
+    public boolean isScheduled() {
+        return syncInterval != null && syncInterval.millis() > 0;
+    }
+
+    /**
+     * Gets the delay before the next scheduled run, i.e the interval plus a random jitter
+     *
+     * @return delay in milliseconds
+     */
+    public long getNextRunDelay() {
+        long jitter = syncJitter.millis() > 0 ? ThreadLocalRandom.current().nextLong(syncJitter.millis() + 1) : 0;
+        return syncInterval.millis() + jitter;
+    }
+
+    /**
+     * Sets the directory where labels are kept across runs
+     *
+     * @param path a directory, usually under the data path of the node
+     * @return the same {@link Harvester} with the {@link #labelStorePath} parameter set
+     */
+    public Harvester labelStorePath(Path path) {
+        this.labelStorePath = path;
+        return this;
+    }
+
+    /**
+     * Gets the label cache, e.g for its hit, miss and eviction counters
+     */
+    public LabelCache getLabelCache() {
+        return labelCache;
+    }
+
+    /**
+     * Sets number of partitions of the subject space for harvesting TDB queries in parallel
+     *
+     * @param partitions number of partitions, 1 to harvest each query on a single worker
+     * @return the same {@link Harvester} with the {@link #tdbPartitions} parameter set
+     */
+    public Harvester tdbPartitions(int partitions) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("Expected positive number for tdbPartitions but found [ "
+                    + partitions + "]");
+        }
+        this.tdbPartitions = partitions;
+        return this;
+    }
+
+    /**
+     * Sets number of threads for each stage of the harvest pipeline and the capacity
+     * of the queues between the stages
+     *
+     * @param groupThreads threads grouping fetched models by subject
+     * @param buildThreads threads building documents
+     * @param indexThreads threads submitting documents to bulks
+     * @param queueSize    capacity of the queues between stages
+     * @return the same {@link Harvester} with the pipeline parameters set
+     */
+    public Harvester pipeline(int groupThreads, int buildThreads, int indexThreads, int queueSize) {
+        if (groupThreads < 1 || buildThreads < 1 || indexThreads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("Expected positive numbers for pipeline settings but found [ "
+                    + groupThreads + ", " + buildThreads + ", " + indexThreads + ", " + queueSize + "]");
+        }
+        this.pipelineGroupThreads = groupThreads;
+        this.pipelineBuildThreads = buildThreads;
+        this.pipelineIndexThreads = indexThreads;
+        this.pipelineQueueSize = queueSize;
+        return this;
+    }
+
     public Harvester textField(String extractField) {
         this.textField = extractField;
         return this;
     }
 
+    /**
+     * Sets how content of {@link #textField} URLs is fetched
+     *
+     * @param threads            number of threads fetching content
+     * @param connectionsPerHost maximum number of concurrent requests to a host
+     * @param maxRetries         number of times a failed fetch is retried
+     * @param timeout            connect and read timeout of a request, such as "30s"
+     * @return the same {@link Harvester} with the text fetching parameters set
+     */
+    public Harvester textFetch(int threads, int connectionsPerHost, int maxRetries, String timeout) {
+        if (threads < 1 || connectionsPerHost < 1) {
+            throw new IllegalArgumentException("Expected positive numbers for textFetchThreads and " +
+                    "textFetchConnectionsPerHost but found [" + threads + ", " + connectionsPerHost + "]");
+        }
+        this.textFetchThreads = threads;
+        this.textFetchConnectionsPerHost = connectionsPerHost;
+        this.textFetchMaxRetries = maxRetries;
+        this.textFetchTimeout = TimeValue.parseTimeValue(timeout, null);
+        return this;
+    }
+
+    /**
+     * Sets whether fetched content of {@link #textField} URLs is cached on disk
+     *
+     * @param enabled whether to cache content
+     * @return the same {@link Harvester} with the {@link #textContentCache} parameter set
+     */
+    public Harvester textContentCache(boolean enabled) {
+        this.textContentCache = enabled;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of {@link #textField} URLs whose content is cached on disk
+     *
+     * @param size maximum number of URLs
+     * @return the same {@link Harvester} with the {@link #textContentCacheSize} parameter set
+     */
+    public Harvester textContentCacheSize(long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Expected positive number for textContentCacheSize but found [ "
+                    + size + " ]");
+        }
+        this.textContentCacheSize = size;
+        return this;
+    }
+
+    /**
+     * Sets the directory where fetched content of {@link #textField} URLs is cached
+     *
+     * @param path a directory, usually under the data path of the node
+     * @return the same {@link Harvester} with the {@link #textCachePath} parameter set
+     */
+    public Harvester textCachePath(Path path) {
+        this.textCachePath = path;
+        return this;
+    }
+
     /**
      * Embed resource to another using this property
      *
@@ -196,6 +902,58 @@ public class Harvester implements Runnable {
         return this;
     }
 
+    /**
+     * Sets how deep resources are embedded into each other
+     *
+     * @param depth maximum number of nested embedded resources, 0 to disable embedding
+     * @return the same {@link Harvester} with the {@link #embedDepth} parameter set
+     */
+    public Harvester embedDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Expected positive number for embedDepth but found [ "
+                    + depth + "]");
+        }
+        this.embedDepth = depth;
+        return this;
+    }
+
+    /**
+     * Sets number of resources to embed which are described with a single query
+     *
+     * @param batchSize number of resources per DESCRIBE query
+     * @return the same {@link Harvester} with the {@link #embedBatchSize} parameter set
+     */
+    public Harvester embedBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Expected positive number for embedBatchSize but found [ "
+                    + batchSize + "]");
+        }
+        this.embedBatchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Sets maximum number of embedded documents which are kept for reuse by other resources
+     *
+     * @param size maximum number of embedded documents, 0 to disable reuse
+     * @return the same {@link Harvester} with a new embedded document cache
+     */
+    public Harvester embedCacheSize(long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Expected positive number for embedCacheSize but found [ "
+                    + size + "]");
+        }
+        this.embeddedDocuments = newEmbeddedDocumentCache(size);
+        return this;
+    }
+
+    private static Cache<String, EmbeddedDocument> newEmbeddedDocumentCache(long size) {
+        return CacheBuilder.newBuilder()
+                .maximumSize(size)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
     /**
      * Sets the {@link Harvester}'s {@link #rdfQueryPath(String)} parameter
      *
@@ -561,6 +1319,28 @@ public class Harvester implements Runnable {
         return this;
     }
 
+    /**
+     * Sets how changed resources are fetched from the endpoint during a sync. Batches start
+     * at a given size and adapt to the latency and failures of the endpoint.
+     *
+     * @param batchSize     initial number of resources per batch
+     * @param maxBatchSize  upper bound of resources per batch
+     * @param concurrency   upper bound of batches in flight, within {@link #maxConcurrentQueriesPerEndpoint}
+     * @param targetLatency batch latency up to which batches are grown, such as "5s"
+     * @return this object with sync batch parameters set
+     */
+    public Harvester rdfSyncBatches(int batchSize, int maxBatchSize, int concurrency, String targetLatency) {
+        if (batchSize < 1 || concurrency < 1) {
+            throw new IllegalArgumentException("Expected positive syncBatchSize and syncConcurrency but found [ "
+                    + batchSize + ", " + concurrency + "]");
+        }
+        this.syncBatchSize = batchSize;
+        this.maxSyncBatchSize = Math.max(maxBatchSize, batchSize);
+        this.syncConcurrency = concurrency;
+        this.syncTargetLatency = TimeValue.parseTimeValue(targetLatency, null);
+        return this;
+    }
+
     /**
      * This flag is set if you want to update the documents instead of
      * indexing.
@@ -582,6 +1362,67 @@ public class Harvester implements Runnable {
         return this;
     }
 
+    /**
+     * @param bulkSize size after which a bulk is sent, such as "5mb"
+     * @return this object with bulkSize parameter set
+     */
+    public Harvester rdfBulkSize(String bulkSize) {
+        this.bulkSize = ByteSizeValue.parseBytesSizeValue(bulkSize);
+        return this;
+    }
+
+    /**
+     * @param concurrentRequests number of bulks in flight at the same time, 0 to send bulks synchronously
+     * @return this object with bulkConcurrentRequests parameter set
+     */
+    public Harvester rdfBulkConcurrentRequests(int concurrentRequests) {
+        if (concurrentRequests < 0) {
+            throw new IllegalArgumentException("Expected positive number for " +
+                    "bulkConcurrentRequests but found [ " + concurrentRequests + "]");
+        }
+        this.bulkConcurrentRequests = concurrentRequests;
+        return this;
+    }
+
+    /**
+     * @param flushInterval interval after which a bulk is sent even if it is not full, such as "5s"
+     * @return this object with bulkFlushInterval parameter set
+     */
+    public Harvester rdfBulkFlushInterval(String flushInterval) {
+        this.bulkFlushInterval = TimeValue.parseTimeValue(flushInterval, null);
+        return this;
+    }
+
+    /**
+     * Sets whether bulk size and number of bulks in flight should adapt to the latency
+     * and rejections of bulks, and the bounds within which they adapt
+     *
+     * @param adaptive                  whether to adapt bulks
+     * @param minBulkActions            lower bound of actions per bulk
+     * @param maxBulkActions            upper bound of actions per bulk
+     * @param maxConcurrentRequests     upper bound of bulks in flight
+     * @param targetLatency             bulk latency up to which bulks are grown, such as "1s"
+     * @return this object with adaptive bulk parameters set
+     */
+    public Harvester rdfAdaptiveBulk(boolean adaptive, long minBulkActions, long maxBulkActions,
+                                     int maxConcurrentRequests, String targetLatency) {
+        this.adaptiveBulk = adaptive;
+        this.minBulkActions = minBulkActions;
+        this.maxBulkActions = maxBulkActions;
+        this.maxBulkConcurrentRequests = maxConcurrentRequests;
+        this.bulkTargetLatency = TimeValue.parseTimeValue(targetLatency, null);
+        return this;
+    }
+
+    /**
+     * @param maxRetries number of times requests rejected by a busy cluster are sent again
+     * @return this object with bulkMaxRetries parameter set
+     */
+    public Harvester rdfBulkMaxRetries(int maxRetries) {
+        this.bulkMaxRetries = maxRetries;
+        return this;
+    }
+
     public Harvester maxSuggestInputLength(int length) {
         if (length < 0) {
             throw new IllegalArgumentException("Expected positive number for " +
@@ -629,16 +1470,27 @@ public class Harvester implements Runnable {
 
     public void setClose(Boolean value) {
         this.closed = value;
+        //Stores kept between scheduled runs are released by the active run, if any
+        if (value && !running.get()) {
+            releaseResources();
+        }
     }
 
-    private void setLastUpdate(Date date) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    private BulkSizeController newBulkSizeController() {
+        if (adaptiveBulk) {
+            return new BulkSizeController(true, numberOfBulkActions, minBulkActions, maxBulkActions,
+                    bulkConcurrentRequests, maxBulkConcurrentRequests, bulkTargetLatency);
+        }
+        return new BulkSizeController(numberOfBulkActions, bulkConcurrentRequests);
+    }
+
+    void setLastUpdate(Date date) {
         BulkRequestBuilder bulkRequest = client.prepareBulk();
         try {
             bulkRequest.add(client.prepareIndex(indexName, "stats", "1")
                     .setSource(jsonBuilder()
                             .startObject()
-                            .field("last_update", sdf.format(date))
+                            .field("last_update", formatLastUpdate(date))
                             .endObject()));
         } catch (IOException ioe) {
             logger.error("Could not add the stats to ES. {}",
@@ -647,21 +1499,140 @@ public class Harvester implements Runnable {
         bulkRequest.execute().actionGet();
     }
 
+    /**
+     * Formats a time the way it is stored in <tt>stats/last_update</tt> and used by a sync
+     */
+    private static String formatLastUpdate(Date date) {
+        return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(date);
+    }
+
+    /**
+     * Runs a harvest, unless the previous run of this river is still active. Stores, caches
+     * and connections are released after the run, or kept for the next run if the river
+     * runs on a schedule.
+     */
     @Override
     public void run() {
+        if (!running.compareAndSet(false, true)) {
+            logger.warn("Previous run of river [{}] is still active, skipping this run", riverName);
+            return;
+        }
+        try {
+            if (!closed) {
+                harvest();
+            }
+        } finally {
+            if (closed || !isScheduled()) {
+                releaseResources();
+            }
+            running.set(false);
+        }
+        //The river may have been closed while the run was releasing the guard
+        if (closed) {
+            releaseResources();
+        }
+    }
+
+    /**
+     * Releases the stores and caches which are kept between scheduled runs
+     */
+    private synchronized void releaseResources() {
+        closeTDBStore();
+        closeLabelStore();
+        closeTextContentFetcher();
+        closeFingerprintStore();
+        labelDictionary = null;
+    }
+
+    void harvest() {
         long currentTime = System.currentTimeMillis();
+        long startedAt = currentTime;
         boolean success;
 
-        if (indexAll) {
-            success = runIndexAll();
-        } else {
-            success = runSync();
+        //All harvest sources share the same pipeline and bulk indexer
+        try (BulkIndexer indexer = new BulkIndexer(client, newBulkSizeController(),
+                bulkSize, bulkFlushInterval, bulkMaxRetries)) {
+            bulkIndexer = indexer;
+            openLabelStore();
+            openTextContentFetcher();
+            openFingerprintStore();
+            numberOfUnchangedDocuments.set(0);
+            numberOfFailedQueries.set(0);
+            if (fingerprintStore != null) {
+                indexer.setListener(new FingerprintListener(fingerprintStore));
+            }
+            //Queries for single resources are parsed once per run, on first use
+            queryTemplates = null;
+            //Embedded resources may have changed since the last run
+            embeddedDocuments.invalidateAll();
+            if (preloadLabels && toDescribeURIs) {
+                //Labels are preloaded again on each run, as they may have changed since the last one
+                labelDictionary = null;
+                labelDictionary = preloadLabels();
+            }
+            //Each building worker holds a TDB read transaction for the whole harvest, for label lookups
+            TDBStore store = getTDBStore();
+            UnaryOperator<Runnable> buildContext = store == null
+                    ? UnaryOperator.identity()
+                    : worker -> () -> store.executeRead(worker);
+            try (HarvestPipeline harvestPipeline = new HarvestPipeline("ubbRiver[" + riverName + "]",
+                    pipelineGroupThreads, pipelineBuildThreads, pipelineIndexThreads, pipelineQueueSize,
+                    indexer, buildContext)) {
+                pipeline = harvestPipeline;
+                HarvestCheckpoints checkpoints = openCheckpoints(harvestPipeline);
+                if (checkpoints != null && checkpoints.load()) {
+                    //Changes made while the interrupted harvest ran must not be missed by a later sync
+                    startedAt = checkpoints.getStartTime();
+                }
+                harvestCheckpoints = checkpoints;
+                if (indexAll) {
+                    success = runIndexAll();
+                } else {
+                    success = runSync();
+                    if (harvestLocalSourcesOnSync && !closed) {
+                        success = runLocalHarvest() && success;
+                    }
+                }
+                harvestCheckpoints = null;
+                if (harvestPipeline.hasFailed()) {
+                    logger.error("Harvest pipeline of river [{}] failed, some documents may not have been indexed",
+                            riverName);
+                    success = false;
+                }
+                if (checkpoints != null && checkpoints.hasFailures()) {
+                    //The checkpoint stays before the failed documents, such that the next run harvests them again
+                    logger.error("Some documents of river [{}] could not be indexed, the harvest resumes from its "
+                            + "last checkpoint on the next run", riverName);
+                    success = false;
+                }
+                if (success && checkpoints != null) {
+                    checkpoints.clear();
+                }
+            }
+            if (success && indexer.getNumberOfFailures() > 0) {
+                //Documents which could not be built or indexed are only harvested again if the last update is kept
+                logger.error("{} actions of river [{}] failed, the run is reported as failed",
+                        indexer.getNumberOfFailures(), riverName);
+                success = false;
+            }
+            logHarvestSummary(currentTime);
         }
         if (success) {
-            setLastUpdate(new Date(currentTime));
+            Date lastUpdate = new Date(startedAt);
+            setLastUpdate(lastUpdate);
+            if (isScheduled() && Strings.hasText(rdfEndpoint) && indexAll) {
+                //Later runs only sync the changes made since the last successful run
+                indexAll = false;
+                //TDB and dumps have no modification times to sync with, they are harvested in full
+                harvestLocalSourcesOnSync = hasLocalSources();
+            }
+            if (isScheduled() && !indexAll) {
+                //The next sync starts where this run started, i.e at the last update
+                startTime = formatLastUpdate(lastUpdate);
+            }
         }
-        //Delete river if specified by a user
-        if (deleteRiverMappingAfterCreation) {
+        //Delete river if specified by a user, unless it keeps running on a schedule
+        if (deleteRiverMappingAfterCreation && !isScheduled()) {
             try {
                 client.admin().indices()
                         .prepareDeleteMapping("_river")
@@ -704,7 +1675,6 @@ public class Harvester implements Runnable {
 
         boolean success = sync();
 
-        closed = true;
         logger.info("Ended synchronization from [{}], for endpoint [{}],"
                         + "index name [{}], type name [{}] with status {}",
                 lastUpdate, rdfEndpoint, indexName, typeName,
@@ -713,283 +1683,324 @@ public class Harvester implements Runnable {
     }
 
     /**
-     * Get a set of unique queryObjName returned from a select query
-     * <p>
-     * Used to retrieve sets of modified objects used in sync
+     * Gets a stream of the URIs selected by a sync query, fetched page by page
+     * from the endpoint, such that at most {@link #pageSize} URIs are held at a time
      *
      * @param rdfQuery     query to execute
-     * @param queryObjName name of the object returned
-     * @return set of values for queryObjectName in the rdfQuery result
+     * @param queryObjName name of the variable holding the URIs
+     * @return URIs selected by the query
      */
-    HashSet<String> executeSyncQuery(String rdfQuery, String queryObjName) {
-        HashSet<String> rdfUrls = new HashSet<String>();
+    SyncUriPager executeSyncQuery(String rdfQuery, String queryObjName) {
+        return new SyncUriPager(rdfQuery, queryObjName, pageSize,
+                query -> QueryExecutionFactory.sparqlService(rdfEndpoint, query));
+    }
 
-        Query query;
-        try {
-            query = QueryFactory.create(rdfQuery);
-        } catch (QueryParseException qpe) {
-            logger.warn(
-                    "Could not parse [{}]. Please provide a relevant quey. {}",
-                    rdfQuery, qpe.getLocalizedMessage());
-            return null;
-        }
+    /**
+     * Starts a harvester with predefined queries to synchronize with the
+     * changes from the SPARQL endpoint
+     *
+     * @return
+     */
+    public boolean sync() {
+        logger.info("Sync resources newer than {}", startTime);
+        String rdfQueryTemplate
+                = "PREFIX xsd:<http://www.w3.org/2001/XMLSchema#> "
+                + "SELECT ?resource WHERE { "
+                + "?resource <%s> ?time . %s"
+                + " FILTER (?time > xsd:dateTime(\"%s\")) }";
+
+        String queryStr = String.format(rdfQueryTemplate, syncTimeProp,
+                syncConditions, startTime);
 
-        QueryExecution qexec = QueryExecutionFactory.sparqlService(
-                rdfEndpoint, query);
+        long failuresBefore = bulkIndexer.getNumberOfFailures();
+        long deletesBefore = bulkIndexer.getNumberOfDeletes();
+        long count = 0;
         try {
-            ResultSet results = qexec.execSelect();
+            /**
+             * If desired, query for old data that has the sync conditions
+             * modified
+             *
+             * This option is useful in the case in which the application
+             * indexes resources that match some conditions. In this case,
+             * if they are modified and no longer match the initial
+             * conditions, they will not be synchronized. When syncOldData
+             * is True, the modified resources that no longer match the
+             * conditions are deleted.
+             *
+             * The endpoint leaves out the matching resources with MINUS,
+             * such that neither set has to be held in memory.
+             */
+            if (this.syncOldData && !HarvestCheckpoints.DONE.equals(getCheckpoint("sync:deletes"))) {
+                String notMatchingTemplate = "PREFIX xsd:<http://www.w3.org/2001/XMLSchema#> "
+                        + "SELECT ?resource WHERE { "
+                        + "?resource <%s> ?time ."
+                        + " FILTER (?time > xsd:dateTime(\"%s\"))"
+                        + " MINUS { ?resource <%s> ?time . %s"
+                        + " FILTER (?time > xsd:dateTime(\"%s\")) } }";
+                Iterator<String> notMatchingUrls = executeSyncQuery(String.format(notMatchingTemplate,
+                        syncTimeProp, startTime, syncTimeProp, syncConditions, startTime), "resource");
+                while (notMatchingUrls.hasNext()) {
+                    deleteNotMatching(notMatchingUrls.next());
+                }
+                checkpoint("sync:deletes", HarvestCheckpoints.DONE);
+            }
 
-            while (results.hasNext()) {
-                QuerySolution sol = results.nextSolution();
-                try {
-                    String value = sol.getResource(queryObjName).toString();
-                    rdfUrls.add(value);
-                } catch (NoSuchElementException nsee) {
-                    logger.error(
-                            "Encountered a NoSuchElementException: "
-                                    + nsee.getLocalizedMessage());
-                    return null;
+            /* Resources are described in batches as their URIs arrive, so we can
+             * make a smaller number of calls to the SPARQL endpoint. An interrupted
+             * sync resumes after the last URI of the last page which was checkpointed. */
+            SyncUriPager matchingUrls = executeSyncQuery(queryStr, "resource")
+                    .resumeAfter(getCheckpoint("sync"));
+            try (SyncBatcher batcher = new SyncBatcher("ubbRiver[" + riverName + "][sync]",
+                    //Starts with one batch in flight and adds a quarter of the maximum at a time
+                    //while the endpoint keeps up, such that the maximum is reached within a few batches
+                    new BulkSizeController(true, syncBatchSize, 1, maxSyncBatchSize,
+                            1, syncConcurrency, syncTargetLatency, Math.max(1, syncConcurrency / 4)),
+                    syncConcurrency, this::syncBatch)) {
+                while (matchingUrls.hasNext()) {
+                    batcher.add(matchingUrls.next());
+                    if (matchingUrls.isPageConsumed() && harvestCheckpoints != null
+                            && harvestCheckpoints.isDue()) {
+                        //All batches of the page must be indexed before it is checkpointed
+                        batcher.finish();
+                        checkpoint("sync", matchingUrls.getLastKey());
+                    }
                 }
+                batcher.finish();
+                count = batcher.getNumberOfUris();
             }
+            //Deletes and updates are only counted once Elasticsearch has acknowledged them
+            pipeline.flush();
+        } catch (ExecutionException e) {
+            logger.error(
+                    "Error while querying for modified content. {}",
+                    e.getCause().getLocalizedMessage());
+            return false;
+        } catch (QueryParseException qpe) {
+            logger.warn(
+                    "Could not parse Sync query. Please provide a relevant query. {}",
+                    qpe.getLocalizedMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while synchronizing");
+            return false;
         } catch (Exception e) {
             logger.error(
-                    "Encountered a [{}] while querying the endpoint for sync",
+                    "Error while querying for modified content. {}",
                     e.getLocalizedMessage());
-            return null;
-        } finally {
-            qexec.close();
+            return false;
         }
-
-        return rdfUrls;
+        long deleted = bulkIndexer.getNumberOfDeletes() - deletesBefore;
+        long failed = bulkIndexer.getNumberOfFailures() - failuresBefore;
+        if (failed > 0) {
+            //The last update is kept, such that the next sync covers the same changes again
+            logger.error("Synchronisation failed: Deleted {}, Updated {}, Failed actions {}",
+                    deleted, count, failed);
+            return false;
+        }
+        logger.info("Finished synchronisation: Deleted {}, Updated {}",
+                deleted, count);
+        return true;
     }
 
     /**
-     * Build a query returning all triples in which members of uris are the
-     * subjects of the triplets.
-     * <p>
-     * If toDescribeURIs is true the query will automatically add logic to
-     * retrieve the labels directly from the SPARQL endpoint.
+     * Deletes a resource which no longer matches the sync conditions. Deletes are sent
+     * in bulks along with the updated documents, failures are reported by the bulk indexer.
      *
-     * @param uris URIs for queried resources
-     * @return a CONSTRUCT query string
+     * @param uri URI of the resource
      */
-    private String getSyncQueryStr(Iterable<String> uris) {
-        StringBuilder uriSetStrBuilder = new StringBuilder();
-        String delimiter = "";
+    private void deleteNotMatching(String uri) {
+        bulkIndexer.add(new DeleteRequest(indexName, typeName, uri));
+        logger.debug("Deleting resource not matching sync properties: {}", uri);
+    }
 
-        uriSetStrBuilder.append("(");
-        for (String uri : uris) {
-            uriSetStrBuilder.append(delimiter).append(String.format("<%s>", uri));
-            delimiter = ", ";
+    /**
+     * Fetches all triples of a batch of resources from the endpoint and indexes them,
+     * holding one of the permits of the endpoint meanwhile
+     *
+     * @param batch URIs of the resources
+     */
+    private void syncBatch(List<String> batch) throws InterruptedException {
+        Query query = getQueryTemplates().syncQuery(batch);
+        Model constructModel = ModelFactory.createDefaultModel();
+        Semaphore permits = getSourcePermits(rdfEndpoint);
+        permits.acquire();
+        try (QueryExecution qexec = QueryExecutionFactory.sparqlService(rdfEndpoint, query)) {
+            qexec.execConstruct(constructModel);
+        } finally {
+            permits.release();
         }
-        uriSetStrBuilder.append(")");
-
-        String uriSet = uriSetStrBuilder.toString();
-
-        /* Get base triplets having any element from uris as subject */
-        StringBuilder queryBuilder = new StringBuilder();
-        queryBuilder.append("CONSTRUCT { ?s ?p ?o } WHERE {")
-                .append("{?s ?p ?o")
-                .append(String.format(" . FILTER (?s in %s )", uriSet));
+        /**
+         * Do not describe URIs when adding the model
+         * to ES, as the query already returned the
+         * correct labels.
+         */
+        addModelToElasticsearch(constructModel, false);
+    }
 
-        /* Perform uri label resolution only if desired */
-        if (!toDescribeURIs) {
-            queryBuilder.append("}}");
-            return queryBuilder.toString();
+    /**
+     * Starts the harvester for queries and/or URLs
+     *
+     * @return
+     */
+    public boolean runIndexAll() {
+        /*logger.info(
+                "Starting RDF harvester: endpoint [{}], TDB [{}] queries [{}],"
+                + "URLs [{}], index name [{}], typeName [{}]",
+                rdfEndpoint, tdbLocation, rdfQueries, rdfUrls, indexName, typeName);
+         */
+        List<Runnable> queryTasks = new ArrayList<>();
+        /*
+         * Harvest from a SPARQL endpoint
+         */
+        if (!rdfEndpoint.trim().isEmpty()) {
+            queryTasks.addAll(getEndpointHarvestTasks());
         }
 
-        /* Filter out properties having a label */
-        int index = 0;
-        for (String prop : uriDescriptionList) {
-            index++;
-            String filterTemplate = " . OPTIONAL { ?o <%s> ?o%d } "
-                    + " . FILTER(!BOUND(?o%d))";
-            queryBuilder.append(String.format(filterTemplate, prop, index, index));
+        /*
+         * Harvest from TDB
+         */
+        if (!tdbLocation.trim().isEmpty()) {
+            queryTasks.addAll(getTDBHarvestTasks(getTDBStore()));
         }
-        queryBuilder.append("}");
+        runConcurrently(queryTasks);
 
-        /* Add labels for filtered out properties */
-        for (String prop : uriDescriptionList) {
-            /* Resolve ?o as being the <prop> for resource ?o1 */
-            String partQueryTemplate = " UNION "
-                    + "{ ?s ?p ?o1"
-                    + " . FILTER (?s in %s)"
-                    + " . ?o1 <%s> ?o }";
-            queryBuilder.append(String.format(partQueryTemplate, uriSet, prop));
+        /*
+         * Harvest from RDF dumps
+         */
+        harvestFromDumps();
+        if (closed) {
+            logger.info("Harvest for river [{}] was stopped before it completed", riverName);
+            return false;
         }
-
-        queryBuilder.append("}");
-        return queryBuilder.toString();
-
+        if (numberOfFailedQueries.get() > 0) {
+            //The last update is kept, such that the next run harvests what was missed
+            logger.error("Harvest for river [{}] completed with {} failed queries",
+                    riverName, numberOfFailedQueries.get());
+            return false;
+        }
+        logger.info("Ended the harvest for river [{}] on index [{}] and type [{}]",
+                riverName, indexName, typeName);
+        return true;
     }
 
     /**
-     * Starts a harvester with predefined queries to synchronize with the
-     * changes from the SPARQL endpoint
+     * Harvests the TDB store and the dumps of the river in full, e.g along with a sync of the endpoint
      *
-     * @return
+     * @return true if the harvest completed without failed queries
      */
-    public boolean sync() {
-        logger.info("Sync resources newer than {}", startTime);
-        String rdfQueryTemplate
-                = "PREFIX xsd:<http://www.w3.org/2001/XMLSchema#> "
-                + "SELECT ?resource WHERE { "
-                + "?resource <%s> ?time . %s"
-                + " FILTER (?time > xsd:dateTime(\"%s\")) }";
-
-        String queryStr = String.format(rdfQueryTemplate, syncTimeProp,
-                syncConditions, startTime);
-        rdfUrls = executeSyncQuery(queryStr, "resource");
-
-        if (rdfUrls == null) {
-            logger.error("Errors occurred during sync procedure. Aborting!");
+    private boolean runLocalHarvest() {
+        if (!tdbLocation.trim().isEmpty()) {
+            runConcurrently(getTDBHarvestTasks(getTDBStore()));
+        }
+        if (rdfUrls != null) {
+            harvestFromDumps();
+        }
+        if (closed) {
             return false;
         }
+        if (numberOfFailedQueries.get() > 0) {
+            logger.error("Harvest of TDB and dumps for river [{}] completed with {} failed queries",
+                    riverName, numberOfFailedQueries.get());
+            return false;
+        }
+        return true;
+    }
 
-        /**
-         * If desired, query for old data that has the sync conditions
-         * modified
-         *
-         * This option is useful in the case in which the application
-         * indexes resources that match some conditions. In this case,
-         * if they are modified and no longer match the initial
-         * conditions, they will not be synchronized. When syncOldData
-         * is True, the modified resources that no longer match the
-         * conditions are deleted.
-         *
-         *
-         */
-        int deleted = 0;
-        int count = 0;
-        if (this.syncOldData) {
-            rdfQueryTemplate = "PREFIX xsd:<http://www.w3.org/2001/XMLSchema#> "
-                    + "SELECT ?resource WHERE { "
-                    + "?resource <%s> ?time ."
-                    + " FILTER (?time > xsd:dateTime(\"%s\")) }";
-            queryStr = String.format(rdfQueryTemplate, syncTimeProp, startTime);
-
-            HashSet<String> notMatchingUrls = executeSyncQuery(queryStr, "resource");
-
-            if (notMatchingUrls == null) {
-                logger.error("Errors occurred during modified content sync query. Aborting!");
-                return false;
-            }
-
-            notMatchingUrls.removeAll(rdfUrls);
-
-            for (String uri : notMatchingUrls) {
-                DeleteRequestBuilder request = client.prepareDelete(
-                        indexName, typeName, uri);
-                DeleteResponse response = request.execute().actionGet();
-
-                if (response.isFound()) {
-                    deleted++;
-                    logger.info("Deleted resource not matching sync properties: {}", uri);
+    /**
+     * Whether the river harvests a TDB store or dumps, besides the endpoint
+     */
+    private boolean hasLocalSources() {
+        if (Strings.hasText(tdbLocation)) {
+            return true;
+        }
+        if (rdfUrls != null) {
+            for (String url : rdfUrls) {
+                if (Strings.hasText(url)) {
+                    return true;
                 }
             }
         }
+        return false;
+    }
 
-        /* Prepare a series of bulk uris to be described so we can make
-         * a smaller number of calls to the SPARQL endpoint. */
-        ArrayList<ArrayList<String>> bulks = new ArrayList<ArrayList<String>>();
-        ArrayList<String> currentBulk = new ArrayList<String>();
-
-        for (String uri : rdfUrls) {
-            currentBulk.add(uri);
+    /**
+     * Runs harvest tasks on a pool of {@link #harvestThreads} workers and waits for all of them to finish
+     *
+     * @param tasks independent harvest tasks
+     */
+    private void runConcurrently(List<Runnable> tasks) {
+        runConcurrently(tasks, harvestThreads, "harvest");
+    }
 
-            if (currentBulk.size() == Defaults.DEFAULT_BULK_REQ) {
-                bulks.add(currentBulk);
-                currentBulk = new ArrayList<String>();
-            }
+    /**
+     * Runs tasks on a pool of a given number of workers and waits for all of them to finish
+     *
+     * @param tasks   independent harvest tasks
+     * @param threads number of workers
+     * @param name    name of the workers
+     */
+    private void runConcurrently(List<Runnable> tasks, int threads, String name) {
+        if (tasks.isEmpty()) {
+            return;
         }
-
-        if (currentBulk.size() > 0) {
-            bulks.add(currentBulk);
+        if (threads <= 1 || tasks.size() == 1) {
+            tasks.forEach(Runnable::run);
+            return;
         }
-
-        /* Execute RDF queries for the resources in each bulk */
-        for (ArrayList<String> bulk : bulks) {
-            String syncQuery = getSyncQueryStr(bulk);
-
-            try {
-                Query query = QueryFactory.create(syncQuery);
-                QueryExecution qexec = QueryExecutionFactory.sparqlService(
-                        rdfEndpoint, query);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()),
+                EsExecutors.daemonThreadFactory("ubbRiver[" + riverName + "][" + name + "]"));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Runnable task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<?> future : futures) {
                 try {
-                    Model constructModel = ModelFactory.createDefaultModel();
-                    qexec.execConstruct(constructModel);
-                    BulkRequestBuilder bulkRequest = client.prepareBulk();
-
-                    /**
-                     * When adding the model to ES save old
-                     * state of toDescribeURIs as the query
-                     * already returned the correct labels.
-                     */
-                    boolean oldToDescribeURIs = toDescribeURIs;
-                    toDescribeURIs = false;
-                    addModelToElasticsearch(constructModel, bulkRequest);
-                    toDescribeURIs = oldToDescribeURIs;
-                    count += bulk.size();
-                } catch (Exception e) {
-                    logger.error(
-                            "Error while querying for modified content. {}",
-                            e.getLocalizedMessage());
-                    return false;
-                } finally {
-                    qexec.close();
+                    future.get();
+                } catch (ExecutionException e) {
+                    numberOfFailedQueries.incrementAndGet();
+                    logger.error("Exception occurred while harvesting with details:  [{}] ",
+                            e.getCause().getLocalizedMessage());
                 }
-            } catch (QueryParseException qpe) {
-                logger.warn(
-                        "Could not parse Sync query. Please provide a relevant query. {}",
-                        qpe.getLocalizedMessage());
-                return false;
             }
-
+        } catch (InterruptedException e) {
+            logger.info("Harvest was interrupted for river [{}]", riverName);
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
         }
-        logger.info("Finished synchronisation: Deleted {}, Updated {}/{}",
-                deleted, count, rdfUrls.size());
-        return true;
     }
 
     /**
-     * Starts the harvester for queries and/or URLs
+     * Runs a task while holding one of the permits of a given endpoint or TDB store, such that
+     * at most {@link #maxConcurrentQueriesPerEndpoint} queries run against it at the same time
      *
-     * @return
+     * @param source an endpoint URL or TDB location
+     * @param task   a task which queries the source
      */
-    public boolean runIndexAll() {
-        /*logger.info(
-                "Starting RDF harvester: endpoint [{}], TDB [{}] queries [{}],"
-                + "URLs [{}], index name [{}], typeName [{}]",
-                rdfEndpoint, tdbLocation, rdfQueries, rdfUrls, indexName, typeName);
-         */
-        while (true) {
-            if (this.closed) {
-                logger.info("Ended the harvest for river [{}] on index [{}] and type [{}]",
-                        riverName, indexName, typeName);
-                return true;
-            }
-
-            /*
-             * Harvest from a SPARQL endpoint
-             */
-            if (!rdfEndpoint.trim().isEmpty()) {
-                harvestFromEndpoint();
+    private Runnable withSourcePermit(String source, Runnable task) {
+        return () -> {
+            Semaphore permits = getSourcePermits(source);
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             }
-
-            /*
-             * Harvest from TDB
-             */
-            if (!tdbLocation.trim().isEmpty()) {
-                harvestFromTDB();
+            try {
+                task.run();
+            } finally {
+                permits.release();
             }
+        };
+    }
 
-            /*
-             * Harvest from RDF dumps
-             */
-            harvestFromDumps();
-
-            closed = true;
-        }
+    /**
+     * Gets the permits of a given endpoint or TDB store
+     */
+    private Semaphore getSourcePermits(String source) {
+        return sourcePermits.computeIfAbsent(source, k -> new Semaphore(maxConcurrentQueriesPerEndpoint));
     }
 
     /**
@@ -1055,6 +2066,53 @@ public class Harvester implements Runnable {
         return model;
     }
 
+    /**
+     * Checks whether results of a query can be streamed by subject, i.e it is a SELECT
+     * query whose solutions are ordered by ?s
+     */
+    private boolean isStreamingSelect(Query query) {
+        return rdfQueryType == QueryType.SELECT && query != null && QueryPager.isOrderedBySubject(query);
+    }
+
+    /**
+     * Harvests a SELECT query whose solutions are ordered by ?s, without copying the results
+     * into a model. Consecutive solutions of the same subject are grouped, and each subject
+     * is handed to the pipeline as soon as the next subject shows up. Unlike
+     * {@link #getSelectModel(QueryExecution)}, URI objects are kept as URIs.
+     *
+     * @param results solutions of the query
+     * @return number of triples harvested
+     */
+    private long harvestSelectStreaming(ResultSet results) throws IOException, InterruptedException, ExecutionException {
+        SubjectGroupingStream stream;
+        try (FragmentSpill spill = new FragmentSpill()) {
+            //Solutions are ordered by subject, so a subject is finished when the next one shows up
+            stream = newSubjectGroupingStream(1, new SubjectGroupingStream.EmittedSubjects(), spill, false);
+            stream.start();
+            while (results.hasNext() && !closed) {
+                QuerySolution sol = results.next();
+                RDFNode subject = sol.get("s");
+                RDFNode predicate = sol.get("p");
+                RDFNode object = sol.get("o");
+                if (subject == null || predicate == null || object == null
+                        || !subject.isResource() || !predicate.isURIResource()) {
+                    logger.error("SELECT query does not return a (?s ?p ?o) Triple");
+                    continue;
+                }
+                stream.triple(Triple.create(subject.asNode(), predicate.asNode(), object.asNode()));
+            }
+            stream.finish();
+            if (!spill.isEmpty()) {
+                //A subject whose solutions were not consecutive after all is merged once its document is indexed
+                pipeline.flush();
+                replayFragments(spill);
+            }
+        }
+        logger.info("Streamed {} triples of {} subjects from SELECT query for river [{}]",
+                stream.getNumberOfTriples(), stream.getNumberOfSubjects(), riverName);
+        return stream.getNumberOfTriples();
+    }
+
     /**
      * Query the SPARQL endpoint with a specified QueryExecution and return
      * the model
@@ -1075,21 +2133,35 @@ public class Harvester implements Runnable {
     }
 
     /**
-     * Add data to ES given a query execution service
+     * Add data to ES given a query against the endpoint. Each attempt runs on a new query
+     * execution, and a query is only retried while none of its results have been handed to
+     * the pipeline, such that a retry never indexes them twice.
      *
-     * @param qexec query execution service
+     * @param query query to execute
+     * @return number of triples harvested or -1 if harvesting failed
      */
-    private void harvest(QueryExecution qexec) throws IOException {
+    private long harvest(Query query) {
         boolean retry;
         int countRetry = 0;
         int totalRetry = 5;
         do {
             retry = false;
-            try {
+            boolean consumed = false;
+            try (QueryExecution qexec = QueryExecutionFactory.sparqlService(rdfEndpoint, query)) {
+                if (isStreamingSelect(query)) {
+                    ResultSet results = qexec.execSelect();
+                    consumed = true;
+                    return harvestSelectStreaming(results);
+                }
                 Model model = getModel(qexec);
-                addModelToElasticsearch(model, client.prepareBulk());
+                consumed = true;
+                addModelToElasticsearch(model);
+                return model == null ? 0 : model.size();
             } catch (QueryExceptionHTTP httpe) {
-                if (httpe.getResponseCode() >= 500) {
+                if (consumed) {
+                    logger.error("Harvest failed after part of the results were indexed: {}",
+                            httpe.getLocalizedMessage());
+                } else if (httpe.getResponseCode() >= 500) {
                     retry = true;
                     countRetry++;
                     logger.error("Encountered internal server error while harvesting. " +
@@ -1107,66 +2179,216 @@ public class Harvester implements Runnable {
                 e.printStackTrace();
             }
         } while (retry);
+        return -1;
     }
 
     /**
-     * Queries the {@link #rdfEndpoint(String)} with each of the
-     * {@link #rdfQueries} and harvests the results of the query.
+     * Harvests the endpoint with a given query. If the query can be paged, each page is
+     * fetched and indexed before the next one is requested, such that memory stays flat and
+     * a failure only costs one page. The position after each page is checkpointed, and the
+     * harvest resumes from the checkpointed position, if any.
+     *
+     * @param query  a harvest query
+     * @param source key of the query in checkpoints
+     */
+    private void harvestFromEndpoint(Query query, String source) {
+        String position = getCheckpoint(source);
+        if (HarvestCheckpoints.DONE.equals(position)) {
+            logger.info("Skipping [{}] of river [{}], which was harvested before it was interrupted", source, riverName);
+            return;
+        }
+        QueryPager pager = new QueryPager(query, queryPaging, pageSize);
+        if (!pager.isPageable()) {
+            if (queryPaging != QueryPager.Mode.NONE && query.isConstructType() && !query.hasLimit()
+                    && !query.hasOffset()) {
+                logger.warn("CONSTRUCT query of river [{}] does not bind ?s and cannot be paged by subject, "
+                        + "so it is executed in one go", riverName);
+            }
+            if (harvestFromEndpointOnce(query) >= 0) {
+                checkpoint(source, HarvestCheckpoints.DONE);
+            } else {
+                numberOfFailedQueries.incrementAndGet();
+            }
+            return;
+        }
+        logger.info("Harvesting from endpoint [{}] in pages of {} using {} paging",
+                rdfEndpoint, pager.getPageSize(), pager.getMode());
+        if (position != null) {
+            logger.info("Resuming [{}] of river [{}] at [{}]", source, riverName, position);
+        }
+        long pages = 0;
+        boolean complete = false;
+        if (pager.isPagedBySubject()) {
+            String lastKey = position != null && position.startsWith("key:") ? position.substring(4) : null;
+            long offset = position != null && position.startsWith("offset:") ? Long.parseLong(position.substring(7)) : 0;
+            while (!closed) {
+                Query subjectQuery = pager.getMode() == QueryPager.Mode.KEYSET
+                        ? pager.subjectPageAfter(lastKey)
+                        : pager.subjectPageAt(offset);
+                List<Node> subjects = selectSubjects(subjectQuery);
+                if (subjects == null) {
+                    logger.error("Could not fetch page {} of subjects. Aborting query ...", pages + 1);
+                    numberOfFailedQueries.incrementAndGet();
+                    break;
+                }
+                int numberOfSubjects = subjects.size();
+                offset += numberOfSubjects;
+                if (subjects.isEmpty()) {
+                    complete = true;
+                    break;
+                }
+                if (harvestFromEndpointOnce(pager.forSubjects(subjects)) < 0) {
+                    //The checkpoint stays before the failed page
+                    logger.error("Could not harvest page {} of subjects. Aborting query ...", pages + 1);
+                    numberOfFailedQueries.incrementAndGet();
+                    break;
+                }
+                pages++;
+                lastKey = subjects.get(subjects.size() - 1).getURI();
+                if (numberOfSubjects < pager.getPageSize()) {//last page
+                    complete = true;
+                    break;
+                }
+                checkpoint(source, pager.getMode() == QueryPager.Mode.KEYSET ? "key:" + lastKey : "offset:" + offset);
+            }
+            if (complete && !closed) {
+                //Pages of subjects only hold IRIs
+                long triples = harvestFromEndpointOnce(pager.forBlankSubjects());
+                if (triples > 0) {
+                    logger.info("Harvested {} triples of blank node subjects from endpoint [{}]", triples, rdfEndpoint);
+                }
+                complete = triples >= 0;
+                if (!complete) {
+                    numberOfFailedQueries.incrementAndGet();
+                }
+            }
+        } else {
+            long offset = position != null && position.startsWith("offset:") ? Long.parseLong(position.substring(7)) : 0;
+            long triples = -1;
+            while (!closed && (triples = harvestFromEndpointOnce(pager.solutionPageAt(offset))) > 0) {
+                offset += pager.getPageSize();
+                pages++;
+                checkpoint(source, "offset:" + offset);
+            }
+            complete = !closed && triples == 0;
+            if (!closed && triples < 0) {
+                numberOfFailedQueries.incrementAndGet();
+            }
+        }
+        if (complete) {
+            checkpoint(source, HarvestCheckpoints.DONE);
+        }
+        logger.info("Harvested {} pages from endpoint [{}]", pages, rdfEndpoint);
+    }
+
+    /**
+     * Executes a given query against the endpoint and harvests the result
+     *
+     * @return number of triples harvested or -1 if harvesting failed
+     */
+    private long harvestFromEndpointOnce(Query query) {
+        try {
+            return harvest(query);
+        } catch (Exception e) {
+            logger.error("Exception [{}] occurred while harvesting", e.getLocalizedMessage());
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    /**
+     * Selects a page of subjects from the endpoint, retrying on internal server errors
+     *
+     * @param query a query which selects ?s
+     * @return list of subjects in the order returned by the endpoint or null on failure
+     */
+    private List<Node> selectSubjects(Query query) {
+        for (int retry = 0; retry <= Defaults.DEFAULT_NUMBER_OF_RETRY; retry++) {
+            try (QueryExecution qexec = QueryExecutionFactory.sparqlService(rdfEndpoint, query)) {
+                List<Node> subjects = new ArrayList<>();
+                ResultSet results = qexec.execSelect();
+                while (results.hasNext()) {
+                    Binding binding = results.nextBinding();
+                    Node subject = binding.get(QueryPager.SUBJECT);
+                    if (subject != null) {
+                        subjects.add(subject);
+                    }
+                }
+                return subjects;
+            } catch (QueryExceptionHTTP httpe) {
+                if (httpe.getResponseCode() < 500) {
+                    logger.error("Could not select subjects with [{}]: {}", query, httpe.getLocalizedMessage());
+                    return null;
+                }
+                logger.error("Encountered internal server error while selecting subjects. Retrying... {}", retry + 1);
+            } catch (Exception e) {
+                logger.error("Could not select subjects with [{}]: {}", query, e.getLocalizedMessage());
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets tasks which query the {@link #rdfEndpoint(String)} with each of the
+     * {@link #rdfQueries} and the query at {@link #queryPath}, and harvest the results.
      */
-    private void harvestFromEndpoint() {
+    private List<Runnable> getEndpointHarvestTasks() {
+        List<Runnable> tasks = new ArrayList<>();
         //Harvesting using a given SPARQL query path
         if (Strings.hasText(queryPath)) {
-            logger.info("Harvesting from endpoint [{}] using query path [{}] for river [{}] on index " +
-                    "[{}] and type [{}]", rdfEndpoint, queryPath, riverName, indexName, typeName);
-
             Query queryFromPath = null;
             try {
                 queryFromPath = QueryFactory.read(queryPath);
             } catch (QueryParseException qpe) {
                 logger.error("Could not parse [{}]. Please provide a relevant query. {}", queryPath, qpe);
+                numberOfFailedQueries.incrementAndGet();
             }
 
             if (queryFromPath != null) {
-                try (QueryExecution qE = QueryExecutionFactory.sparqlService(rdfEndpoint, queryFromPath)) {
-                    harvest(qE);
-                } catch (IOException e) {
-                    logger.error("Error while harvesting from {}", queryPath, e.getLocalizedMessage());
-                }
+                Query query = queryFromPath;
+                tasks.add(withSourcePermit(rdfEndpoint, () -> {
+                    logger.info("Harvesting from endpoint [{}] using query path [{}] for river [{}] on index " +
+                            "[{}] and type [{}]", rdfEndpoint, queryPath, riverName, indexName, typeName);
+                    harvestFromEndpoint(query, "endpoint:queryPath");
+                }));
             }
         }
 
         //Harvesting using list of RDF queries
-        if (!rdfQueries.isEmpty()) {
+        for (int i = 0; i < rdfQueries.size(); i++) {
+            String rdfQuery = rdfQueries.get(i);
+            String source = "endpoint:query:" + i;
             Query query;
-            for (String rdfQuery : rdfQueries) {
+            try {
+                query = QueryFactory.create(rdfQuery);
+            } catch (QueryParseException qpe) {
+                logger.error("Could not parse [{}]. Please provide a relevant query. {}", rdfQuery, qpe);
+                numberOfFailedQueries.incrementAndGet();
+                continue;
+            }
+            tasks.add(withSourcePermit(rdfEndpoint, () -> {
                 logger.info("Harvesting from endpoint [{}] for river [{}] on index [{}] and type [{}] using provided queries",
                         rdfEndpoint, riverName, indexName, typeName);
-                try {
-                    query = QueryFactory.create(rdfQuery);
-                } catch (QueryParseException qpe) {
-                    logger.error("Could not parse [{}]. Please provide a relevant query. {}", rdfQuery, qpe);
-                    continue;
-                }
-                try (QueryExecution qexec = QueryExecutionFactory.sparqlService(rdfEndpoint, query)) {
-                    harvest(qexec);
-                } catch (Exception e) {
-                    logger.error("Exception [{}] occurred while harvesting", e.getLocalizedMessage());
-                    e.printStackTrace();
-                }
-            }
+                harvestFromEndpoint(query, source);
+            }));
         }
+        return tasks;
     }
 
     /**
      * Executes describe query for a given resource against a TDB dataset or endpoint
      */
     private Model describe(Resource resource) {
-        String describeQuery = "DESCRIBE <" + resource.toString() + ">";
+        Query describeQuery = QueryTemplates.describeQuery(Collections.singletonList(resource.getURI()));
 
-        if (tdbDataset != null) { //Try TDB
-            try (QueryExecution qE = QueryExecutionFactory.create(describeQuery, tdbDataset)) {
-                return getDescribeModel(qE);
-            }
+        TDBStore store = tdbStore;
+        if (store != null) { //Try TDB
+            return store.calculateRead(() -> {
+                try (QueryExecution qE = QueryExecutionFactory.create(describeQuery, store.getDataset())) {
+                    return getDescribeModel(qE);
+                }
+            });
         } else if (Strings.hasText(rdfEndpoint)) { //Try endpoint
             try (QueryExecution qE = QueryExecutionFactory.sparqlService(rdfEndpoint, describeQuery)) {
                 return getDescribeModel(qE);
@@ -1176,34 +2398,58 @@ public class Harvester implements Runnable {
     }
 
     /**
-     * Harvest from TDB using queries specified from {@link #rdfQueries
+     * Describes a batch of resources with a single DESCRIBE query against a TDB dataset or endpoint
+     *
+     * @return a model of all descriptions, or null if no source is available
+     */
+    private Model describe(Collection<Resource> resources) {
+        List<String> uris = new ArrayList<>(resources.size());
+        for (Resource resource : resources) {
+            uris.add(resource.getURI());
+        }
+        Query describeQuery = QueryTemplates.describeQuery(uris);
+        TDBStore store = tdbStore;
+        if (store != null) {
+            return store.calculateRead(() -> {
+                try (QueryExecution qE = QueryExecutionFactory.create(describeQuery, store.getDataset())) {
+                    return getDescribeModel(qE);
+                }
+            });
+        } else if (Strings.hasText(rdfEndpoint)) {
+            try (QueryExecution qE = QueryExecutionFactory.sparqlService(rdfEndpoint, describeQuery)) {
+                return getDescribeModel(qE);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets tasks which harvest from TDB using queries specified from {@link #rdfQueries}
      * and/or path specified in {@link #queryPath}.
+     *
+     * @param store a TDB store which is shared by all tasks
      */
-    private void harvestFromTDB() {
-        if (!rdfQueries.isEmpty()) { //Harvesting from a list of RDF Queries
+    private List<Runnable> getTDBHarvestTasks(TDBStore store) {
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < rdfQueries.size(); i++) { //Harvesting from a list of RDF Queries
+            String rdfQuery = rdfQueries.get(i);
+            String source = "tdb:query:" + i;
             Query queryFromList;
-            for (String rdfQuery : rdfQueries) {
+            try {
+                queryFromList = QueryFactory.create(rdfQuery);
+            } catch (QueryParseException qpe) {
+                logger.error(
+                        "Could not parse [{}]. Please provide a relevant query. {}",
+                        rdfQuery, qpe);
+                continue;
+            }
+            tasks.add(withSourcePermit(tdbLocation, () -> {
                 logger.info("Harvesting from TDB store [{}] for river [{}] on index [{}] and type [{}]",
                         tdbLocation, riverName, indexName, typeName);
-
-                try {
-                    queryFromList = QueryFactory.create(rdfQuery);
-                } catch (QueryParseException qpe) {
-                    logger.error(
-                            "Could not parse [{}]. Please provide a relevant query. {}",
-                            rdfQuery, qpe);
-                    continue;
-                }
-                if (queryFromList != null) {
-                    //Do harvesting
-                    harvest(createOrConnect(tdbLocation), queryFromList);
-                }
-
-            }
+                harvestPartitioned(store, queryFromList, source);
+            }));
         }
         if (Strings.hasText(queryPath)) {//harvesting from file path
-            logger.info("Harvesting from TDB [{}] using query path [{}] for river [{}] " +
-                    "on index [{}] and type [{}]", tdbLocation, queryPath, riverName, indexName, typeName);
             Query queryFromPath = null;
             try {
                 queryFromPath = QueryFactory.read(queryPath);
@@ -1211,75 +2457,207 @@ public class Harvester implements Runnable {
                 logger.error("Could not parse [{}]. Please provide a relevant query. {}", queryPath, qpe);
             }
             if (queryFromPath != null) {
-                //Do harvesting
-                harvest(createOrConnect(tdbLocation), queryFromPath);
+                Query query = queryFromPath;
+                tasks.add(withSourcePermit(tdbLocation, () -> {
+                    logger.info("Harvesting from TDB [{}] using query path [{}] for river [{}] " +
+                            "on index [{}] and type [{}]", tdbLocation, queryPath, riverName, indexName, typeName);
+                    harvestPartitioned(store, query, "tdb:queryPath");
+                }));
             }
         }
-
+        return tasks;
     }
 
 
     /**
-     * Creates or connects to the TDB-backend
+     * Harvest data using a given TDB store. If {@link #tdbPartitions} is greater than one, the
+     * subjects of the query are read once and handed out in batches to up to that many
+     * workers, each harvesting its batches with its own read transaction. Workers are bounded
+     * by {@link #harvestThreads} and each needs a permit of the store, such that partitions
+     * stay within {@link #maxConcurrentQueriesPerEndpoint}. A batch which finds no free worker
+     * is harvested by the thread which reads the subjects.
      *
-     * @param path location to a TDB dataset
-     * @return dataset or null if cannot create or connect
+     * @param store  a given store to query against
+     * @param query  a given query
+     * @param source key of the query in checkpoints
      */
-    private Dataset createOrConnect(String path) {
-        Dataset dataset = null;
+    private void harvestPartitioned(TDBStore store, Query query, String source) {
+        SubjectPartitioner partitioner = new SubjectPartitioner(query, tdbPartitions, pageSize);
+        int workers = Math.min(partitioner.getPartitions(), harvestThreads) - 1;
+        if (workers < 1 || !partitioner.isPartitionable()) {
+            harvest(store, query, source);
+            return;
+        }
+        if (HarvestCheckpoints.DONE.equals(getCheckpoint(source))) {
+            logger.info("Skipping [{}] of river [{}], which was harvested before it was interrupted", source, riverName);
+            return;
+        }
+        logger.info("Harvesting TDB [{}] in batches of {} subjects on {} workers for river [{}]",
+                tdbLocation, partitioner.getBatchSize(), workers + 1, riverName);
+        Semaphore permits = getSourcePermits(tdbLocation);
+        Semaphore slots = new Semaphore(workers);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        ExecutorService executor = Executors.newFixedThreadPool(workers,
+                EsExecutors.daemonThreadFactory("ubbRiver[" + riverName + "][tdb-partition]"));
         try {
-            //Create or connect to the TDB-backend
-            dataset = TDBFactory.createDataset(path);
+            Consumer<List<Node>> harvestBatch = batch -> {
+                Runnable task = () -> {
+                    if (!harvestFromTDBOnce(store, partitioner.forSubjects(batch))) {
+                        failed.set(true);
+                    }
+                };
+                if (slots.tryAcquire()) {
+                    if (permits.tryAcquire()) {
+                        executor.execute(() -> {
+                            try {
+                                task.run();
+                            } finally {
+                                permits.release();
+                                slots.release();
+                            }
+                        });
+                        return;
+                    }
+                    slots.release();
+                }
+                task.run();
+            };
+            store.executeRead(() -> {
+                try (QueryExecution qexec = QueryExecutionFactory.create(partitioner.subjects(), store.getDataset())) {
+                    ResultSet results = qexec.execSelect();
+                    List<Node> batch = new ArrayList<>();
+                    while (results.hasNext() && !closed) {
+                        Node subject = results.nextBinding().get(QueryPager.SUBJECT);
+                        if (subject != null) {
+                            batch.add(subject);
+                        }
+                        if (batch.size() >= partitioner.getBatchSize()) {
+                            harvestBatch.accept(batch);
+                            batch = new ArrayList<>();
+                        }
+                    }
+                    if (!batch.isEmpty() && !closed) {
+                        harvestBatch.accept(batch);
+                    }
+                }
+            });
+            //Waits until all batches handed to workers are done
+            slots.acquire(workers);
+            slots.release(workers);
+            if (!closed && harvestFromTDBOnce(store, partitioner.forBlankSubjects()) && !failed.get()) {
+                checkpoint(source, HarvestCheckpoints.DONE);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
-            logger.error("Cannot create or connect to dataset for path: [{}]", path);
-            throw e;
+            numberOfFailedQueries.incrementAndGet();
+            logger.error("Exception occurred while partitioning query for TDB [{}] ", e.getLocalizedMessage());
         } finally {
-            // Store this TDB dataset such that we can use it afterwards
-            // e.g for getting labels
-            setTDBDataset(dataset);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Harvest data using a given TDB store, inside a single read transaction. The query is
+     * checkpointed once it has been harvested, and skipped if it was harvested before.
+     *
+     * @param query  a given query
+     * @param store  a given store to query against
+     * @param source key of the query in checkpoints
+     */
+    private void harvest(TDBStore store, Query query, String source) {
+        Objects.requireNonNull(store, "TDB store cannot be null");
+        if (HarvestCheckpoints.DONE.equals(getCheckpoint(source))) {
+            logger.info("Skipping [{}] of river [{}], which was harvested before it was interrupted", source, riverName);
+            return;
+        }
+        if (harvestFromTDBOnce(store, query)) {
+            checkpoint(source, HarvestCheckpoints.DONE);
         }
-        return dataset;
     }
 
     /**
-     * Harvest data using a given TDB dataset
+     * Executes a given query against a TDB store, inside a read transaction, and harvests the result
      *
-     * @param query   a given query
-     * @param dataset a given dataset to query against
+     * @return whether the query was harvested, i.e it neither failed nor was interrupted
      */
-    private void harvest(Dataset dataset, Query query) {
-        Objects.requireNonNull(dataset, "Dataset cannot be null");
-        //Begin READ transaction
-        dataset.begin(ReadWrite.READ);
-        try (QueryExecution qexec = QueryExecutionFactory.create(query, dataset)) {
-            //Harvest and send model to Elasticsearch
-            Model model = getModel(qexec);
-            addModelToElasticsearch(model, client.prepareBulk());
+    private boolean harvestFromTDBOnce(TDBStore store, Query query) {
+        try {
+            store.executeRead(() -> {
+                try (QueryExecution qexec = QueryExecutionFactory.create(query, store.getDataset())) {
+                    //Harvest and send model to Elasticsearch
+                    if (isStreamingSelect(query)) {
+                        harvestSelectStreaming(qexec.execSelect());
+                        return;
+                    }
+                    Model model = getModel(qexec);
+                    addModelToElasticsearch(model);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException | ExecutionException e) {
+                    throw new IllegalStateException("Could not merge scattered subjects: " + e.getLocalizedMessage(), e);
+                }
+            });
+            return !closed && !Thread.currentThread().isInterrupted();
         } catch (Exception e) {
+            numberOfFailedQueries.incrementAndGet();
             logger.error("Exception occurred while harvesting data using TDB [{}] ", e.getLocalizedMessage());
             e.printStackTrace();
-
-        } finally {
-            //Release resources
-            dataset.end();
-            dataset.close();
         }
+        return false;
     }
 
     /**
      * Harvests all the triplets from each URI in the @rdfUrls list
      */
     private void harvestFromDumps() {
+        DumpCache cache = openDumpCache();
+        String indexUUID = cache != null ? getIndexUUID() : null;
         for (String url : rdfUrls) {
             if (url.isEmpty()) {
                 continue;
             }
+            String checkpointSource = "dump:" + url.trim();
+            if (HarvestCheckpoints.DONE.equals(getCheckpoint(checkpointSource))) {
+                logger.info("Skipping dump [{}], which was harvested before the river was interrupted", url);
+                continue;
+            }
             logger.info("Harvesting url [{}]", url);
-            Model model = ModelFactory.createDefaultModel();
             try {
-                RDFDataMgr.read(model, url.trim(), RDFLanguages.RDFXML);
-                BulkRequestBuilder bulkRequest = client.prepareBulk();
-                addModelToElasticsearch(model, bulkRequest);
+                String source = url.trim();
+                DumpCache.Dump dump = cache != null ? cache.fetch(source) : null;
+                if (dump != null) {
+                    if (!dump.isChanged(indexUUID)) {
+                        logger.info("Dump [{}] has not changed since it was last harvested, skipping it", url);
+                        continue;
+                    }
+                    source = dump.getPath().toUri().toString();
+                }
+                boolean complete = true;
+                long failuresBefore = bulkIndexer.getNumberOfFailures();
+                Path localDump = ChunkedDumpParser.toLocalFile(source);
+                if (streamDumps && localDump != null && ChunkedDumpParser.isSplittable(localDump, dumpLang)) {
+                    complete = harvestFromDumpInParallel(localDump, checkpointSource);
+                } else if (streamDumps) {
+                    harvestFromDumpStreaming(source);
+                } else {
+                    Model model = ModelFactory.createDefaultModel();
+                    RDFDataMgr.read(model, source, dumpLang);
+                    addModelToElasticsearch(model);
+                }
+                if (dump != null && complete) {
+                    //Documents must be indexed before the dump is skipped on later runs
+                    pipeline.flush();
+                    String harvestedInto = getIndexUUID();
+                    if (bulkIndexer.getNumberOfFailures() > failuresBefore || harvestedInto == null) {
+                        logger.warn("Some documents of dump [{}] were not indexed, it is harvested again on the next run", url);
+                    } else {
+                        cache.markHarvested(dump, harvestedInto);
+                    }
+                }
+                if (complete) {
+                    checkpoint(checkpointSource, HarvestCheckpoints.DONE);
+                }
             } catch (RiotException re) {
                 logger.error("Illegal xml character [{}]", re.getLocalizedMessage());
             } catch (Exception e) {
@@ -1289,6 +2667,205 @@ public class Harvester implements Runnable {
         }
     }
 
+    /**
+     * Gets UUID of the index of this river, which changes when the index is deleted and created
+     * again
+     *
+     * @return the UUID, or null if the index does not exist or cannot be read
+     */
+    private String getIndexUUID() {
+        try {
+            GetSettingsResponse response = client.admin().indices()
+                    .prepareGetSettings(indexName)
+                    .setIndicesOptions(IndicesOptions.lenientExpandOpen())
+                    .execute()
+                    .actionGet();
+            //An alias may point to several indices
+            List<String> uuids = new ArrayList<>();
+            for (ObjectObjectCursor<String, Settings> settings : response.getIndexToSettings()) {
+                uuids.add(settings.value.get(IndexMetaData.SETTING_UUID, IndexMetaData.INDEX_UUID_NA_VALUE));
+            }
+            Collections.sort(uuids);
+            return uuids.isEmpty() ? null : Strings.collectionToCommaDelimitedString(uuids);
+        } catch (ElasticsearchException e) {
+            logger.warn("Could not read UUID of index [{}]: {}", indexName, e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Opens the dump cache, if dumps are to be cached
+     *
+     * @return the cache or null if dumps are not cached
+     */
+    private DumpCache openDumpCache() {
+        if (!cacheDumps || dumpCachePath == null) {
+            return null;
+        }
+        try {
+            return new DumpCache(dumpCachePath, TimeValue.parseTimeValue(Defaults.DEFAULT_DUMP_DOWNLOAD_TIMEOUT, null));
+        } catch (IOException e) {
+            logger.error("Could not open dump cache [{}], dumps will be harvested without it. Details: {}",
+                    dumpCachePath, e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Parses a local N-Triples or N-Quads dump in ranges of lines, each range on its own thread.
+     * Each range is streamed by subject in the same way as {@link #harvestFromDumpStreaming(String)}
+     * and all ranges share the same bulk indexer. Parsed ranges are checkpointed by their start
+     * offset, and ranges which were parsed before an interruption are skipped, as long as the
+     * dump has not changed.
+     *
+     * @param dump   path to a local dump
+     * @param source key of the dump in checkpoints
+     * @return true if all ranges were parsed
+     */
+    private boolean harvestFromDumpInParallel(Path dump, String source) throws IOException, InterruptedException, ExecutionException {
+        long startTime = System.currentTimeMillis();
+        String version = "ranges:" + Files.size(dump) + ":" + Files.getLastModifiedTime(dump).toMillis() + ":";
+        Set<Long> parsedRanges = ConcurrentHashMap.newKeySet();
+        String position = getCheckpoint(source);
+        if (position != null && position.startsWith(version) && position.length() > version.length()) {
+            for (String start : position.substring(version.length()).split(",")) {
+                parsedRanges.add(Long.parseLong(start));
+            }
+        }
+        Set<Long> skippedRanges = new HashSet<>(parsedRanges);
+        List<SubjectGroupingStream> streams = Collections.synchronizedList(new ArrayList<>());
+        //Subjects are tracked across ranges, such that a subject scattered over several ranges is merged
+        SubjectGroupingStream.EmittedSubjects emitted = new SubjectGroupingStream.EmittedSubjects();
+        int rangesParsed;
+        long spilled;
+        try (FragmentSpill spill = new FragmentSpill()) {
+            //Subjects of a resumed dump may have triples in ranges which were indexed before, which are kept
+            boolean merge = !skippedRanges.isEmpty();
+            rangesParsed = new ChunkedDumpParser(dump, dumpLang).parse(dumpParseThreads, () -> {
+                SubjectGroupingStream stream = newSubjectGroupingStream(numberOfBulkActions, emitted, spill, merge);
+                streams.add(stream);
+                return stream;
+            }, skippedRanges, start -> {
+                if (!spill.isEmpty()) {
+                    //Spilled fragments are only indexed at the end, a resumed run would miss them
+                    return;
+                }
+                parsedRanges.add(start);
+                checkpoint(source, version + Strings.collectionToCommaDelimitedString(new TreeSet<>(parsedRanges)));
+            });
+            pipeline.flush();
+            spilled = replayFragments(spill);
+        }
+        long finishTime = System.currentTimeMillis();
+        logger.info("\n-------------------------------------------"
+                + "\n\tTotal documents parsed from dump: " + streams.stream().mapToLong(SubjectGroupingStream::getNumberOfSubjects).sum()
+                + "\n\tTriples: " + streams.stream().mapToLong(SubjectGroupingStream::getNumberOfTriples).sum()
+                + "\n\tTriples merged into earlier documents: " + spilled
+                + "\n\tRanges: " + rangesParsed + "/" + (streams.size() + skippedRanges.size())
+                + "\n\tDump: " + dump
+                + "\n\tRiver: " + riverName
+                + "\n\tIndex: " + indexName
+                + "\n\tType: " + typeName
+                + "\n\tTime to index: " + getTimeString(finishTime - startTime)
+                + "\n-------------------------------------------");
+        return rangesParsed == streams.size() + skippedRanges.size();
+    }
+
+    /**
+     * Creates a stream which submits each finished subject to the document building stage of the
+     * pipeline, and spills later fragments of subjects, such that they are merged once the
+     * earlier documents have been indexed
+     *
+     * @param maxPendingSubjects number of unfinished subjects to keep in memory
+     * @param emitted            subjects emitted by all streams over the dump
+     * @param spill              where later fragments are kept
+     * @param merge              whether subjects are merged into existing documents, e.g when a dump is
+     *                           resumed after some of its ranges were indexed
+     */
+    private SubjectGroupingStream newSubjectGroupingStream(long maxPendingSubjects,
+                                                           SubjectGroupingStream.EmittedSubjects emitted,
+                                                           FragmentSpill spill, boolean merge) {
+        return new SubjectGroupingStream((int) Math.min(maxPendingSubjects, Integer.MAX_VALUE), emitted,
+                subjectModel -> submitSubject(subjectModel, merge),
+                spill::add);
+    }
+
+    /**
+     * Merges the spilled fragments of a dump into their documents. Must be called once the
+     * documents of the dump have been flushed.
+     * <p>
+     * The fragments of a subject are grouped, such that each subject is merged once. A subject
+     * whose fragments are too scattered to be grouped in memory is spilled again and merged in
+     * a later round, once the first merge has been indexed.
+     *
+     * @param spill fragments of the dump
+     * @return number of triples which were merged
+     */
+    private long replayFragments(FragmentSpill spill) throws IOException, InterruptedException, ExecutionException {
+        if (spill.isEmpty()) {
+            return 0;
+        }
+        logger.info("Merging {} triples of scattered subjects into their documents for river [{}]",
+                spill.getNumberOfTriples(), riverName);
+        try (FragmentSpill next = new FragmentSpill()) {
+            SubjectGroupingStream stream = new SubjectGroupingStream(
+                    (int) Math.min(numberOfBulkActions, Integer.MAX_VALUE), new SubjectGroupingStream.EmittedSubjects(),
+                    fragment -> submitSubject(fragment, true), next::add);
+            spill.replay(stream);
+            pipeline.flush();
+            replayFragments(next);
+        }
+        return spill.getNumberOfTriples();
+    }
+
+    /**
+     * Submits a streamed subject to the document building stage of the pipeline
+     *
+     * @param subjectModel triples of the subject
+     * @param fragment     whether the subject has been submitted before, such that its document is merged
+     */
+    private void submitSubject(Model subjectModel, boolean fragment) {
+        try {
+            submitToPipeline(() -> {
+                pipeline.submitSubject(subjectModel, m -> buildDocument(m, toDescribeURIs, fragment));
+                return null;
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while streaming dump", e);
+        }
+    }
+
+    /**
+     * Parses a dump as a stream of triples, such that each subject is turned into a document
+     * as soon as it is finished and bulks are flushed continuously. Only a bounded number of
+     * subjects are kept in memory, regardless of the size of the dump.
+     *
+     * @param url a URL or path to a dump
+     */
+    private void harvestFromDumpStreaming(String url) throws IOException, InterruptedException, ExecutionException {
+        long startTime = System.currentTimeMillis();
+        SubjectGroupingStream stream;
+        long spilled;
+        try (FragmentSpill spill = new FragmentSpill()) {
+            stream = newSubjectGroupingStream(numberOfBulkActions, new SubjectGroupingStream.EmittedSubjects(), spill, false);
+            RDFDataMgr.parse(stream, url, dumpLang);
+            pipeline.flush();
+            spilled = replayFragments(spill);
+        }
+        long finishTime = System.currentTimeMillis();
+        logger.info("\n-------------------------------------------"
+                + "\n\tTotal documents streamed from dump: " + stream.getNumberOfSubjects()
+                + "\n\tTriples: " + stream.getNumberOfTriples()
+                + "\n\tTriples merged into earlier documents: " + spilled
+                + "\n\tDump: " + url
+                + "\n\tRiver: " + riverName
+                + "\n\tIndex: " + indexName
+                + "\n\tType: " + typeName
+                + "\n\tTime to index: " + getTimeString(finishTime - startTime)
+                + "\n-------------------------------------------");
+    }
+
     /**
      * Get JSON map for a given resource by applying the river settings
      *
@@ -1298,6 +2875,23 @@ public class Harvester implements Runnable {
      * @return map of properties to be indexed for res
      */
     private Map<String, Object> getJsonMap(Resource rs, Set<Property> properties, Model model) {
+        return getJsonMap(rs, properties, model, isAutoSuggestionEnabled, toDescribeURIs,
+                EmbedScope.root(rs.toString(), embedDepth));
+    }
+
+    /**
+     * Get JSON map for a given resource by applying the river settings
+     *
+     * @param rs         resource being processed
+     * @param properties properties to be indexed
+     * @param model      model returned by the indexing query
+     * @param suggest      whether to add values to the suggest field
+     * @param describeUris whether to replace URIs with their labels
+     * @param scope        where the document of rs sits among embedded documents
+     * @return map of properties to be indexed for res
+     */
+    private Map<String, Object> getJsonMap(Resource rs, Set<Property> properties, Model model,
+                                           boolean suggest, boolean describeUris, EmbedScope scope) {
         Map<String, Object> jsonMap = new HashMap<>();
         List<String> results = new ArrayList<>();
         Set<String> suggestInputs = new HashSet<>();
@@ -1324,7 +2918,7 @@ public class Harvester implements Runnable {
             List<Map<String, Object>> innerObject = new ArrayList<>();
             while (niter.hasNext()) {
                 RDFNode node = niter.next();
-                currentValue = getStringForResult(rs, node);
+                currentValue = getStringForResult(rs, node, describeUris);
 
                 //If a literal contains empty value, skip and do not index
                 if (currentValue.isEmpty()) {
@@ -1344,26 +2938,26 @@ public class Harvester implements Runnable {
                 //Embed one resource to another using the given property
                 if (node.isResource() && property.equals(embedResourceUsingProperty)) {
                     if (logger.isDebugEnabled()) {
-                        logger.info("Embedding resource " + node.asResource().getURI() + " to " + rs);
-                    }
-                    Resource eResource = node.asResource();
-                    Model eModel = describe(eResource);
-                    Set<Property> eProperties = getProperties(eModel.listStatements());
-                    boolean wasSuggestOn = false;
-                    if (isAutoSuggestionEnabled) {//switch off suggestion for embedded document
-                        wasSuggestOn = true;
-                        isAutoSuggestionEnabled = false;
+                        logger.debug("Embedding resource " + node.asResource() + " to " + rs);
                     }
-                    //Recursive call to embed another resource
-                    jsonMap.put("_embedded", convertSingleValueListToString(getJsonMap(eResource, eProperties, eModel)));
-                    if (wasSuggestOn) {//Turn back on the suggestion
-                        isAutoSuggestionEnabled = true;
+                    Map<String, Object> embedded = getEmbeddedDocument(node.asResource(), model, scope);
+                    if (embedded != null) {
+                        jsonMap.put("_embedded", embedded);
                     }
                 }
 
                 // Read and index contents of a given URL
                 if (Strings.hasText(textField) && property.equals(textField)) {
-                    jsonMap.put(Defaults.TEXT_CONTENT_FIELD, FileManager.readUrlContent(currentValue));
+                    TextContentFetcher fetcher = textContentFetcher;
+                    if (fetcher == null) {
+                        jsonMap.put(Defaults.TEXT_CONTENT_FIELD, FileManager.readUrlContent(currentValue));
+                    } else if (scope.isRoot()) {
+                        //The document is completed once its content is fetched, see buildDocument
+                        jsonMap.put(Defaults.TEXT_CONTENT_FIELD, fetcher.fetch(currentValue));
+                    } else {
+                        //Embedded documents are memoised and shared, so their content is read right away
+                        jsonMap.put(Defaults.TEXT_CONTENT_FIELD, fetcher.read(currentValue));
+                    }
                 }
 
                 if (addLanguage) {
@@ -1382,7 +2976,7 @@ public class Harvester implements Runnable {
                 }
 
                 //Add values to suggest field for auto suggestion.
-                if (isAutoSuggestionEnabled) {
+                if (suggest) {
                     //Filter the value, such that it should not contain weird characters
                     if (!currentValue.startsWith("http")
                             && !isInnerObject(currentValue)
@@ -1525,90 +3119,203 @@ public class Harvester implements Runnable {
      * works if the user has specified the flag <tt>updateDocuments</tt> to true in
      * the river settings. It is set to false by default. By doing this, you
      * can partial update documents without full reindexing.
+     * <p>
+     * The model is handed to the harvest pipeline, which blocks while the pipeline is full.
      *
-     * @param model       the model to index
-     * @param bulkRequest a BulkRequestBuilder
+     * @param model the model to index
      */
-    private void addModelToElasticsearch(Model model, BulkRequestBuilder bulkRequest) {
-        logger.info("Indexing into Elasticsearch for river [{}] on index [{}] and type [{}]",
-                riverName, indexName, typeName);
+    private void addModelToElasticsearch(Model model) throws InterruptedException {
+        addModelToElasticsearch(model, toDescribeURIs);
+    }
+
+    /**
+     * Index or update all the resources in a Jena Model to ES
+     *
+     * @param model        the model to index
+     * @param describeUris whether to replace URIs with their labels
+     */
+    private void addModelToElasticsearch(Model model, boolean describeUris) throws InterruptedException {
         //Abort if model is empty
         if (Objects.isNull(model) || model.isEmpty()) {
             logger.warn("Encountered empty model for river [{}]. Aborting ...", riverName);
             return;
         }
-        long startTime = System.currentTimeMillis();
-        long bulkLength = 0;
-        Set<Property> properties = getProperties(model.listStatements());
-        ResIterator resIterator = model.listSubjects();
-        while (resIterator.hasNext()) {
-            Resource rs = resIterator.nextResource();
-            Map<String, Object> jsonMap = getJsonMap(rs, properties, model);
-            String subjectURI = RiverUtils.replaceResourceURI(rs.toString(), resourceURIFragments);
-
-            //If updateDocuments is set to true, then prepare to update this document
-            if (updateDocuments) {
-                prepareUpdateDocument(bulkRequest, convertSingleValueListToString(jsonMap), subjectURI);
-            } else {
-                //Otherwise, prepare to index this document
-                prepareIndexDocument(bulkRequest, convertSingleValueListToString(jsonMap), subjectURI);
-            }
-
-            bulkLength++;
-            // We want to execute the bulk for every numberOfBulkActions requests
-            if (bulkLength % numberOfBulkActions == 0) {
-                BulkResponse bulkResponse = bulkRequest.execute().actionGet();
-                bulkRequest = client.prepareBulk();// After executing, clear the BulkRequestBuilder.
-                if (bulkResponse.hasFailures()) {
-                    // Handle failure by iterating through each bulk response item
-                    processBulkResponseFailure(bulkResponse);
-                }
-            }
-        }
-        // Execute remaining requests
-        if (bulkRequest.numberOfActions() > 0) {
-            BulkResponse response = bulkRequest.execute().actionGet();
-            if (response.hasFailures()) {
-                processBulkResponseFailure(response);
-            }
+        logger.info("Indexing {} triples into Elasticsearch for river [{}] on index [{}] and type [{}]",
+                model.size(), riverName, indexName, typeName);
+        if (describeUris) {
+            prefetchLabels(model);
         }
+        prefetchEmbeddedDocuments(model);
+        submitToPipeline(() -> {
+            pipeline.submit(model, m -> buildDocument(m, describeUris));
+            return null;
+        });
+    }
 
+    /**
+     * Logs number of documents and triples which went through the pipeline during a run
+     *
+     * @param startTime time at which the run started
+     */
+    private void logHarvestSummary(long startTime) {
         long finishTime = System.currentTimeMillis();
         //Show time taken to perform the action
         String actionPerformed = updateDocuments ? "updated" : "indexed";
         logger.info("\n-------------------------------------------"
-                + "\n\tTotal documents " + actionPerformed + ": " + bulkLength
-                + "\n\tTriples: " + model.size()
+                + "\n\tTotal documents " + actionPerformed + ": " + pipeline.getNumberOfDocuments()
+                + "\n\tTriples: " + pipeline.getNumberOfTriples()
+                + "\n\tFailed actions: " + bulkIndexer.getNumberOfFailures()
+                + "\n\tRetried actions: " + bulkIndexer.getNumberOfRetries()
+                + "\n\tDeleted documents: " + bulkIndexer.getNumberOfDeletes()
+                + "\n\tFailed queries: " + numberOfFailedQueries.get()
+                + "\n\tUnchanged documents skipped: " + numberOfUnchangedDocuments.get()
+                + "\n\tLabel cache: " + labelCache.size() + " URIs, " + labelCache.stats().hitCount() + " hits, "
+                + labelCache.stats().missCount() + " misses, " + labelCache.stats().evictionCount() + " evictions, "
+                + String.format(Locale.ROOT, "%.1f%%", labelCache.stats().hitRate() * 100) + " hit rate"
                 + "\n\tRiver: " + riverName
                 + "\n\tIndex: " + indexName
                 + "\n\tType: " + typeName
-                + "\n\tTime to index: " + getTimeString(finishTime - startTime)
+                + "\n\tTime to harvest: " + getTimeString(finishTime - startTime)
                 + "\n\tTotal time (query + index): " + getTimeString(finishTime - getTimeStarted())
                 + "\n-------------------------------------------");
     }
 
     /**
-     * This method processes failures by iterating through each bulk
-     * response item
+     * Builds an index or update request for the resource of a single subject model.
+     * If updateDocuments is set to true, the document is prepared for update,
+     * otherwise it is prepared for indexing.
      *
-     * @param response, a BulkResponse
+     * @param subjectModel a model which contains statements of a single subject
+     * @param describeUris whether to replace URIs with their labels
+     * @return a request, or null if the model has no subject or if the request is handed to
+     * the pipeline once the text content of the document is fetched
      */
-    private void processBulkResponseFailure(BulkResponse response) {
-        logger.warn("There was failures when executing bulk : " + response.buildFailureMessage());
+    private ActionRequest buildDocument(Model subjectModel, boolean describeUris) {
+        return buildDocument(subjectModel, describeUris, false);
+    }
 
-        if (!logger.isDebugEnabled()) {
-            return;
+    /**
+     * Builds a request for the resource of a single subject model
+     *
+     * @param subjectModel a model which contains statements of a single subject
+     * @param describeUris whether to replace URIs with their labels
+     * @param fragment     whether the model is a later fragment of a subject, which is merged
+     *                     into the document built from the earlier triples
+     * @return a request, or null if the model has no subject or if the request is handed to
+     * the pipeline once the text content of the document is fetched
+     */
+    private ActionRequest buildDocument(Model subjectModel, boolean describeUris, boolean fragment) {
+        ResIterator it = subjectModel.listSubjects();
+        if (!it.hasNext()) {
+            return null;
+        }
+        Resource rs = it.nextResource();
+        if (describeUris) {
+            //Labels of models submitted as a whole are already cached, subjects streamed one by one are not
+            prefetchLabels(subjectModel);
+        }
+        Set<Property> properties = getProperties(subjectModel.listStatements());
+        prefetchEmbeddedDocuments(subjectModel);
+        Map<String, Object> jsonMap = getJsonMap(rs, properties, subjectModel, isAutoSuggestionEnabled, describeUris,
+                EmbedScope.root(rs.toString(), embedDepth));
+        String subjectURI = RiverUtils.replaceResourceURI(rs.toString(), resourceURIFragments);
+
+        Object textContent = jsonMap.get(Defaults.TEXT_CONTENT_FIELD);
+        if (textContent instanceof CompletableFuture) {
+            //Hand the document over to the pipeline once its content is fetched, and go on building others
+            @SuppressWarnings("unchecked")
+            CompletableFuture<String> content = (CompletableFuture<String>) textContent;
+            pipeline.submitLater(content.thenApply(text -> {
+                jsonMap.put(Defaults.TEXT_CONTENT_FIELD, text);
+                return prepareDocument(jsonMap, subjectURI, fragment);
+            }));
+            return null;
+        }
+        return prepareDocument(jsonMap, subjectURI, fragment);
+    }
+
+    /**
+     * Prepares a document for update or indexing, depending on {@link #updateDocuments}.
+     * A fragment is merged into the existing document, see {@link #mergeDocuments(Map, Map)},
+     * or creates it if it is missing. The existing document must have been indexed already.
+     */
+    private ActionRequest prepareDocument(Map<String, Object> jsonMap, String subjectURI, boolean fragment) {
+        Map<String, Object> source = convertSingleValueListToString(jsonMap);
+        if (fragment) {
+            //A partial update replaces fields of the same name, so the values are merged here
+            GetResponse existing = client.prepareGet(indexName, typeName, subjectURI)
+                    .execute()
+                    .actionGet();
+            if (existing.isExists() && existing.getSourceAsMap() != null) {
+                source = mergeDocuments(existing.getSourceAsMap(), source);
+            }
+            return client
+                    .prepareUpdate(indexName, typeName, subjectURI)
+                    .setDoc(source)
+                    .setDocAsUpsert(true)
+                    .request();
+        }
+        FingerprintStore store = fingerprintStore;
+        String fingerprint = null;
+        if (store != null) {
+            fingerprint = FingerprintStore.fingerprint(source);
+            if (store.isUnchanged(indexName, typeName, subjectURI, fingerprint)) {
+                numberOfUnchangedDocuments.incrementAndGet();
+                return null;
+            }
+        }
+        ActionRequest request = updateDocuments
+                ? prepareUpdateDocument(source, subjectURI)
+                : prepareIndexDocument(source, subjectURI);
+        if (fingerprint != null) {
+            //Recorded once the document is indexed, see FingerprintListener
+            pendingFingerprints.put(request, fingerprint);
         }
-        for (BulkItemResponse item : response.getItems()) {
-            if (item.isFailed()) {
-                logger.debug("Error {} occurred on index {}, type {}, id {} for {} operation ",
-                        item.getFailureMessage(),
-                        item.getIndex(),
-                        item.getType(),
-                        item.getId(),
-                        item.getOpType());
+        return request;
+    }
+
+    /**
+     * Merges the fields of a fragment of a subject into the document built from its earlier
+     * triples. Values of a field in both are joined without duplicates, and objects such as
+     * the suggest field are merged field by field. The sort label of the document is kept, and
+     * the value for a missing property (see {@link #normalizeMissing}) is dropped once the
+     * property has other values.
+     *
+     * @param document fields of the existing document
+     * @param fragment fields built from the fragment
+     * @return the merged fields
+     */
+    @SuppressWarnings("unchecked")
+    Map<String, Object> mergeDocuments(Map<String, Object> document, Map<String, Object> fragment) {
+        Map<String, Object> merged = new LinkedHashMap<>(document);
+        for (Map.Entry<String, Object> entry : fragment.entrySet()) {
+            String field = entry.getKey();
+            Object existing = merged.get(field);
+            Object value = entry.getValue();
+            if (existing == null) {
+                merged.put(field, value);
+            } else if (field.equals(Defaults.SORT_LABEL_NAME)) {
+                continue;
+            } else if (existing instanceof Map && value instanceof Map) {
+                merged.put(field, mergeDocuments((Map<String, Object>) existing, (Map<String, Object>) value));
+            } else {
+                Set<Object> values = new LinkedHashSet<>();
+                addValues(values, existing);
+                addValues(values, value);
+                if (willNormalizeMissing && normalizeMissing.containsKey(field) && values.size() > 1) {
+                    values.remove(normalizeMissing.get(field));
+                }
+                merged.put(field, values.size() == 1 ? values.iterator().next() : new ArrayList<>(values));
             }
+        }
+        return merged;
+    }
 
+    private static void addValues(Set<Object> values, Object value) {
+        if (value instanceof Collection) {
+            values.addAll((Collection<?>) value);
+        } else {
+            values.add(value);
         }
     }
 
@@ -1621,20 +3328,22 @@ public class Harvester implements Runnable {
      * This is useful if someone wants to update a partial document in
      * ElasticSearch without full re-indexing. Hemed, 09-03-2015
      */
-    private void prepareUpdateDocument(BulkRequestBuilder bulkRequest, Map<String, Object> source, String documentId) {
-        bulkRequest.add(client
+    private ActionRequest prepareUpdateDocument(Map<String, Object> source, String documentId) {
+        return client
                 .prepareUpdate(indexName, typeName, documentId)
                 //Merge this document to the existing one of the same Id.
-                .setDoc(source));
+                .setDoc(source)
+                .request();
     }
 
     /**
      * Prepare document to be bulk indexed in Elasticsearch
      */
-    private void prepareIndexDocument(BulkRequestBuilder bulkRequest, Map<String, Object> source, String documentId) {
-        bulkRequest.add(client
+    private ActionRequest prepareIndexDocument(Map<String, Object> source, String documentId) {
+        return client
                 .prepareIndex(indexName, typeName, documentId)
-                .setSource(source));
+                .setSource(source)
+                .request();
     }
 
     /**
@@ -1696,7 +3405,7 @@ public class Harvester implements Runnable {
      * surrounded by double quotes.</p>
      * Otherwise, the URI will be returned
      */
-    private String getStringForResult(Resource resource, RDFNode node) {
+    private String getStringForResult(Resource resource, RDFNode node, boolean describeUris) {
         String result = "";
         boolean quote = false;
         if (node.isLiteral()) {
@@ -1726,18 +3435,12 @@ public class Harvester implements Runnable {
         } else if (node.isResource()) {
             try {
                 result = node.asResource().getURI();
-                if (toDescribeURIs) {
+                if (describeUris) {
                     // NOTE: By default, we have excluded possibility of getting labels
                     // from SPARQL endpoint because it was error-prone due to
                     // HTTP Exceptions - too many requests in less than a second
                     // threw BindException - Address already in use.
-                    if (tdbDataset != null) {
-                        result = getLabelForUriFromTDB(result, tdbDataset);
-                    } else {//Fall back
-                        if (!rdfEndpoint.isEmpty()) {
-                            result = getLabelForUriFromEndpoint(result);
-                        }
-                    }
+                    result = getLabelForUri(result);
                 }
                 quote = true;
             } catch (Exception ex) {
@@ -1750,6 +3453,432 @@ public class Harvester implements Runnable {
         return result;
     }
 
+    /**
+     * Gets label for a URI from the label cache, looking it up in TDB or
+     * the endpoint if it is not cached
+     *
+     * @param uri the URI for which a label is required
+     * @return a label or the URI if no label is obtained
+     */
+    private String getLabelForUri(String uri) {
+        LabelDictionary dictionary = labelDictionary;
+        if (dictionary != null) {
+            //All labels are in memory, a URI which is not there has no label
+            String label = dictionary.get(uri);
+            return label != null ? label : uri;
+        }
+        String label = labelCache.get(uri, this::lookupLabelForUri);
+        return label != null ? label : uri;
+    }
+
+    /**
+     * Gets the document of a resource which is embedded into another one. A resource is
+     * built from a DESCRIBE of itself, never from whatever part of it the parent model holds.
+     * Documents embedded right into a harvested document do not depend on their parent, and
+     * are memoised such that resources which are embedded by many others are described once.
+     * A memoised document which embeds a resource above it is not reused, as that would be a
+     * cycle back to the harvested document.
+     *
+     * @param resource the resource to embed
+     * @param model    the model of the parent, which may hold a DESCRIBE of the resource
+     * @param scope    where the parent sits among embedded documents
+     * @return the embedded document, or null if the depth is exhausted, the resource is
+     * already embedded above (a cycle) or it cannot be described
+     */
+    private Map<String, Object> getEmbeddedDocument(Resource resource, Model model, EmbedScope scope) {
+        String uri = resource.toString();
+        if (scope.depth < 1 || scope.path.contains(uri)) {
+            return null;
+        }
+        if (!scope.isRoot()) {
+            scope.embedded.add(uri);
+            EmbeddedDocument document = buildEmbeddedDocument(resource, model, scope);
+            return document != null ? document.document : null;
+        }
+        EmbeddedDocument document = embeddedDocuments.getIfPresent(uri);
+        if (document == null) {
+            document = buildEmbeddedDocument(resource, model, EmbedScope.root(null, scope.depth));
+            if (document == null) {
+                return null;
+            }
+            embeddedDocuments.put(uri, document);
+        }
+        if (Collections.disjoint(document.resources, scope.path)) {
+            return document.document;
+        }
+        EmbeddedDocument rebuilt = buildEmbeddedDocument(resource, model, scope);
+        return rebuilt != null ? rebuilt.document : null;
+    }
+
+    /**
+     * Builds the document of an embedded resource, from the model of the parent if it holds a
+     * DESCRIBE of the resource, or from a DESCRIBE of it otherwise
+     *
+     * @return the document or null if the resource cannot be described
+     */
+    private EmbeddedDocument buildEmbeddedDocument(Resource resource, Model model, EmbedScope scope) {
+        if (scope.described.contains(resource)) {
+            return buildEmbeddedDocument(resource, model, scope.described, scope);
+        }
+        Model description = describe(resource);
+        if (description == null) {
+            return null;
+        }
+        return buildEmbeddedDocument(resource, description, Collections.singleton(resource), scope);
+    }
+
+    /**
+     * Builds the document of an embedded resource from a model which holds its description
+     *
+     * @param described resources whose DESCRIBE is in the model
+     */
+    private EmbeddedDocument buildEmbeddedDocument(Resource resource, Model model, Set<Resource> described,
+                                                   EmbedScope scope) {
+        EmbedScope child = scope.child(resource.toString(), described);
+        Set<Property> properties = getProperties(model.listStatements(resource, null, (RDFNode) null));
+        //Suggestion is switched off for embedded documents
+        Map<String, Object> document = convertSingleValueListToString(
+                getJsonMap(resource, properties, model, false, toDescribeURIs, child));
+        return new EmbeddedDocument(document, child.embedded);
+    }
+
+    /**
+     * Describes the resources which are embedded by the subjects of a model and are not
+     * memoised yet, level by level down to {@link #embedDepth}, in batches of
+     * {@link #embedBatchSize} resources per query, and memoises their documents
+     *
+     * @param model a model whose subjects embed other resources
+     */
+    private void prefetchEmbeddedDocuments(Model model) {
+        if (!Strings.hasText(embedResourceUsingProperty) || embedDepth < 1) {
+            return;
+        }
+        Property embedProperty = model.createProperty(embedResourceUsingProperty);
+        Set<Resource> targets = getResourcesToEmbed(model, model.listObjectsOfProperty(embedProperty),
+                Collections.emptySet());
+        if (targets.isEmpty()) {
+            return;
+        }
+        Model descriptions = ModelFactory.createDefaultModel();
+        Set<Resource> described = new HashSet<>();
+        Set<Resource> level = targets;
+        for (int i = 0; i < embedDepth && !level.isEmpty(); i++) {
+            List<Resource> batch = new ArrayList<>(embedBatchSize);
+            for (Resource resource : level) {
+                batch.add(resource);
+                if (batch.size() == embedBatchSize) {
+                    describeBatch(batch, descriptions, described);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                describeBatch(batch, descriptions, described);
+            }
+            Set<Resource> next = new LinkedHashSet<>();
+            for (Resource resource : level) {
+                next.addAll(getResourcesToEmbed(descriptions,
+                        descriptions.listObjectsOfProperty(resource, embedProperty), described));
+            }
+            level = next;
+        }
+        if (toDescribeURIs) {
+            prefetchLabels(descriptions);
+        }
+        for (Resource target : targets) {
+            //Targets which could not be described are described one by one when embedded
+            if (described.contains(target)) {
+                embeddedDocuments.put(target.toString(), buildEmbeddedDocument(target, descriptions, described,
+                        EmbedScope.root(null, embedDepth)));
+            }
+        }
+    }
+
+    /**
+     * Gets URI resources among given nodes which are neither memoised nor excluded
+     */
+    private Set<Resource> getResourcesToEmbed(Model model, NodeIterator nodes, Set<Resource> excluded) {
+        Set<Resource> resources = new LinkedHashSet<>();
+        while (nodes.hasNext()) {
+            RDFNode node = nodes.next();
+            if (node.isURIResource() && isValidIRIRef(node.asResource().getURI())
+                    && !excluded.contains(node)
+                    && !embeddedDocuments.asMap().containsKey(node.toString())) {
+                resources.add(node.asResource().inModel(model));
+            }
+        }
+        return resources;
+    }
+
+    /**
+     * Describes a batch of resources with a single query and adds their descriptions to a model
+     */
+    private void describeBatch(List<Resource> batch, Model descriptions, Set<Resource> described) {
+        try {
+            Model model = describe(batch);
+            if (model != null) {
+                descriptions.add(model);
+                described.addAll(batch);
+            }
+        } catch (Exception e) {
+            logger.warn("Could not describe {} resources to embed. Details: {}",
+                    batch.size(), e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Loads every label of the properties in {@link #uriDescriptionList} into a dictionary, in
+     * one pass per property and in order of priority. TDB is scanned in a single query per
+     * property, while endpoints are paged by {@link #pageSize} labels, see
+     * {@link #getPreloadPageForLabels(String, String)}.
+     *
+     * @return a dictionary of labels or null if no labels could be loaded
+     */
+    private LabelDictionary preloadLabels() {
+        if (uriDescriptionList == null || uriDescriptionList.isEmpty()) {
+            return null;
+        }
+        long startTime = System.currentTimeMillis();
+        LabelDictionary dictionary = new LabelDictionary();
+        TDBStore store = getTDBStore();
+        try {
+            for (String property : uriDescriptionList) {
+                if (store != null) {
+                    Query query = QueryFactory.create(getPreloadQueryForLabels(property));
+                    store.calculateRead(() -> {
+                        try (QueryExecution qexec = QueryExecutionFactory.create(query, store.getDataset())) {
+                            return loadLabels(qexec.execSelect(), dictionary);
+                        }
+                    });
+                } else if (!rdfEndpoint.isEmpty()) {
+                    String lastKey = null;
+                    while (!closed) {
+                        Query query = getPreloadPageForLabels(property, lastKey);
+                        try (QueryExecution qexec = QueryExecutionFactory.sparqlService(rdfEndpoint, query)) {
+                            ResultSet results = qexec.execSelect();
+                            lastKey = loadLabels(results, dictionary);
+                            if (results.getRowNumber() < pageSize) {
+                                break;
+                            }
+                        }
+                    }
+                } else {
+                    return null;
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Could not preload labels, labels will be looked up instead. Details: {}",
+                    e.getLocalizedMessage());
+            return null;
+        }
+        dictionary.seal();
+        logger.info("Preloaded labels of {} URIs ({} distinct labels) for river [{}] in {}",
+                dictionary.size(), dictionary.getNumberOfLabels(), riverName,
+                getTimeString(System.currentTimeMillis() - startTime));
+        return dictionary;
+    }
+
+    /**
+     * Adds labels of a result of {@link #getPreloadQueryForLabels(String)} to a dictionary
+     *
+     * @return URI of the last row read, or null if there was no row
+     */
+    private String loadLabels(ResultSet results, LabelDictionary dictionary) {
+        String lastUri = null;
+        while (results.hasNext() && !closed) {
+            QuerySolution sol = results.nextSolution();
+            RDFNode uri = sol.get("uri");
+            RDFNode label = sol.get("label");
+            if (uri != null && uri.isURIResource()) {
+                lastUri = uri.asResource().getURI();
+                if (label != null && label.isLiteral()) {
+                    String value = RiverUtils.parseForJson(label.asLiteral().getLexicalForm());
+                    if (!value.isEmpty()) {
+                        dictionary.putIfAbsent(lastUri, value);
+                    }
+                }
+            }
+        }
+        return lastUri;
+    }
+
+    /**
+     * Builds a query which selects the next page of labels of a given property from an endpoint.
+     * Pages are keyed by the string value of the URI, such that the endpoint does not sort and
+     * skip over all previous pages for each page: <tt>FILTER(STR(?uri) > "last")
+     * ORDER BY STR(?uri) ?label LIMIT n</tt>. Labels of the last URI of a page which are left
+     * for the next page are skipped, as only the first label of a URI is kept.
+     *
+     * @param property a label property
+     * @param afterKey last URI of the previous page, or null for the first page
+     */
+    Query getPreloadPageForLabels(String property, String afterKey) {
+        Query query = QueryFactory.create(getPreloadQueryForLabels(property));
+        ElementGroup group = new ElementGroup();
+        group.addElement(query.getQueryPattern());
+        ExprVar uri = new ExprVar("uri");
+        group.addElementFilter(new ElementFilter(new E_IsIRI(uri)));
+        if (afterKey != null) {
+            group.addElementFilter(new ElementFilter(new E_GreaterThan(
+                    new E_Str(uri), NodeValue.makeString(afterKey))));
+        }
+        query.setQueryPattern(group);
+        query.addOrderBy(new E_Str(uri), Query.ORDER_ASCENDING);
+        query.addOrderBy("label", Query.ORDER_ASCENDING);
+        query.setLimit(pageSize);
+        return query;
+    }
+
+    /**
+     * Builds a query which selects every (?uri, ?label) pair of a given label property,
+     * with the same language filter as {@link QueryTemplates#labelQuery(String)}
+     */
+    private String getPreloadQueryForLabels(String property) {
+        return "SELECT ?uri ?label WHERE { GRAPH ?G { ?uri <" + property + "> ?label } "
+                + QueryTemplates.getLanguageFilterForLabel(language) + "} ";
+    }
+
+    /**
+     * Resolves labels of all URI objects of a model which are not cached yet, in batches of
+     * {@link #labelBatchSize} URIs per query, and caches them
+     *
+     * @param model a model whose objects are to be described
+     */
+    private void prefetchLabels(Model model) {
+        if (labelDictionary != null || labelBatchSize <= 1 || labelCacheSize == 0 || uriDescriptionList == null || uriDescriptionList.isEmpty()) {
+            return;
+        }
+        Set<String> uris = new LinkedHashSet<>();
+        NodeIterator objects = model.listObjects();
+        while (objects.hasNext()) {
+            RDFNode node = objects.next();
+            if (node.isURIResource() && isValidIRIRef(node.asResource().getURI())
+                    && !labelCache.contains(node.asResource().getURI())) {
+                uris.add(node.asResource().getURI());
+            }
+        }
+        List<String> batch = new ArrayList<>(labelBatchSize);
+        PersistentLabelStore store = labelStore;
+        for (String uri : uris) {
+            String stored = store != null ? store.get(uri) : null;
+            if (stored != null) {
+                labelCache.put(uri, stored);
+                continue;
+            }
+            batch.add(uri);
+            if (batch.size() == labelBatchSize) {
+                resolveLabels(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            resolveLabels(batch);
+        }
+    }
+
+    /**
+     * Resolves labels of a batch of URIs with a single query and caches them. URIs without
+     * a label are cached as such. If the query fails, nothing is cached and the URIs are
+     * looked up one by one later on.
+     */
+    private void resolveLabels(List<String> uris) {
+        Query query = null;
+        Map<String, String> labels;
+        try {
+            query = getQueryTemplates().labelsQuery(uris);
+            labels = selectLabels(query);
+            if (labels == null) {
+                return;
+            }
+        } catch (Exception e) {
+            logger.warn("Could not get labels for {} uris with query [{}]. Details: {}",
+                    uris.size(), query, e.getLocalizedMessage());
+            return;
+        }
+        PersistentLabelStore store = labelStore;
+        for (String uri : uris) {
+            labelCache.put(uri, labels.get(uri));
+            if (store != null) {
+                store.put(uri, labels.get(uri));
+            }
+        }
+    }
+
+    /**
+     * Runs a query of {@link QueryTemplates#labelsQuery(Collection)} against TDB or the endpoint
+     *
+     * @return the first label of each URI, or null if there is neither TDB nor an endpoint
+     */
+    private Map<String, String> selectLabels(Query query) {
+        TDBStore store = tdbStore;
+        if (store != null) {
+            return store.calculateRead(() -> {
+                try (QueryExecution qexec = QueryExecutionFactory.create(query, store.getDataset())) {
+                    return getLexicalForms(qexec.execSelect());
+                }
+            });
+        } else if (!rdfEndpoint.isEmpty()) {
+            try (QueryExecution qexec = QueryExecutionFactory.sparqlService(rdfEndpoint, query)) {
+                return getLexicalForms(qexec.execSelect());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the first label of each URI of a result of {@link QueryTemplates#labelsQuery(Collection)}
+     */
+    private Map<String, String> getLexicalForms(ResultSet results) {
+        Map<String, String> labels = new HashMap<>();
+        while (results.hasNext()) {
+            QuerySolution sol = results.nextSolution();
+            if (sol.contains("uri") && sol.contains("label") && sol.get("label").isLiteral()) {
+                String label = RiverUtils.parseForJson(sol.getLiteral("label").getLexicalForm());
+                if (!label.isEmpty()) {
+                    labels.putIfAbsent(sol.getResource("uri").getURI(), label);
+                }
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Checks whether a URI can be written between angle brackets in a query
+     */
+    private static boolean isValidIRIRef(String uri) {
+        for (int i = 0; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c <= ' ' || "<>\"{}|^`\\".indexOf(c) >= 0) {
+                return false;
+            }
+        }
+        return !uri.isEmpty();
+    }
+
+    /**
+     * Looks up label for a URI in the on-disk label store, then in TDB or, as a fall back, in the endpoint
+     *
+     * @return a label, an empty string if there is no label or null if the lookup failed
+     */
+    private String lookupLabelForUri(String uri) {
+        PersistentLabelStore persistent = labelStore;
+        String label = persistent != null ? persistent.get(uri) : null;
+        if (label != null) {
+            return label;
+        }
+        TDBStore store = tdbStore;
+        if (store != null) {
+            label = getLabelForUriFromTDB(uri, store);
+        } else if (!rdfEndpoint.isEmpty()) {
+            label = getLabelForUriFromEndpoint(uri);
+        } else {
+            return "";
+        }
+        if (persistent != null && label != null) {
+            persistent.put(uri, label);
+        }
+        return label;
+    }
+
     /**
      * Returns the string value of the first of the properties in the
      * uriDescriptionList for the given resource (as an URI). In case the
@@ -1762,34 +3891,29 @@ public class Harvester implements Runnable {
      * labels or titles, with test values.
      *
      * @param uri - the URI for which a label is required
-     * @return a String value, either a label for the parameter or its value
-     * if no label is obtained from the endpoint
+     * @return a String value, either a label for the parameter, an empty string
+     * if the endpoint has no label for it or null if the endpoint could not be queried
      */
     private String getLabelForUriFromEndpoint(String uri) {
-        String innerQuery = getInnerQueryForLabel(uri);
         try {
-            Query query = QueryFactory.create(innerQuery);
+            Query query = getQueryTemplates().labelQuery(uri);
             QueryExecution qexec = QueryExecutionFactory.sparqlService(rdfEndpoint, query);
             try {
                 ResultSet results = qexec.execSelect();
-                String result = getLexicalForm(results);
-                if (!result.isEmpty()) {
-                    qexec.close();
-                    return result;
-                }
+                return getLexicalForm(results);
             } catch (Exception ex) {
                 logger.warn("Could not get label for uri [{}] from endpoint [{}] with query [{}] ",
-                        uri, rdfEndpoint, innerQuery);
+                        uri, rdfEndpoint, query);
                 ex.getLocalizedMessage();
             } finally {
                 qexec.close();
             }
         } catch (QueryParseException qpe) {
-            logger.error("Exception for query [{}]. "
-                    + "Please check your SPARQL query syntax. The label cannot be obtained. " +
-                    "Details [{}] ", innerQuery, qpe.getLocalizedMessage());
+            logger.error("Exception for label query of [{}]. "
+                    + "Please check your uriDescription properties. The label cannot be obtained. " +
+                    "Details [{}] ", uri, qpe.getLocalizedMessage());
         }
-        return uri;
+        return null;
     }
 
     /**
@@ -1803,30 +3927,29 @@ public class Harvester implements Runnable {
      * <p>
      *
      * @param uri - the URI for which a label is required
-     * @return a String value, either a label for the parameter or its value
-     * if no label is obtained, the URI is returned.
+     * @return a String value, either a label for the parameter, an empty string
+     * if TDB has no label for it or null if TDB could not be queried
      */
-    private String getLabelForUriFromTDB(String uri, Dataset dataset) {
-        String innerQuery = getInnerQueryForLabel(uri);
+    private String getLabelForUriFromTDB(String uri, TDBStore store) {
         try {
-            Query query = QueryFactory.create(innerQuery);
-            try (QueryExecution qexec = QueryExecutionFactory.create(query, dataset)) {
-                ResultSet results = qexec.execSelect();
-                String result = getLexicalForm(results);
-                if (!result.isEmpty()) {
-                    return result;
-                }
+            Query query = getQueryTemplates().labelQuery(uri);
+            try {
+                return store.calculateRead(() -> {
+                    try (QueryExecution qexec = QueryExecutionFactory.create(query, store.getDataset())) {
+                        return getLexicalForm(qexec.execSelect());
+                    }
+                });
             } catch (Exception e) {
                 logger.warn("Could not get label for uri [{}] from TDB [{}] with query [{}] ",
-                        uri, tdbLocation, innerQuery);
+                        uri, tdbLocation, query);
                 e.getLocalizedMessage();
             }
         } catch (QueryParseException qpe) {
-            logger.error("Exception for query [{}]. "
-                    + "Please check your SPARQL query syntax. "
-                    + "The label cannot be obtained. ", innerQuery);
+            logger.error("Exception for label query of [{}]. "
+                    + "Please check your uriDescription properties. "
+                    + "The label cannot be obtained. ", uri);
         }
-        return uri;
+        return null;
     }
 
     /**
@@ -1845,45 +3968,73 @@ public class Harvester implements Runnable {
 
 
     /**
-     * A method to build up the query based on the uriDescriptionList. The
-     * query will be used to fetch label from the resources. Hemed,
-     * 26-05-2015
-     *
-     * @param uri
-     * @return SPARQL query as a string
-     * @since 26-05-15 At the end, we need an inner query like the
-     * following:- String innerQuery = "SELECT ?label " + "WHERE { GRAPH ?G
-     * { " + "OPTIONAL { <" + uri + "> " +
-     * "<http://www.w3.org/2000/01/rdf-schema#label> ?rdfLabel } " +
-     * "OPTIONAL { <" + uri + "> " + "<http://xmlns.com/foaf/0.1/name>
-     * ?foafName } " + "OPTIONAL { <" + uri + "> " +
-     * "<http://www.w3.org/2004/02/skos/core#prefLabel> ?prefLabel } " +
-     * "BIND(COALESCE(?foafName,?rdfLabel,?prefLabel) AS ?label) " + "}} "
+     * Gets the query templates for the settings of this river, parsing them on first use
+     */
+    private QueryTemplates getQueryTemplates() {
+        QueryTemplates templates = queryTemplates;
+        if (templates == null) {
+            templates = new QueryTemplates(uriDescriptionList, language, toDescribeURIs);
+            queryTemplates = templates;
+        }
+        return templates;
+    }
+
+    /**
+     * Where a document sits in a tree of embedded documents
      */
-    private String getInnerQueryForLabel(String uri) {
+    private static class EmbedScope {
+        //How many levels of resources may still be embedded
+        final int depth;
+        //URIs from the harvested document down to this one, used to detect cycles
+        final Set<String> path;
+        //Resources whose DESCRIBE is in the model of this document
+        final Set<Resource> described;
+        //Collects URIs of the documents embedded below the document right under the harvested one
+        final Set<String> embedded;
+
+        private EmbedScope(int depth, Set<String> path, Set<Resource> described, Set<String> embedded) {
+            this.depth = depth;
+            this.path = path;
+            this.described = described;
+            this.embedded = embedded;
+        }
 
-        String options = "";
-        String bind = "";
-        int count = 0;
-        String labelCoalesce = "";
+        /**
+         * Scope of a harvested document
+         *
+         * @param uri   URI of the document, or null for a scope which does not depend on it
+         * @param depth how many levels of resources may be embedded
+         */
+        static EmbedScope root(String uri, int depth) {
+            return new EmbedScope(depth, uri == null ? Collections.emptySet() : Collections.singleton(uri),
+                    Collections.emptySet(), null);
+        }
 
-        //This is too specific to the University of Bergen Library´s Ontology.
-        //In the future, you might want to let the default language be automatically picked up.
-        String filter = "FILTER (langMatches(lang(?label), \"\") || langMatches(lang(?label), \"" + language + "\")) ";
+        boolean isRoot() {
+            return embedded == null;
+        }
 
-        //Iterate over the list and build up the options.
-        for (String property : uriDescriptionList) {
-            String label = "?label" + count++;
-            options += "OPTIONAL { <" + uri + "> " + "<" + property + "> " + label + " } ";
-            labelCoalesce += label + ",";
+        /**
+         * Scope of a document embedded into the document of this scope
+         */
+        EmbedScope child(String uri, Set<Resource> described) {
+            Set<String> childPath = new HashSet<>(path);
+            childPath.add(uri);
+            return new EmbedScope(depth - 1, childPath, described, isRoot() ? new HashSet<>() : embedded);
         }
-        //Build up coalesce string, this function checks the label for the first occurrence in sequential order,
-        //and if the label was not found, it checks for the next one.
-        bind += "BIND(COALESCE(" + labelCoalesce.substring(0, labelCoalesce.length() - 1) + ") AS ?label) ";
+    }
 
-        //Build up the final query to fetch the corresponding label.
-        return "SELECT ?label "
-                + "WHERE { GRAPH ?G { " + options + bind + "} " + filter + "} " + "LIMIT 1";
+    /**
+     * A memoised embedded document together with the URIs of the documents embedded into it
+     */
+    private static class EmbeddedDocument {
+        final Map<String, Object> document;
+        final Set<String> resources;
+
+        EmbeddedDocument(Map<String, Object> document, Set<String> resources) {
+            this.document = document;
+            this.resources = resources;
+        }
     }
 
     private enum QueryType {
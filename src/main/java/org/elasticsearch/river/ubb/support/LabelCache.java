@@ -0,0 +1,109 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.CacheStats;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * A bounded, concurrent cache of labels for URIs, evicting least recently used entries
+ * beyond a maximum number of URIs.
+ * <p>
+ * URIs which have no label are cached as well, such that they are not looked up again.
+ * Failed lookups are not cached. Labels may expire some time after they were looked up, such
+ * that a river which keeps running sees labels which have changed meanwhile. Concurrent lookups of the same URI wait for a single lookup.
+ */
+public class LabelCache {
+    private static final String NO_LABEL = "";
+    private final Cache<String, String> cache;
+
+    /**
+     * @param maximumSize maximum number of URIs to keep labels for
+     */
+    public LabelCache(long maximumSize) {
+        this(maximumSize, null);
+    }
+
+    /**
+     * @param maximumSize maximum number of URIs to keep labels for
+     * @param ttl         time after which a label is looked up again, or null to keep labels
+     *                    until they are evicted
+     */
+    public LabelCache(long maximumSize, TimeValue ttl) {
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(maximumSize, 0))
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .recordStats();
+        if (ttl != null && ttl.millis() > 0) {
+            builder.expireAfterWrite(ttl.millis(), TimeUnit.MILLISECONDS);
+        }
+        this.cache = builder.build();
+    }
+
+    /**
+     * Gets label of a URI, looking it up if it is not cached
+     *
+     * @param uri    a URI
+     * @param lookup a function which returns the label of a URI, an empty string if the URI
+     *               has no label, or null if the lookup failed
+     * @return the label or null if the URI has no label or the lookup failed
+     */
+    public String get(String uri, Function<String, String> lookup) {
+        try {
+            String label = cache.get(uri, () -> {
+                String value = lookup.apply(uri);
+                if (value == null) {
+                    throw new LookupFailedException();
+                }
+                return value;
+            });
+            return NO_LABEL.equals(label) ? null : label;
+        } catch (ExecutionException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether a URI is cached, with or without a label, without counting a hit or a miss
+     */
+    public boolean contains(String uri) {
+        return cache.asMap().containsKey(uri);
+    }
+
+    /**
+     * Caches label of a URI
+     *
+     * @param uri   a URI
+     * @param label its label, or null or an empty string if the URI has no label
+     */
+    public void put(String uri, String label) {
+        cache.put(uri, label == null ? NO_LABEL : label);
+    }
+
+    /**
+     * Gets number of URIs in the cache
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * Gets hit, miss and eviction counters of the cache
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * Thrown to keep a failed lookup out of the cache
+     */
+    private static class LookupFailedException extends Exception {
+        LookupFailedException() {
+            super(null, null, false, false);
+        }
+    }
+}
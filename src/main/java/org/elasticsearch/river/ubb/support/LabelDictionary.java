@@ -0,0 +1,133 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.common.hash.MurmurHash3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact, in-memory dictionary of labels for URIs, meant to hold every label of a store
+ * such that labels can be resolved without any I/O.
+ * <p>
+ * URIs are kept as UTF-8 bytes in an open addressing table keyed by a 64 bit hash of the URI,
+ * and a hit is only taken once the bytes of the URI match, such that two URIs with the same
+ * hash never share a label. Labels are interned, such that a label shared by many URIs is
+ * kept once. Once a URI has a label, later labels for it are ignored, such that
+ * labels can be added in order of priority.
+ * <p>
+ * Adding labels is not thread safe. Once loaded, the dictionary can be read by many threads.
+ */
+public class LabelDictionary {
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final double MAX_LOAD = 0.7;
+    private final ArrayList<String> labels = new ArrayList<>();
+    private final Map<String, Integer> labelIds = new HashMap<>();
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private byte[][] uris = new byte[INITIAL_CAPACITY][];
+    private int[] values = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Adds label of a URI, unless the URI already has a label
+     *
+     * @param uri   a URI
+     * @param label its label
+     * @return true if the label was added
+     */
+    public boolean putIfAbsent(String uri, String label) {
+        byte[] bytes = uri.getBytes(StandardCharsets.UTF_8);
+        long key = hash(bytes);
+        int slot = findSlot(key, bytes);
+        if (keys[slot] != 0) {
+            return false;
+        }
+        Integer id = labelIds.get(label);
+        if (id == null) {
+            id = labels.size();
+            labels.add(label);
+            labelIds.put(label, id);
+        }
+        keys[slot] = key;
+        uris[slot] = bytes;
+        values[slot] = id;
+        if (++size > keys.length * MAX_LOAD) {
+            resize(keys.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * Gets label of a URI
+     *
+     * @param uri a URI
+     * @return the label or null if the URI has no label
+     */
+    public String get(String uri) {
+        byte[] bytes = uri.getBytes(StandardCharsets.UTF_8);
+        int slot = findSlot(hash(bytes), bytes);
+        return keys[slot] == 0 ? null : labels.get(values[slot]);
+    }
+
+    /**
+     * Gets number of URIs with a label
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets number of distinct labels
+     */
+    public int getNumberOfLabels() {
+        return labels.size();
+    }
+
+    /**
+     * Drops structures which are only needed while adding labels
+     */
+    public void seal() {
+        labelIds.clear();
+        labels.trimToSize();
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        byte[][] oldUris = uris;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        uris = new byte[capacity][];
+        values = new int[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                //Keys are distinct, so the first free slot is taken
+                int slot = findSlot(oldKeys[i], null);
+                keys[slot] = oldKeys[i];
+                uris[slot] = oldUris[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Gets the slot of a URI, i.e the slot which holds it or the empty slot where it belongs
+     */
+    private int findSlot(long key, byte[] uri) {
+        int mask = keys.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (keys[slot] != 0 && (keys[slot] != key || !Arrays.equals(uris[slot], uri))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Hashes a URI to a non zero key, zero marking empty slots
+     */
+    private static long hash(byte[] bytes) {
+        long hash = MurmurHash3.hash128(bytes, 0, bytes.length, 0, new MurmurHash3.Hash128()).h1;
+        return hash == 0 ? 1 : hash;
+    }
+}
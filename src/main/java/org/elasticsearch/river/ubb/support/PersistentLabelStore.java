@@ -0,0 +1,429 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An on-disk store of URI labels which survives river runs, such that warm runs do not have
+ * to look up labels again.
+ * <p>
+ * The store is made of two files in a directory:
+ * <ul>
+ * <li><tt>labels-&lt;settings&gt;.dat</tt>, an append only log of records
+ * <tt>[key length][label length][time written][key][label]</tt>, where a label length of -1
+ * means that the URI has no label.</li>
+ * <li><tt>labels-&lt;settings&gt;.idx</tt>, a memory-mapped, open addressing hash table of
+ * <tt>[hash of key][offset of latest record]</tt> slots.</li>
+ * </ul>
+ * Both live outside of the heap. File names carry a hash of the settings the labels were
+ * looked up with, e.g the label properties and language, and files written with other
+ * settings are deleted when the store is opened. The index is rebuilt from the log if it is
+ * missing, invalid or points outside of the log. Records older than the time to live are
+ * treated as missing, such that their labels are looked up and written again. Old records
+ * are not reclaimed; delete the directory to start over.
+ */
+public class PersistentLabelStore implements Closeable {
+    private static final ESLogger logger = Loggers.getLogger(PersistentLabelStore.class);
+    private static final int MAGIC = 0x55424C53;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final double MAX_LOAD = 0.7;
+    private static final int NO_LABEL = -1;
+    private final Path directory;
+    private final String prefix;
+    private final long ttlMillis;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final FileChannel data;
+    private MappedByteBuffer index;
+    private int capacity;
+    private int size;
+
+    /**
+     * Opens or creates a store in a given directory
+     *
+     * @param directory a directory for the files of the store
+     * @param ttl       time after which a label is looked up again, or null to keep labels forever
+     */
+    public PersistentLabelStore(Path directory, TimeValue ttl) throws IOException {
+        this(directory, "", ttl);
+    }
+
+    /**
+     * Opens or creates a store in a given directory, for labels looked up with given settings
+     *
+     * @param directory a directory for the files of the store
+     * @param settings  the settings labels are looked up with, such that labels looked up with
+     *                  other settings are not used
+     * @param ttl       time after which a label is looked up again, or null to keep labels forever
+     */
+    public PersistentLabelStore(Path directory, String settings, TimeValue ttl) throws IOException {
+        this.directory = directory;
+        byte[] bytes = settings.getBytes(StandardCharsets.UTF_8);
+        this.prefix = "labels-" + Long.toHexString(hash(bytes));
+        this.ttlMillis = ttl != null && ttl.millis() > 0 ? ttl.millis() : Long.MAX_VALUE;
+        Files.createDirectories(directory);
+        deleteStaleFiles();
+        this.data = FileChannel.open(directory.resolve(prefix + ".dat"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (!openIndex()) {
+            rebuildIndex();
+        }
+        logger.info("Opened label store [{}] with {} labels", directory, size);
+    }
+
+    /**
+     * Gets label of a URI, if it is stored and has not expired
+     *
+     * @param uri a URI
+     * @return the label, an empty string if the URI is stored without a label,
+     * or null if it is not stored or has expired
+     */
+    public String get(String uri) {
+        byte[] key = uri.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(key);
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(hash, key);
+            long offset = index.getLong(slotPosition(slot) + 8);
+            if (offset == 0) {
+                return null;
+            }
+            ByteBuffer header = readFully(offset - 1, RECORD_HEADER_SIZE);
+            int labelLength = header.getInt(4);
+            long written = header.getLong(8);
+            if (labelLength < NO_LABEL
+                    || offset - 1 + RECORD_HEADER_SIZE + key.length + Math.max(labelLength, 0) > data.size()) {
+                logger.warn("Invalid record of [{}] in label store [{}]", uri, directory);
+                return null;
+            }
+            if (System.currentTimeMillis() - written > ttlMillis) {
+                return null;
+            }
+            if (labelLength == NO_LABEL) {
+                return "";
+            }
+            ByteBuffer label = readFully(offset - 1 + RECORD_HEADER_SIZE + key.length, labelLength);
+            return new String(label.array(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            logger.warn("Could not read label of [{}] from [{}]: {}", uri, directory, e.getLocalizedMessage());
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores label of a URI
+     *
+     * @param uri   a URI
+     * @param label its label, or null or an empty string if the URI has no label
+     */
+    public void put(String uri, String label) {
+        byte[] key = uri.getBytes(StandardCharsets.UTF_8);
+        byte[] value = label == null || label.isEmpty() ? null : label.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(key);
+        lock.writeLock().lock();
+        try {
+            long offset = append(key, value);
+            int slot = findSlot(hash, key);
+            int position = slotPosition(slot);
+            if (index.getLong(position + 8) == 0) {
+                size++;
+                index.putInt(12, size);
+            }
+            index.putLong(position, hash);
+            index.putLong(position + 8, offset + 1);
+            if (size > capacity * MAX_LOAD) {
+                resize(capacity * 2);
+            }
+        } catch (IOException e) {
+            logger.warn("Could not write label of [{}] to [{}]: {}", uri, directory, e.getLocalizedMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets number of URIs in the store, including expired ones
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            index.force();
+            data.force(false);
+            data.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the slot of a key, i.e the slot which holds it or the empty slot where it belongs
+     */
+    private int findSlot(long hash, byte[] key) throws IOException {
+        int mask = capacity - 1;
+        for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+            int position = slotPosition(slot);
+            long offset = index.getLong(position + 8);
+            if (offset == 0) {
+                return slot;
+            }
+            if (index.getLong(position) == hash && hasKey(offset - 1, key)) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean hasKey(long offset, byte[] key) throws IOException {
+        if (offset + RECORD_HEADER_SIZE + key.length > data.size()) {
+            return false;
+        }
+        ByteBuffer header = readFully(offset, 4);
+        if (header.getInt(0) != key.length) {
+            return false;
+        }
+        return Arrays.equals(readFully(offset + RECORD_HEADER_SIZE, key.length).array(), key);
+    }
+
+    private long append(byte[] key, byte[] value) throws IOException {
+        int valueLength = value == null ? 0 : value.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + key.length + valueLength);
+        record.putInt(key.length);
+        record.putInt(value == null ? NO_LABEL : value.length);
+        record.putLong(System.currentTimeMillis());
+        record.put(key);
+        if (value != null) {
+            record.put(value);
+        }
+        record.flip();
+        long offset = data.size();
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += data.write(record, position);
+        }
+        return offset;
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            int read = data.read(buffer, pos);
+            if (read < 0) {
+                throw new IOException("Unexpected end of label store at " + pos);
+            }
+            pos += read;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Deletes the files of labels which were looked up with other settings
+     */
+    private void deleteStaleFiles() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "labels*.{dat,idx,idx.tmp}")) {
+            for (Path file : files) {
+                if (!file.getFileName().toString().startsWith(prefix + ".")) {
+                    logger.info("Deleting [{}], whose labels were looked up with other settings", file);
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps an existing index, if it is valid and all of its slots point into the log
+     */
+    private boolean openIndex() throws IOException {
+        Path path = directory.resolve(prefix + ".idx");
+        if (!Files.exists(path)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() < HEADER_SIZE) {
+                return false;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            int indexCapacity = buffer.getInt(8);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                    || Integer.bitCount(indexCapacity) != 1
+                    || channel.size() != HEADER_SIZE + (long) indexCapacity * SLOT_SIZE) {
+                logger.warn("Invalid index of label store [{}], rebuilding it", directory);
+                return false;
+            }
+            long end = data.size();
+            int used = 0;
+            for (int slot = 0; slot < indexCapacity; slot++) {
+                long offset = buffer.getLong(slotPosition(slot) + 8);
+                if (offset == 0) {
+                    continue;
+                }
+                if (offset < 0 || offset - 1 + RECORD_HEADER_SIZE > end) {
+                    logger.warn("Index of label store [{}] points outside of the log, rebuilding it", directory);
+                    return false;
+                }
+                used++;
+            }
+            if (used != buffer.getInt(12)) {
+                logger.warn("Index of label store [{}] is incomplete, rebuilding it", directory);
+                return false;
+            }
+            this.index = buffer;
+            this.capacity = indexCapacity;
+            this.size = used;
+            return true;
+        }
+    }
+
+    /**
+     * Rebuilds the index by scanning the log, such that the latest record of each key wins
+     */
+    private void rebuildIndex() throws IOException {
+        long records = countRecords(data.size());
+        long end = data.size();
+        int newCapacity = INITIAL_CAPACITY;
+        while (records > newCapacity * MAX_LOAD) {
+            newCapacity *= 2;
+        }
+        index = createIndex(newCapacity);
+        size = 0;
+        long offset = 0;
+        while (offset < end) {
+            ByteBuffer header = readFully(offset, RECORD_HEADER_SIZE);
+            int keyLength = header.getInt(0);
+            int labelLength = header.getInt(4);
+            long next = offset + RECORD_HEADER_SIZE + keyLength + Math.max(labelLength, 0);
+            if (keyLength < 0 || labelLength < NO_LABEL || next > end) {
+                break;
+            }
+            byte[] key = readFully(offset + RECORD_HEADER_SIZE, keyLength).array();
+            long hash = hash(key);
+            int position = slotPosition(findSlot(hash, key));
+            if (index.getLong(position + 8) == 0) {
+                size++;
+            }
+            index.putLong(position, hash);
+            index.putLong(position + 8, offset + 1);
+            offset = next;
+        }
+        index.putInt(12, size);
+        installIndex(index);
+    }
+
+    /**
+     * Counts the complete records of the log, and truncates an incomplete record at its end
+     */
+    private long countRecords(long end) throws IOException {
+        long records = 0;
+        long offset = 0;
+        while (offset + RECORD_HEADER_SIZE <= end) {
+            ByteBuffer header = readFully(offset, RECORD_HEADER_SIZE);
+            int keyLength = header.getInt(0);
+            int labelLength = header.getInt(4);
+            long next = offset + RECORD_HEADER_SIZE + keyLength + Math.max(labelLength, 0);
+            if (keyLength < 0 || labelLength < NO_LABEL || next > end) {
+                break;
+            }
+            records++;
+            offset = next;
+        }
+        if (offset < end) {
+            logger.warn("Truncating incomplete record at {} of label store [{}]", offset, directory);
+            data.truncate(offset);
+        }
+        return records;
+    }
+
+    /**
+     * Moves all slots to a new index of a given capacity
+     */
+    private void resize(int newCapacity) throws IOException {
+        MappedByteBuffer old = index;
+        int oldCapacity = capacity;
+        index = createIndex(newCapacity);
+        int mask = newCapacity - 1;
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            long offset = old.getLong(HEADER_SIZE + slot * SLOT_SIZE + 8);
+            if (offset == 0) {
+                continue;
+            }
+            long hash = old.getLong(HEADER_SIZE + slot * SLOT_SIZE);
+            int newSlot = (int) hash & mask;
+            while (index.getLong(slotPosition(newSlot) + 8) != 0) {
+                newSlot = (newSlot + 1) & mask;
+            }
+            index.putLong(slotPosition(newSlot), hash);
+            index.putLong(slotPosition(newSlot) + 8, offset);
+        }
+        index.putInt(12, size);
+        installIndex(index);
+    }
+
+    /**
+     * Creates an empty index file of a given capacity next to the current one and maps it.
+     * The index must be filled and then moved in place with {@link #installIndex(MappedByteBuffer)}.
+     */
+    private MappedByteBuffer createIndex(int newCapacity) throws IOException {
+        Path tmp = directory.resolve(prefix + ".idx.tmp");
+        Files.deleteIfExists(tmp);
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, newCapacity);
+        buffer.putInt(12, 0);
+        capacity = newCapacity;
+        return buffer;
+    }
+
+    /**
+     * Writes a filled index to disk and moves it in place of the current one
+     */
+    private void installIndex(MappedByteBuffer buffer) throws IOException {
+        buffer.force();
+        Files.move(directory.resolve(prefix + ".idx.tmp"), directory.resolve(prefix + ".idx"),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int slotPosition(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static long hash(byte[] key) {
+        return MurmurHash3.hash128(key, 0, key.length, 0, new MurmurHash3.Hash128()).h1;
+    }
+}
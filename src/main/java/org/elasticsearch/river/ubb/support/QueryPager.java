@@ -0,0 +1,222 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.SortCondition;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.expr.E_GreaterThan;
+import org.apache.jena.sparql.expr.E_IsBlank;
+import org.apache.jena.sparql.expr.E_IsIRI;
+import org.apache.jena.sparql.expr.E_Str;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.syntax.ElementData;
+import org.apache.jena.sparql.syntax.ElementFilter;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.PatternVars;
+
+import java.util.Collection;
+
+/**
+ * Splits a harvest query into pages, such that each page can be fetched and indexed
+ * before the next one is requested.
+ * <p>
+ * In {@link Mode#KEYSET} mode, a page of subjects is selected with
+ * <tt>SELECT DISTINCT ?s ... FILTER(STR(?s) > "last") ORDER BY STR(?s) LIMIT n</tt> and the
+ * original query is then executed for those subjects only, using a <tt>VALUES ?s</tt> block.
+ * This way a subject is never split across pages and the endpoint does not have to skip
+ * over previous pages.
+ * <p>
+ * In {@link Mode#OFFSET} mode, subjects are paged with LIMIT/OFFSET instead. SELECT and
+ * DESCRIBE queries which do not bind <tt>?s</tt> are paged by setting LIMIT/OFFSET on the
+ * query itself. CONSTRUCT queries which do not bind <tt>?s</tt> are not paged, as a page of
+ * triples could end in the middle of a subject, whose document would then be overwritten by
+ * the rest of its triples in the next page.
+ * <p>
+ * Blank nodes cannot be bound in a <tt>VALUES</tt> block of another query, so pages of
+ * subjects only contain IRIs, and subjects which are blank nodes are fetched by
+ * {@link #forBlankSubjects()} in one go.
+ */
+public class QueryPager {
+    public static final Var SUBJECT = Var.alloc("s");
+    private final Query query;
+    private final Mode mode;
+    private final long pageSize;
+
+    /**
+     * @param query    a query to page
+     * @param mode     how to page the query
+     * @param pageSize maximum number of subjects (or solutions) per page
+     */
+    public QueryPager(Query query, Mode mode, long pageSize) {
+        this.query = query;
+        this.mode = mode;
+        this.pageSize = pageSize > 0 ? pageSize : 1;
+    }
+
+    /**
+     * Whether the query should be paged at all. Queries without a pattern, queries that
+     * already have a LIMIT or OFFSET and CONSTRUCT queries which do not bind <tt>?s</tt>
+     * are executed as they are.
+     */
+    public boolean isPageable() {
+        return mode != Mode.NONE
+                && query.getQueryPattern() != null
+                && !query.hasLimit()
+                && !query.hasOffset()
+                && (!query.isConstructType() || bindsSubject());
+    }
+
+    /**
+     * Whether pages are made of subjects, i.e the query pattern binds <tt>?s</tt>.
+     * Otherwise, the query can only be paged with LIMIT/OFFSET.
+     */
+    public boolean isPagedBySubject() {
+        return isPageable() && bindsSubject();
+    }
+
+    /**
+     * Checks whether solutions of a query are ordered by <tt>?s</tt> first, such that all
+     * solutions of a subject are consecutive
+     */
+    public static boolean isOrderedBySubject(Query query) {
+        if (!query.hasOrderBy()) {
+            return false;
+        }
+        SortCondition first = query.getOrderBy().get(0);
+        return first.getExpression().isVariable()
+                && SUBJECT.equals(first.getExpression().asVar());
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Builds a query which selects the next page of subjects in keyset mode
+     *
+     * @param afterKey string value of the last subject of the previous page, or null for the first page
+     */
+    public Query subjectPageAfter(String afterKey) {
+        Query page = newSubjectPage();
+        ElementGroup group = newSubjectPattern();
+        if (afterKey != null) {
+            group.addElementFilter(new ElementFilter(new E_GreaterThan(
+                    new E_Str(new ExprVar(SUBJECT)), NodeValue.makeString(afterKey))));
+        }
+        page.setQueryPattern(group);
+        return page;
+    }
+
+    /**
+     * Builds a query which selects a page of subjects at a given offset
+     *
+     * @param offset number of subjects to skip
+     */
+    public Query subjectPageAt(long offset) {
+        Query page = newSubjectPage();
+        page.setQueryPattern(newSubjectPattern());
+        page.setOffset(offset);
+        return page;
+    }
+
+    /**
+     * Builds a query which selects all subjects which are IRIs, in no particular order,
+     * such that they can be read in one pass
+     */
+    public Query allSubjects() {
+        Query subjects = newSubjectQuery();
+        subjects.setQueryPattern(newSubjectPattern());
+        return subjects;
+    }
+
+    /**
+     * Builds the original query restricted to a given page of subjects
+     *
+     * @param subjects subjects of the page
+     */
+    public Query forSubjects(Collection<Node> subjects) {
+        Query page = query.cloneQuery();
+        ElementData data = new ElementData();
+        data.add(SUBJECT);
+        for (Node subject : subjects) {
+            data.add(BindingFactory.binding(SUBJECT, subject));
+        }
+        ElementGroup group = new ElementGroup();
+        group.addElement(data);
+        group.addElement(query.getQueryPattern());
+        page.setQueryPattern(group);
+        return page;
+    }
+
+    /**
+     * Builds the original query restricted to subjects which are blank nodes, which are
+     * left out of the pages of subjects
+     */
+    public Query forBlankSubjects() {
+        Query page = query.cloneQuery();
+        ElementGroup group = new ElementGroup();
+        group.addElement(query.getQueryPattern());
+        group.addElementFilter(new ElementFilter(new E_IsBlank(new ExprVar(SUBJECT))));
+        page.setQueryPattern(group);
+        return page;
+    }
+
+    /**
+     * Builds the original query with LIMIT and OFFSET, for SELECT and DESCRIBE queries that
+     * cannot be paged by subject
+     *
+     * @param offset number of solutions to skip
+     */
+    public Query solutionPageAt(long offset) {
+        Query page = query.cloneQuery();
+        page.setLimit(pageSize);
+        page.setOffset(offset);
+        return page;
+    }
+
+    private boolean bindsSubject() {
+        return PatternVars.vars(query.getQueryPattern()).contains(SUBJECT);
+    }
+
+    private Query newSubjectQuery() {
+        Query page = new Query();
+        page.setQuerySelectType();
+        page.setPrefixMapping(query.getPrefixMapping());
+        for (String graph : query.getGraphURIs()) {
+            page.addGraphURI(graph);
+        }
+        for (String graph : query.getNamedGraphURIs()) {
+            page.addNamedGraphURI(graph);
+        }
+        page.setDistinct(true);
+        page.addResultVar(SUBJECT);
+        return page;
+    }
+
+    private Query newSubjectPage() {
+        Query page = newSubjectQuery();
+        //Sorted the same way as the keys are compared
+        page.addOrderBy(new E_Str(new ExprVar(SUBJECT)), Query.ORDER_ASCENDING);
+        page.setLimit(pageSize);
+        return page;
+    }
+
+    private ElementGroup newSubjectPattern() {
+        ElementGroup group = new ElementGroup();
+        group.addElement(query.getQueryPattern());
+        group.addElementFilter(new ElementFilter(new E_IsIRI(new ExprVar(SUBJECT))));
+        return group;
+    }
+
+    public enum Mode {
+        NONE,
+        OFFSET,
+        KEYSET
+    }
+}
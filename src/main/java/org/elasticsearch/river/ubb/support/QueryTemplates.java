@@ -0,0 +1,193 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementData;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.syntaxtransform.ElementTransformCopyBase;
+import org.apache.jena.sparql.syntax.syntaxtransform.QueryTransformOps;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Queries which are run for single resources or small batches of resources. Each query is
+ * parsed once per river from a template, and the resources are bound into a copy of the
+ * parsed query, such that no query text is built or parsed per resource.
+ * <p>
+ * Resources are bound at the syntax level rather than with initial bindings, as the queries
+ * are sent to SPARQL endpoints as well as run against TDB.
+ */
+public class QueryTemplates {
+    private static final Var URI = Var.alloc("uri");
+    private static final Var SUBJECT = Var.alloc("s");
+    private static final String PLACEHOLDER = "urn:x-ubb-river:placeholder";
+    private final Query labelQuery;
+    private final Query labelsQuery;
+    private final Query syncQuery;
+
+    /**
+     * Parses the templates for the settings of a river
+     *
+     * @param labelProperties properties which hold labels, in order of priority
+     * @param language        language of the labels, besides labels without language
+     * @param describeUris    whether the sync query also gets labels of object URIs
+     */
+    public QueryTemplates(List<String> labelProperties, String language, boolean describeUris) {
+        boolean hasLabels = labelProperties != null && !labelProperties.isEmpty();
+        this.labelQuery = hasLabels ? QueryFactory.create(
+                getQueryForLabels(labelProperties, language, "", "SELECT ?label ", "LIMIT 1")) : null;
+        this.labelsQuery = hasLabels ? QueryFactory.create(getQueryForLabels(labelProperties, language,
+                "VALUES ?uri { <" + PLACEHOLDER + "> } ", "SELECT ?uri ?label ", "")) : null;
+        this.syncQuery = QueryFactory.create(getSyncQuery(hasLabels && describeUris
+                ? labelProperties : Collections.emptyList()));
+    }
+
+    /**
+     * Gets a query which selects the label of a URI, if there are label properties
+     *
+     * @param uri a URI
+     * @return a query which selects ?label, or null if there are no label properties
+     */
+    public Query labelQuery(String uri) {
+        if (labelQuery == null) {
+            return null;
+        }
+        return QueryTransformOps.transform(labelQuery, Collections.singletonMap(URI, NodeFactory.createURI(uri)));
+    }
+
+    /**
+     * Gets a query which selects the labels of many URIs at once, binding them to ?uri with a
+     * VALUES block. Labels are chosen in the same order and with the same language filter
+     * as in {@link #labelQuery(String)}.
+     *
+     * @param uris URIs for which labels are required
+     * @return a query which selects ?uri and ?label, possibly with many rows for a URI,
+     * or null if there are no label properties
+     */
+    public Query labelsQuery(Collection<String> uris) {
+        if (labelsQuery == null) {
+            return null;
+        }
+        return bindValues(labelsQuery, URI, uris);
+    }
+
+    /**
+     * Gets a query returning all triples in which given URIs are the subjects. If labels of
+     * object URIs are asked for, they are returned in place of the URIs. The subjects are bound
+     * with a VALUES block, which endpoints join much better than a <tt>FILTER (?s IN (...))</tt>.
+     *
+     * @param uris URIs for queried resources
+     * @return a CONSTRUCT query
+     */
+    public Query syncQuery(Collection<String> uris) {
+        return bindValues(syncQuery, SUBJECT, uris);
+    }
+
+    /**
+     * Gets a query which describes given URIs
+     *
+     * @param uris URIs of resources to describe
+     * @return a DESCRIBE query
+     */
+    public static Query describeQuery(Collection<String> uris) {
+        Query query = new Query();
+        query.setQueryDescribeType();
+        for (String uri : uris) {
+            Node node = NodeFactory.createURI(uri);
+            query.addDescribeNode(node);
+        }
+        return query;
+    }
+
+    /**
+     * Replaces the VALUES block of a template with a block binding a variable to given URIs
+     */
+    private static Query bindValues(Query template, Var var, Collection<String> uris) {
+        ElementData data = new ElementData();
+        data.add(var);
+        for (String uri : uris) {
+            data.add(BindingFactory.binding(var, NodeFactory.createURI(uri)));
+        }
+        //The VALUES block is replaced within its group, as ARQ ignores transforms of ElementData
+        return QueryTransformOps.transform(template, new ElementTransformCopyBase() {
+            @Override
+            public Element transform(ElementGroup el, List<Element> members) {
+                ElementGroup group = new ElementGroup();
+                for (Element member : members) {
+                    group.addElement(member instanceof ElementData ? data : member);
+                }
+                return group;
+            }
+        });
+    }
+
+    /**
+     * Builds the template of a query to fetch labels of ?uri from label properties. The labels
+     * are chosen with COALESCE, such that the first property which has a label wins.
+     */
+    private static String getQueryForLabels(List<String> labelProperties, String language,
+                                            String values, String select, String modifier) {
+        StringBuilder options = new StringBuilder();
+        StringBuilder labelCoalesce = new StringBuilder();
+        int count = 0;
+        for (String property : labelProperties) {
+            String label = "?label" + count++;
+            options.append("OPTIONAL { ?uri <").append(property).append("> ").append(label).append(" } ");
+            labelCoalesce.append(labelCoalesce.length() == 0 ? "" : ",").append(label);
+        }
+        String bind = "BIND(COALESCE(" + labelCoalesce + ") AS ?label) ";
+        return select + "WHERE { GRAPH ?G { " + values + options + bind + "} "
+                + getLanguageFilterForLabel(language) + "} " + modifier;
+    }
+
+    /**
+     * Builds a filter which keeps labels without language or in a given language
+     */
+    static String getLanguageFilterForLabel(String language) {
+        //This is too specific to the University of Bergen Library´s Ontology.
+        //In the future, you might want to let the default language be automatically picked up.
+        return "FILTER (langMatches(lang(?label), \"\") || langMatches(lang(?label), \"" + language + "\")) ";
+    }
+
+    /**
+     * Builds the template of the sync query, where the subjects are bound by a
+     * <tt>VALUES ?s { ... }</tt> block
+     */
+    private static String getSyncQuery(List<String> labelProperties) {
+        StringBuilder queryBuilder = new StringBuilder();
+        queryBuilder.append("CONSTRUCT { ?s ?p ?o } WHERE { ")
+                .append("VALUES ?s { <").append(PLACEHOLDER).append("> } ");
+
+        /* Perform uri label resolution only if desired */
+        if (labelProperties.isEmpty()) {
+            queryBuilder.append("?s ?p ?o }");
+            return queryBuilder.toString();
+        }
+
+        /* Filter out properties having a label */
+        queryBuilder.append("{ ?s ?p ?o ");
+        int index = 0;
+        for (String prop : labelProperties) {
+            index++;
+            queryBuilder.append(String.format("OPTIONAL { ?o <%s> ?o%d } FILTER(!BOUND(?o%d)) ",
+                    prop, index, index));
+        }
+        queryBuilder.append("}");
+
+        /* Add labels for filtered out properties */
+        for (String prop : labelProperties) {
+            /* Resolve ?o as being the <prop> for resource ?o1 */
+            queryBuilder.append(String.format(" UNION { ?s ?p ?o1 . ?o1 <%s> ?o }", prop));
+        }
+
+        queryBuilder.append(" }");
+        return queryBuilder.toString();
+    }
+}
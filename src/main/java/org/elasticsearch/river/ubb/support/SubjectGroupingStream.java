@@ -0,0 +1,212 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.sparql.core.Quad;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.util.BloomFilter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A {@link org.apache.jena.riot.system.StreamRDF} which groups triples by subject
+ * as they arrive from the parser and hands every finished subject to a consumer
+ * as a small {@link Model}.
+ * <p>
+ * A subject is considered finished when it has not been seen for the last
+ * <tt>maxPendingSubjects</tt> subjects, or when the stream ends. Dumps are
+ * usually grouped by subject (e.g RDF/XML descriptions or sorted N-Triples),
+ * so memory is bounded by the number of pending subjects rather than by the size
+ * of the dump. If a subject shows up again after it has been emitted, it
+ * will be emitted once more with the remaining triples only, to a separate consumer
+ * of such fragments, which has to merge them into the subject emitted before.
+ * <p>
+ * Emitted subjects are remembered in Bloom filters, which may be shared by streams over parts
+ * of the same dump. A subject is never taken for a new one once it has been emitted, but a
+ * new subject may be taken for a fragment of an emitted one, which is harmless as long as
+ * fragments are merged into documents which may be missing. The filters grow with the number
+ * of subjects up to a fixed size, such that memory does not depend on the size of the dump.
+ * Beyond that size, more and more new subjects are taken for fragments.
+ */
+public class SubjectGroupingStream extends StreamRDFBase {
+    private final int maxPendingSubjects;
+    private final EmittedSubjects emitted;
+    private final Consumer<Model> consumer;
+    private final Consumer<Model> fragmentConsumer;
+    private final LinkedHashMap<Node, List<Triple>> pending = new LinkedHashMap<>(16, 0.75f, true);
+    private long numberOfTriples = 0;
+    private long numberOfSubjects = 0;
+    private long numberOfFragments = 0;
+
+    /**
+     * @param maxPendingSubjects maximum number of subjects to keep in memory
+     * @param consumer           a consumer for each finished subject, including later fragments
+     */
+    public SubjectGroupingStream(int maxPendingSubjects, Consumer<Model> consumer) {
+        this(maxPendingSubjects, consumer, consumer);
+    }
+
+    /**
+     * @param maxPendingSubjects maximum number of subjects to keep in memory
+     * @param consumer           a consumer for each finished subject
+     * @param fragmentConsumer   a consumer for triples of a subject which shows up again after it has been emitted
+     */
+    public SubjectGroupingStream(int maxPendingSubjects, Consumer<Model> consumer, Consumer<Model> fragmentConsumer) {
+        this(maxPendingSubjects, new EmittedSubjects(), consumer, fragmentConsumer);
+    }
+
+    /**
+     * @param maxPendingSubjects maximum number of subjects to keep in memory
+     * @param emitted            subjects emitted so far, which may be shared with other streams
+     * @param consumer           a consumer for each finished subject
+     * @param fragmentConsumer   a consumer for triples of a subject which shows up again after it has been emitted
+     */
+    public SubjectGroupingStream(int maxPendingSubjects, EmittedSubjects emitted,
+                                 Consumer<Model> consumer, Consumer<Model> fragmentConsumer) {
+        this.maxPendingSubjects = maxPendingSubjects > 0 ? maxPendingSubjects : 1;
+        this.emitted = emitted;
+        this.consumer = consumer;
+        this.fragmentConsumer = fragmentConsumer;
+    }
+
+    @Override
+    public void triple(Triple triple) {
+        numberOfTriples++;
+        List<Triple> triples = pending.get(triple.getSubject());
+        if (triples == null) {
+            triples = new ArrayList<>();
+            pending.put(triple.getSubject(), triples);
+            evictOverflow();
+        }
+        triples.add(triple);
+    }
+
+    @Override
+    public void quad(Quad quad) {
+        triple(quad.asTriple());
+    }
+
+    @Override
+    public void finish() {
+        Iterator<Map.Entry<Node, List<Triple>>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Node, List<Triple>> entry = it.next();
+            it.remove();
+            emit(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Gets number of triples received so far
+     */
+    public long getNumberOfTriples() {
+        return numberOfTriples;
+    }
+
+    /**
+     * Gets number of subjects emitted so far, not counting later fragments
+     */
+    public long getNumberOfSubjects() {
+        return numberOfSubjects;
+    }
+
+    /**
+     * Gets number of fragments of subjects which had been emitted before
+     */
+    public long getNumberOfFragments() {
+        return numberOfFragments;
+    }
+
+    /**
+     * Emits the least recently seen subjects until we are within the limit
+     */
+    private void evictOverflow() {
+        Iterator<Map.Entry<Node, List<Triple>>> it = pending.entrySet().iterator();
+        while (pending.size() > maxPendingSubjects && it.hasNext()) {
+            Map.Entry<Node, List<Triple>> entry = it.next();
+            it.remove();
+            emit(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void emit(Node subject, List<Triple> triples) {
+        Model model = ModelFactory.createDefaultModel();
+        for (Triple t : triples) {
+            model.getGraph().add(t);
+        }
+        if (emitted.add(subject)) {
+            numberOfSubjects++;
+            consumer.accept(model);
+        } else {
+            numberOfFragments++;
+            fragmentConsumer.accept(model);
+        }
+    }
+
+    /**
+     * Subjects which have been emitted, kept in Bloom filters each twice the capacity of
+     * the previous one, up to a maximum total capacity. Once it is reached, subjects are added
+     * to the last filter, whose rate of false positives grows. Safe to share between streams
+     * on different threads.
+     */
+    public static class EmittedSubjects {
+        private static final int INITIAL_CAPACITY = 1 << 16;
+        private static final long MAX_CAPACITY = 1 << 24;
+        private static final double FALSE_POSITIVE_RATE = 0.001;
+        private final List<BloomFilter> filters = new ArrayList<>();
+        private final long maxCapacity;
+        private long totalCapacity = 0;
+        private int capacity = 0;
+        private int sizeOfCurrentFilter = 0;
+
+        public EmittedSubjects() {
+            this(MAX_CAPACITY);
+        }
+
+        /**
+         * @param maxCapacity number of subjects above which filters no longer grow
+         */
+        public EmittedSubjects(long maxCapacity) {
+            this.maxCapacity = Math.max(maxCapacity, 1);
+        }
+
+        /**
+         * Gets number of subjects which the filters hold at their rate of false positives
+         */
+        public synchronized long getCapacity() {
+            return totalCapacity;
+        }
+
+        /**
+         * Remembers an emitted subject
+         *
+         * @return true if the subject had not been emitted before
+         */
+        public synchronized boolean add(Node subject) {
+            BytesRef key = new BytesRef(subject.toString());
+            for (BloomFilter filter : filters) {
+                if (filter.mightContain(key)) {
+                    return false;
+                }
+            }
+            if (filters.isEmpty() || (sizeOfCurrentFilter >= capacity && totalCapacity < maxCapacity)) {
+                long next = filters.isEmpty() ? INITIAL_CAPACITY : capacity * 2L;
+                capacity = (int) Math.min(next, maxCapacity - totalCapacity);
+                totalCapacity += capacity;
+                sizeOfCurrentFilter = 0;
+                filters.add(BloomFilter.create(capacity, FALSE_POSITIVE_RATE));
+            }
+            filters.get(filters.size() - 1).put(key);
+            sizeOfCurrentFilter++;
+            return true;
+        }
+    }
+}
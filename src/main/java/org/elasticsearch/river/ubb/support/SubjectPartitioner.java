@@ -0,0 +1,71 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.Query;
+
+import java.util.Collection;
+
+/**
+ * Splits a harvest query into partitions of the subject space, such that partitions can be
+ * harvested on several workers. The subjects of the query are read once with
+ * <tt>SELECT DISTINCT ?s ...</tt> and handed out in batches. Each batch is harvested with
+ * the original query restricted to its subjects by a <tt>VALUES ?s</tt> block, such that a
+ * local dataset such as TDB looks the subjects up in its indexes instead of evaluating the
+ * whole pattern once per partition.
+ * <p>
+ * Blank nodes cannot be bound in a <tt>VALUES</tt> block, so subjects which are blank nodes
+ * are harvested by one more query, see {@link #forBlankSubjects()}.
+ */
+public class SubjectPartitioner {
+    private final int partitions;
+    private final QueryPager pager;
+
+    /**
+     * @param query      a query to partition
+     * @param partitions number of partitions which are harvested at the same time
+     * @param batchSize  number of subjects per batch
+     */
+    public SubjectPartitioner(Query query, int partitions, long batchSize) {
+        this.partitions = Math.max(partitions, 1);
+        this.pager = new QueryPager(query, QueryPager.Mode.KEYSET, batchSize);
+    }
+
+    /**
+     * Whether the query can be partitioned, i.e more than one partition is asked for and the
+     * query pattern binds <tt>?s</tt>. Queries with a LIMIT or OFFSET are executed as they are.
+     */
+    public boolean isPartitionable() {
+        return partitions > 1 && pager.isPagedBySubject();
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public long getBatchSize() {
+        return pager.getPageSize();
+    }
+
+    /**
+     * Builds a query which selects the subjects of the query which are IRIs
+     */
+    public Query subjects() {
+        return pager.allSubjects();
+    }
+
+    /**
+     * Builds the original query restricted to a batch of subjects
+     *
+     * @param subjects subjects of the batch
+     */
+    public Query forSubjects(Collection<Node> subjects) {
+        return pager.forSubjects(subjects);
+    }
+
+    /**
+     * Builds the original query restricted to subjects which are blank nodes
+     */
+    public Query forBlankSubjects() {
+        return pager.forBlankSubjects();
+    }
+}
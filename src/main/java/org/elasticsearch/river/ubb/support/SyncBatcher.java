@@ -0,0 +1,162 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Groups the URIs of changed resources into batches and fetches several batches at the
+ * same time, such that a sync is not bound by the round trip time of the endpoint.
+ * <p>
+ * Sizes are decided by a {@link BulkSizeController}: a batch which is fetched faster than the
+ * target latency grows the next batches, a slow one shrinks them, and every few fast batches
+ * more batches may be in flight, up to the number of fetching threads. A batch which fails is
+ * split into smaller batches which are fetched again, and the controller halves the batch
+ * size and the number of batches in flight. A single URI which cannot be fetched fails
+ * the whole sync.
+ */
+public class SyncBatcher implements Closeable {
+    private final ESLogger logger = Loggers.getLogger(SyncBatcher.class);
+    private final BulkSizeController controller;
+    private final BatchFetcher fetcher;
+    private final ExecutorService executor;
+    private final Object lock = new Object();
+    private List<String> batch = new ArrayList<>();
+    private int inFlight = 0;
+    private long numberOfUris = 0;
+    private Throwable failure;
+
+    /**
+     * @param name       name of the fetching threads
+     * @param controller decides batch size and number of batches in flight
+     * @param threads    maximum number of batches in flight
+     * @param fetcher    fetches and indexes a batch
+     */
+    public SyncBatcher(String name, BulkSizeController controller, int threads, BatchFetcher fetcher) {
+        this.controller = controller;
+        this.fetcher = fetcher;
+        this.executor = Executors.newFixedThreadPool(Math.max(threads, 1), EsExecutors.daemonThreadFactory(name));
+    }
+
+    /**
+     * Adds the URI of a changed resource, sending the current batch once it is full.
+     * Blocks while as many batches as allowed are in flight.
+     *
+     * @throws ExecutionException if a batch has failed
+     */
+    public void add(String uri) throws InterruptedException, ExecutionException {
+        batch.add(uri);
+        if (batch.size() >= controller.getBulkActions()) {
+            send();
+        }
+    }
+
+    /**
+     * Sends the last batch and waits until all batches have been fetched
+     *
+     * @throws ExecutionException if a batch has failed
+     */
+    public void finish() throws InterruptedException, ExecutionException {
+        if (!batch.isEmpty()) {
+            send();
+        }
+        synchronized (lock) {
+            while (inFlight > 0) {
+                lock.wait();
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Gets number of URIs which were fetched
+     */
+    public long getNumberOfUris() {
+        synchronized (lock) {
+            return numberOfUris;
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void send() throws InterruptedException, ExecutionException {
+        List<String> uris = batch;
+        batch = new ArrayList<>();
+        synchronized (lock) {
+            while (failure == null && inFlight > 0 && inFlight >= controller.getConcurrentRequests()) {
+                lock.wait();
+            }
+            checkFailure();
+            inFlight++;
+        }
+        executor.execute(() -> {
+            try {
+                fetch(uris);
+            } catch (Throwable e) {
+                synchronized (lock) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            } finally {
+                synchronized (lock) {
+                    inFlight--;
+                    lock.notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetches a batch, splitting it into smaller batches if it fails
+     */
+    private void fetch(List<String> uris) throws Exception {
+        long startTime = System.currentTimeMillis();
+        try {
+            fetcher.fetch(uris);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            if (uris.size() <= 1) {
+                throw e;
+            }
+            controller.onRejected();
+            int size = (int) Math.max(1, Math.min(controller.getBulkActions(), uris.size() / 2));
+            logger.warn("Fetching a batch of {} resources failed, retrying in batches of {}: {}",
+                    uris.size(), size, e.getLocalizedMessage());
+            for (int i = 0; i < uris.size(); i += size) {
+                fetch(uris.subList(i, Math.min(i + size, uris.size())));
+            }
+            return;
+        }
+        controller.onCompleted(System.currentTimeMillis() - startTime, 0);
+        synchronized (lock) {
+            numberOfUris += uris.size();
+        }
+    }
+
+    private void checkFailure() throws ExecutionException {
+        synchronized (lock) {
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+        }
+    }
+
+    /**
+     * Fetches and indexes the resources of a batch
+     */
+    public interface BatchFetcher {
+        void fetch(List<String> uris) throws Exception;
+    }
+}
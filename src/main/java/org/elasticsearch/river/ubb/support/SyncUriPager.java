@@ -0,0 +1,134 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.expr.E_GreaterThan;
+import org.apache.jena.sparql.expr.E_IsIRI;
+import org.apache.jena.sparql.expr.E_Str;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.syntax.ElementFilter;
+import org.apache.jena.sparql.syntax.ElementGroup;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * Streams the URIs selected by a sync query page by page, in ascending order, such that
+ * only one page of URIs is held in memory at a time.
+ * <p>
+ * Pages are selected with
+ * <tt>SELECT DISTINCT ?var ... FILTER(STR(?var) > "last") ORDER BY STR(?var) LIMIT n</tt>, so
+ * the endpoint does not have to skip over previous pages. Pages are ordered by the same
+ * string form of the URIs which the filter compares, as endpoints need not order IRIs by
+ * their strings. Only URIs are returned, as blank nodes
+ * cannot be paged this way.
+ */
+public class SyncUriPager implements Iterator<String> {
+    private final Query query;
+    private final Var var;
+    private final long pageSize;
+    private final Function<Query, QueryExecution> executor;
+    private final Deque<String> page = new ArrayDeque<>();
+    private String last;
+    private boolean exhausted;
+
+    /**
+     * @param query    a SELECT query which binds a variable to URIs
+     * @param var      name of the variable
+     * @param pageSize maximum number of URIs per page
+     * @param executor creates executions of queries, e.g against an endpoint
+     */
+    public SyncUriPager(String query, String var, long pageSize, Function<Query, QueryExecution> executor) {
+        this.query = QueryFactory.create(query);
+        this.var = Var.alloc(var);
+        this.pageSize = pageSize > 0 ? pageSize : 1;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts after a given URI, e.g the last URI of an interrupted sync
+     *
+     * @param key a URI, or null to start from the first URI
+     * @return this pager
+     */
+    public SyncUriPager resumeAfter(String key) {
+        this.last = key;
+        return this;
+    }
+
+    /**
+     * Gets the last URI which was fetched
+     */
+    public String getLastKey() {
+        return last;
+    }
+
+    /**
+     * Whether all URIs of the last page have been consumed, such that every URI up to
+     * {@link #getLastKey()} has been returned
+     */
+    public boolean isPageConsumed() {
+        return page.isEmpty();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (page.isEmpty() && !exhausted) {
+            fetchPage();
+        }
+        return !page.isEmpty();
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.poll();
+    }
+
+    /**
+     * Fetches the page of URIs after the last one which was fetched
+     */
+    private void fetchPage() {
+        try (QueryExecution qexec = executor.apply(pageAfter(last))) {
+            ResultSet results = qexec.execSelect();
+            while (results.hasNext()) {
+                Node node = results.nextBinding().get(var);
+                if (node == null || !node.isURI()) {
+                    continue;
+                }
+                page.add(node.getURI());
+                last = node.getURI();
+            }
+        }
+        exhausted = page.size() < pageSize;
+    }
+
+    private Query pageAfter(String afterKey) {
+        Query page = query.cloneQuery();
+        ElementGroup group = new ElementGroup();
+        group.addElement(query.getQueryPattern());
+        group.addElementFilter(new ElementFilter(new E_IsIRI(new ExprVar(var))));
+        if (afterKey != null) {
+            group.addElementFilter(new ElementFilter(new E_GreaterThan(
+                    new E_Str(new ExprVar(var)), NodeValue.makeString(afterKey))));
+        }
+        page.setQueryPattern(group);
+        page.setDistinct(true);
+        if (page.getOrderBy() != null) {
+            page.getOrderBy().clear();
+        }
+        page.addOrderBy(new E_Str(new ExprVar(var)), Query.ORDER_ASCENDING);
+        page.setLimit(pageSize);
+        return page;
+    }
+}
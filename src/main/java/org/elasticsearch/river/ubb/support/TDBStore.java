@@ -0,0 +1,98 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.ReadWrite;
+import org.apache.jena.tdb.TDBFactory;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import java.io.Closeable;
+import java.util.function.Supplier;
+
+/**
+ * A long lived handle to a TDB dataset, which is opened once per river and shared by
+ * harvest queries, label lookups and describe queries.
+ * <p>
+ * TDB transactions belong to a thread. Reads are therefore done through
+ * {@link #calculateRead(Supplier)}, which begins a read transaction unless the calling thread is already in one, such that a
+ * worker can hold a single transaction for a whole harvest and nested reads reuse it.
+ */
+public class TDBStore implements Closeable {
+    private static final ESLogger logger = Loggers.getLogger(TDBStore.class);
+    private final String location;
+    private final Dataset dataset;
+
+    /**
+     * Creates or connects to the TDB dataset at a given location
+     *
+     * @param location location of a TDB dataset
+     */
+    public TDBStore(String location) {
+        this.location = location;
+        try {
+            this.dataset = TDBFactory.createDataset(location);
+        } catch (Exception e) {
+            logger.error("Cannot create or connect to dataset for path: [{}]", location);
+            throw e;
+        }
+    }
+
+    /**
+     * Wraps a dataset which has already been opened
+     *
+     * @param location location of the dataset
+     * @param dataset  an open dataset, which is closed with this store
+     */
+    public TDBStore(String location, Dataset dataset) {
+        this.location = location;
+        this.dataset = dataset;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * Gets the dataset. Callers must be inside {@link #calculateRead(Supplier)} while using it.
+     */
+    public Dataset getDataset() {
+        return dataset;
+    }
+
+    /**
+     * Runs an action inside a read transaction, reusing the transaction of the
+     * calling thread if there is one
+     *
+     * @param action an action which reads the dataset
+     * @return result of the action
+     */
+    public <T> T calculateRead(Supplier<T> action) {
+        if (dataset.isInTransaction()) {
+            return action.get();
+        }
+        dataset.begin(ReadWrite.READ);
+        try {
+            return action.get();
+        } finally {
+            dataset.end();
+        }
+    }
+
+    /**
+     * Runs an action inside a read transaction, reusing the transaction of the
+     * calling thread if there is one
+     *
+     * @param action an action which reads the dataset
+     */
+    public void executeRead(Runnable action) {
+        calculateRead(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    @Override
+    public void close() {
+        dataset.close();
+    }
+}
@@ -0,0 +1,405 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.river.ubb.utils.FileManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Fetches text content of URLs for the <tt>indexTextFrom</tt> property, on a bounded pool of
+ * threads and with a limited number of concurrent requests per host, such that a slow file
+ * server does not stall document building.
+ * <p>
+ * Content fetched over HTTP is cached on disk together with its ETag and Last-Modified
+ * headers. A cached URL is fetched with a conditional GET, such that unchanged content is not
+ * downloaded again. The cache keeps the most recently used URLs up to a maximum number, and
+ * deletes the files of URLs which are evicted. Server errors and I/O errors are retried after
+ * an exponential backoff, without holding a connection of the host while waiting. Other URLs,
+ * e.g <tt>file:</tt> URLs, are read as they are.
+ */
+public class TextContentFetcher implements Closeable {
+    private static final ESLogger logger = Loggers.getLogger(TextContentFetcher.class);
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<String, Semaphore> hosts = new ConcurrentHashMap<>();
+    private final int connectionsPerHost;
+    private final int maxRetries;
+    private final int timeoutMillis;
+    private final Path cacheDirectory;
+    private final Cache<String, Boolean> cachedKeys;
+
+    /**
+     * @param name               name used for the fetching threads
+     * @param threads            number of fetching threads
+     * @param connectionsPerHost maximum number of concurrent requests to a host
+     * @param maxRetries         number of times a failed fetch is retried
+     * @param timeout            connect and read timeout of a request
+     * @param cacheDirectory     directory of the content cache, or null to disable caching
+     * @param cacheSize          maximum number of URLs whose content is cached
+     */
+    public TextContentFetcher(String name, int threads, int connectionsPerHost, int maxRetries,
+                              TimeValue timeout, Path cacheDirectory, long cacheSize) throws IOException {
+        int size = Math.max(threads, 1);
+        //Fetches beyond the queue run on the caller, which slows down document building
+        this.executor = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(size * 16), EsExecutors.daemonThreadFactory(name + "[fetch]"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.connectionsPerHost = Math.max(connectionsPerHost, 1);
+        this.maxRetries = Math.max(maxRetries, 0);
+        this.timeoutMillis = (int) Math.min(timeout.millis(), Integer.MAX_VALUE);
+        this.cacheDirectory = cacheDirectory;
+        this.cachedKeys = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(cacheSize, 0))
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .removalListener(this::onRemoval)
+                .build();
+        if (cacheDirectory != null) {
+            Files.createDirectories(cacheDirectory);
+            loadCachedKeys();
+        }
+    }
+
+    /**
+     * Fetches content of a URL on the fetching threads
+     *
+     * @param url a URL
+     * @return a future of the content, which is the URL itself if it cannot be read
+     */
+    public CompletableFuture<String> fetch(String url) {
+        return CompletableFuture.supplyAsync(() -> read(url), executor);
+    }
+
+    /**
+     * Reads content of a URL on the calling thread, with the same limits, cache and retries
+     * as {@link #fetch(String)}
+     *
+     * @param url a URL
+     * @return the content, or the URL itself if it cannot be read
+     */
+    public String read(String url) {
+        String host = getHttpHost(url);
+        if (host == null) {
+            return FileManager.readUrlContent(url);
+        }
+        try {
+            return readWithRetries(url, hosts.computeIfAbsent(host, h -> new Semaphore(connectionsPerHost, true)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.error("Cannot read content from {} due to {}", url, e.getLocalizedMessage());
+        }
+        return url;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads a URL, holding a permit of its host for each attempt but not while waiting to retry
+     */
+    private String readWithRetries(String url, Semaphore permits) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            RetryableException failure;
+            permits.acquire();
+            try {
+                return readHttp(url);
+            } catch (RetryableException e) {
+                failure = e;
+            } finally {
+                permits.release();
+            }
+            if (attempt >= maxRetries) {
+                throw new IOException("Resource unavailable at " + url + " after " + (attempt + 1)
+                        + " attempts: " + failure.getMessage(), failure);
+            }
+            long delay = Math.min(INITIAL_BACKOFF_MILLIS << attempt, MAX_BACKOFF_MILLIS);
+            logger.warn("Could not read [{}] due to [{}], retrying in {}ms", url, failure.getMessage(), delay);
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * Reads a URL with a conditional GET if it is cached
+     */
+    private String readHttp(String url) throws IOException {
+        CacheEntry cached = readCache(url);
+        HttpURLConnection connection;
+        int status;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            if (cached != null && cached.etag != null) {
+                connection.setRequestProperty("If-None-Match", cached.etag);
+            }
+            if (cached != null && cached.lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
+            status = connection.getResponseCode();
+        } catch (IOException e) {
+            throw new RetryableException(e.getLocalizedMessage(), e);
+        }
+        try {
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                return cached.content;
+            }
+            if (status >= 500) {
+                throw new RetryableException("HTTP " + status, null);
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + status);
+            }
+            String content;
+            try (InputStream in = connection.getInputStream()) {
+                content = decode(readFully(in), getCharset(connection.getContentType()));
+            } catch (IOException e) {
+                throw new RetryableException(e.getLocalizedMessage(), e);
+            }
+            writeCache(url, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"), content);
+            return content;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Gets the host of an HTTP(S) URL, or null for other URLs
+     */
+    private static String getHttpHost(String url) {
+        try {
+            URI uri = new URI(url);
+            String scheme = uri.getScheme();
+            if (scheme != null && (scheme.equalsIgnoreCase("http") || scheme.equalsIgnoreCase("https"))) {
+                return uri.getHost() != null ? uri.getHost().toLowerCase(Locale.ROOT) : null;
+            }
+        } catch (URISyntaxException e) {
+            //Not a valid URI, let FileManager deal with it
+        }
+        return null;
+    }
+
+    private static Charset getCharset(String contentType) {
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                String[] pair = param.trim().split("=", 2);
+                if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("charset")) {
+                    try {
+                        return Charset.forName(pair[1].trim().replace("\"", ""));
+                    } catch (IllegalArgumentException e) {
+                        return null;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes content in a given charset or, if there is none, as UTF-8 falling back to
+     * CP1252 (due to issue from OCR scan)
+     */
+    private static String decode(byte[] bytes, Charset charset) {
+        if (charset != null) {
+            return new String(bytes, charset);
+        }
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(bytes))
+                    .toString();
+        } catch (CharacterCodingException e) {
+            return new String(bytes, FileManager.CP_1252);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Gets the cached content of a URL, if there is content with an ETag or Last-Modified header
+     */
+    private CacheEntry readCache(String url) {
+        if (cacheDirectory == null) {
+            return null;
+        }
+        String key = getCacheKey(url);
+        Path meta = cacheDirectory.resolve(key + ".properties");
+        Path content = cacheDirectory.resolve(key + ".txt");
+        //Looking the key up keeps it among the most recently used URLs
+        if (cachedKeys.getIfPresent(key) == null || !Files.exists(meta) || !Files.exists(content)) {
+            return null;
+        }
+        try (Reader reader = Files.newBufferedReader(meta, StandardCharsets.UTF_8)) {
+            Properties properties = new Properties();
+            properties.load(reader);
+            if (!url.equals(properties.getProperty("url"))) {
+                return null;
+            }
+            return new CacheEntry(properties.getProperty("etag"), properties.getProperty("lastModified"),
+                    new String(Files.readAllBytes(content), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.warn("Could not read cached content of [{}]: {}", url, e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    private void writeCache(String url, String etag, String lastModified, String content) {
+        if (cacheDirectory == null || (etag == null && lastModified == null)) {
+            return;
+        }
+        String key = getCacheKey(url);
+        Properties properties = new Properties();
+        properties.setProperty("url", url);
+        if (etag != null) {
+            properties.setProperty("etag", etag);
+        }
+        if (lastModified != null) {
+            properties.setProperty("lastModified", lastModified);
+        }
+        try {
+            //Content is written before its headers, such that headers never point to older content
+            Path tmp = Files.createTempFile(cacheDirectory, key, ".tmp");
+            Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, cacheDirectory.resolve(key + ".txt"), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            tmp = Files.createTempFile(cacheDirectory, key, ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                properties.store(writer, null);
+            }
+            Files.move(tmp, cacheDirectory.resolve(key + ".properties"), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            cachedKeys.put(key, Boolean.TRUE);
+        } catch (IOException e) {
+            logger.warn("Could not cache content of [{}]: {}", url, e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Reads the URLs which are cached on disk, such that the least recently written ones are
+     * evicted first, and deletes files of writes which did not complete
+     */
+    private void loadCachedKeys() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.list(cacheDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(".properties")) {
+                    entries.add(file);
+                }
+            }
+        }
+        entries.sort(Comparator.comparingLong(TextContentFetcher::lastModified));
+        for (Path file : entries) {
+            String name = file.getFileName().toString();
+            cachedKeys.put(name.substring(0, name.length() - ".properties".length()), Boolean.TRUE);
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Deletes the files of a URL which was evicted from the cache, unless it was cached again
+     */
+    private void onRemoval(RemovalNotification<String, Boolean> notification) {
+        String key = notification.getKey();
+        if (!notification.wasEvicted() || cacheDirectory == null || cachedKeys.asMap().containsKey(key)) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(cacheDirectory.resolve(key + ".properties"));
+            Files.deleteIfExists(cacheDirectory.resolve(key + ".txt"));
+        } catch (IOException e) {
+            logger.warn("Could not delete cached content [{}]: {}", key, e.getLocalizedMessage());
+        }
+    }
+
+    private static String getCacheKey(String url) {
+        byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+        MurmurHash3.Hash128 hash = MurmurHash3.hash128(bytes, 0, bytes.length, 0, new MurmurHash3.Hash128());
+        return String.format(Locale.ROOT, "%016x%016x", hash.h1, hash.h2);
+    }
+
+    private static class CacheEntry {
+        final String etag;
+        final String lastModified;
+        final String content;
+
+        CacheEntry(String etag, String lastModified, String content) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.content = content;
+        }
+    }
+
+    /**
+     * Thrown when a fetch failed in a way which may succeed later on
+     */
+    private static class RetryableException extends IOException {
+        RetryableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class BulkIndexerTest {
+
+    @Test(timeout = 10000)
+    public void retriesRejectedBulksWhileFlushIntervalRuns() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        //Rejects the first bulks, while the flush interval keeps finding all bulks in flight
+        Client client = newClient((request, listener) -> {
+            if (attempts.incrementAndGet() <= 3) {
+                listener.onFailure(new EsRejectedExecutionException("busy"));
+            } else {
+                listener.onResponse(success(request));
+            }
+        });
+        try (BulkIndexer indexer = new BulkIndexer(client, new BulkSizeController(100, 1), null,
+                TimeValue.timeValueMillis(5), 5)) {
+            for (int i = 0; i < 10; i++) {
+                indexer.add(new IndexRequest("index", "type", "id" + i).source("field", "value"));
+                Thread.sleep(20);
+            }
+            indexer.flush();
+            assertEquals(0, indexer.getNumberOfFailures());
+            assertEquals(10, indexer.getNumberOfActions());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void countsDeletesOnceAcknowledged() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        //The first bulk fails for good, the second one succeeds
+        Client client = newClient((request, listener) -> {
+            if (attempts.incrementAndGet() == 1) {
+                listener.onFailure(new IOException("unavailable"));
+            } else {
+                listener.onResponse(success(request));
+            }
+        });
+        try (BulkIndexer indexer = new BulkIndexer(client, new BulkSizeController(2, 1), null, null, 0)) {
+            indexer.add(new DeleteRequest("index", "type", "id1"));
+            indexer.add(new DeleteRequest("index", "type", "id2"));
+            indexer.add(new DeleteRequest("index", "type", "id3"));
+            indexer.add(new IndexRequest("index", "type", "id4").source("field", "value"));
+            indexer.flush();
+            assertEquals(1, indexer.getNumberOfDeletes());
+            assertEquals(2, indexer.getNumberOfFailures());
+        }
+    }
+
+    @Test
+    public void doesNotCountDeletesOfMissingDocuments() throws Exception {
+        Client client = newClient((request, listener) -> {
+            BulkResponse response = success(request);
+            DeleteRequest delete = (DeleteRequest) request.requests().get(1);
+            response.getItems()[1] = new BulkItemResponse(1, "delete",
+                    new DeleteResponse(delete.index(), delete.type(), delete.id(), 1, false));
+            listener.onResponse(response);
+        });
+        try (BulkIndexer indexer = new BulkIndexer(client, new BulkSizeController(2, 1), null, null, 0)) {
+            indexer.add(new DeleteRequest("index", "type", "id1"));
+            indexer.add(new DeleteRequest("index", "type", "missing"));
+            indexer.flush();
+            assertEquals(1, indexer.getNumberOfDeletes());
+            assertEquals(0, indexer.getNumberOfFailures());
+        }
+    }
+
+    @Test
+    public void doesNotStartThreadsUntilNeeded() {
+        new BulkIndexer(null, new BulkSizeController(10, 0), null, TimeValue.timeValueSeconds(1), 3);
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName().contains("ubbRiver[bulk]"));
+        }
+    }
+
+    private static BulkResponse success(BulkRequest request) {
+        BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+        for (int i = 0; i < items.length; i++) {
+            if (request.requests().get(i) instanceof DeleteRequest) {
+                DeleteRequest delete = (DeleteRequest) request.requests().get(i);
+                items[i] = new BulkItemResponse(i, "delete",
+                        new DeleteResponse(delete.index(), delete.type(), delete.id(), 1, true));
+            } else {
+                IndexRequest index = (IndexRequest) request.requests().get(i);
+                items[i] = new BulkItemResponse(i, "index",
+                        new IndexResponse(index.index(), index.type(), index.id(), 1, true));
+            }
+        }
+        return new BulkResponse(items, 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Client newClient(BulkHandler handler) {
+        return (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class[]{Client.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("bulk") && args.length == 2) {
+                        handler.bulk((BulkRequest) args[0], (ActionListener<BulkResponse>) args[1]);
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private interface BulkHandler {
+        void bulk(BulkRequest request, ActionListener<BulkResponse> listener);
+    }
+}
@@ -0,0 +1,68 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BulkSizeControllerTest {
+
+    private static BulkSizeController adaptive() {
+        return new BulkSizeController(true, 100, 10, 1000, 2, 8, TimeValue.timeValueSeconds(1));
+    }
+
+    @Test
+    public void growsWhileFast() {
+        BulkSizeController controller = adaptive();
+        for (int i = 0; i < 10; i++) {
+            controller.onCompleted(100, 0);
+        }
+        assertTrue(controller.getBulkActions() > 100);
+        assertEquals(3, controller.getConcurrentRequests());
+    }
+
+    @Test
+    public void addsConcurrencyByStep() {
+        BulkSizeController controller = new BulkSizeController(true, 100, 10, 1000, 1, 16,
+                TimeValue.timeValueSeconds(1), 4);
+        for (int i = 0; i < 10; i++) {
+            controller.onCompleted(100, 0);
+        }
+        assertEquals(5, controller.getConcurrentRequests());
+        for (int i = 0; i < 40; i++) {
+            controller.onCompleted(100, 0);
+        }
+        assertEquals(16, controller.getConcurrentRequests());
+    }
+
+    @Test
+    public void shrinksOnRejections() {
+        BulkSizeController controller = adaptive();
+        controller.onCompleted(100, 5);
+        assertEquals(50, controller.getBulkActions());
+        assertEquals(1, controller.getConcurrentRequests());
+        for (int i = 0; i < 10; i++) {
+            controller.onRejected();
+        }
+        assertEquals(10, controller.getBulkActions());
+        assertEquals(1, controller.getConcurrentRequests());
+    }
+
+    @Test
+    public void shrinksWhenSlow() {
+        BulkSizeController controller = adaptive();
+        controller.onCompleted(5000, 0);
+        assertEquals(75, controller.getBulkActions());
+        assertEquals(2, controller.getConcurrentRequests());
+    }
+
+    @Test
+    public void keepsSizesWhenNotAdaptive() {
+        BulkSizeController controller = new BulkSizeController(100, 2);
+        controller.onRejected();
+        controller.onCompleted(10, 0);
+        assertEquals(100, controller.getBulkActions());
+        assertEquals(2, controller.getConcurrentRequests());
+    }
+}
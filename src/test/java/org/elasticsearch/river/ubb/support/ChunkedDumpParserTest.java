@@ -0,0 +1,111 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.rdf.model.Model;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkedDumpParserTest {
+
+    @Test
+    public void parsesAllLinesInParallel() throws Exception {
+        Path dump = Files.createTempFile("dump", ".nt");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("<http://example.org/s").append(i).append("> <http://example.org/p> \"value ")
+                    .append(i).append("\" .\n");
+        }
+        Files.write(dump, sb.toString().getBytes(StandardCharsets.UTF_8));
+
+        List<Model> models = Collections.synchronizedList(new ArrayList<>());
+        int ranges = new ChunkedDumpParser(dump, RDFLanguages.NTRIPLES)
+                .parse(7, () -> new SubjectGroupingStream(10, models::add));
+
+        Set<String> subjects = new HashSet<>();
+        for (Model m : models) {
+            subjects.add(m.listSubjects().nextResource().getURI());
+        }
+        assertEquals(7, ranges);
+        assertEquals(1000, models.size());
+        assertEquals(1000, subjects.size());
+        Files.delete(dump);
+    }
+
+    @Test
+    public void skipsRangesWhichWereParsedBefore() throws Exception {
+        Path dump = Files.createTempFile("dump", ".nt");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("<http://example.org/s").append(i).append("> <http://example.org/p> \"value ")
+                    .append(i).append("\" .\n");
+        }
+        Files.write(dump, sb.toString().getBytes(StandardCharsets.UTF_8));
+        ChunkedDumpParser parser = new ChunkedDumpParser(dump, RDFLanguages.NTRIPLES);
+
+        Set<Long> starts = Collections.synchronizedSet(new TreeSet<>());
+        List<Model> all = Collections.synchronizedList(new ArrayList<>());
+        assertEquals(4, parser.parse(4, () -> new SubjectGroupingStream(10, all::add),
+                Collections.emptySet(), starts::add));
+        assertEquals(4, starts.size());
+
+        Set<Long> skipped = new HashSet<>(starts);
+        skipped.remove(0L);
+        List<Model> rest = Collections.synchronizedList(new ArrayList<>());
+        assertEquals(4, parser.parse(4, () -> new SubjectGroupingStream(10, rest::add),
+                skipped, start -> assertEquals(0L, start)));
+        assertTrue(rest.size() > 0);
+        assertTrue(rest.size() < all.size());
+        Files.delete(dump);
+    }
+
+    @Test
+    public void neverSplitsTriplesOfASubjectBetweenRanges() throws Exception {
+        Path dump = Files.createTempFile("dump", ".nt");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 37; j++) {
+                sb.append("<http://example.org/s").append(i).append("> <http://example.org/p> \"value ")
+                        .append(j).append("\" .\n");
+            }
+        }
+        Files.write(dump, sb.toString().getBytes(StandardCharsets.UTF_8));
+
+        List<Model> models = Collections.synchronizedList(new ArrayList<>());
+        int ranges = new ChunkedDumpParser(dump, RDFLanguages.NTRIPLES)
+                .parse(7, () -> new SubjectGroupingStream(100, models::add));
+
+        assertTrue(ranges > 1);
+        assertEquals(10, models.size());
+        for (Model m : models) {
+            assertEquals(37, m.size());
+        }
+        Files.delete(dump);
+    }
+
+    @Test
+    public void compressedDumpIsNotSplittable() {
+        assertTrue(ChunkedDumpParser.isSplittable(Paths.get("dump.nt"), RDFLanguages.NTRIPLES));
+        assertFalse(ChunkedDumpParser.isSplittable(Paths.get("dump.nt.gz"), RDFLanguages.NTRIPLES));
+        assertFalse(ChunkedDumpParser.isSplittable(Paths.get("dump.rdf"), RDFLanguages.RDFXML));
+    }
+
+    @Test
+    public void remoteDumpIsNotLocal() {
+        assertNull(ChunkedDumpParser.toLocalFile("http://example.org/dump.nt"));
+    }
+}
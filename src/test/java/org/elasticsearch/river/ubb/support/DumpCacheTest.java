@@ -0,0 +1,98 @@
+package org.elasticsearch.river.ubb.support;
+
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DumpCacheTest {
+    private static final String DUMP = "<http://example.org/s> <http://example.org/p> \"o\" .\n";
+    private HttpServer server;
+    private final AtomicInteger downloads = new AtomicInteger();
+    private volatile String etag = "\"v1\"";
+
+    @Before
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/dump.nt", exchange -> {
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                downloads.incrementAndGet();
+                byte[] body = DUMP.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("ETag", etag);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void skipsDumpsWhichHaveNotChangedSinceLastHarvest() throws Exception {
+        String url = "http://localhost:" + server.getAddress().getPort() + "/dump.nt";
+        DumpCache cache = new DumpCache(Files.createTempDirectory("dumps"), TimeValue.timeValueSeconds(5));
+
+        DumpCache.Dump dump = cache.fetch(url);
+        assertTrue(dump.isChanged("index"));
+        assertTrue(dump.getPath().toString().endsWith(".nt"));
+        assertEquals(DUMP, new String(Files.readAllBytes(dump.getPath()), StandardCharsets.UTF_8));
+        //Not harvested yet, so it has to be harvested again
+        assertTrue(cache.fetch(url).isChanged("index"));
+        cache.markHarvested(dump, "index");
+
+        assertFalse(cache.fetch(url).isChanged("index"));
+        assertEquals(1, downloads.get());
+
+        //A new ETag with the same content is downloaded, but the dump is still skipped
+        etag = "\"v2\"";
+        assertFalse(cache.fetch(url).isChanged("index"));
+        assertEquals(2, downloads.get());
+    }
+
+    @Test
+    public void hashesLocalDumps() throws Exception {
+        Path file = Files.createTempFile("dump", ".nt");
+        Files.write(file, DUMP.getBytes(StandardCharsets.UTF_8));
+        DumpCache cache = new DumpCache(Files.createTempDirectory("dumps"), TimeValue.timeValueSeconds(5));
+        DumpCache.Dump dump = cache.fetch(file.toString());
+        assertEquals(file, dump.getPath());
+        cache.markHarvested(dump, "index");
+        assertFalse(cache.fetch(file.toString()).isChanged("index"));
+
+        Files.write(file, (DUMP + DUMP).getBytes(StandardCharsets.UTF_8));
+        assertTrue(cache.fetch(file.toString()).isChanged("index"));
+    }
+
+    @Test
+    public void harvestsDumpAgainIntoAnotherIndex() throws Exception {
+        Path file = Files.createTempFile("dump", ".nt");
+        Files.write(file, DUMP.getBytes(StandardCharsets.UTF_8));
+        DumpCache cache = new DumpCache(Files.createTempDirectory("dumps"), TimeValue.timeValueSeconds(5));
+        cache.markHarvested(cache.fetch(file.toString()), "index");
+        assertFalse(cache.fetch(file.toString()).isChanged("index"));
+        //The index was deleted and created again
+        assertTrue(cache.fetch(file.toString()).isChanged("recreated"));
+        assertTrue(cache.fetch(file.toString()).isChanged(null));
+    }
+}
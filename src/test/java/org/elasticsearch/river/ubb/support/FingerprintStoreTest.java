@@ -0,0 +1,59 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FingerprintStoreTest {
+
+    @Test
+    public void fingerprintDoesNotDependOnOrder() {
+        Map<String, Object> first = new LinkedHashMap<>();
+        first.put("title", "Bergen");
+        first.put("subject", Arrays.asList("maps", "photos"));
+        Map<String, Object> second = new LinkedHashMap<>();
+        second.put("subject", Arrays.asList("photos", "maps"));
+        second.put("title", "Bergen");
+        assertEquals(FingerprintStore.fingerprint(first), FingerprintStore.fingerprint(second));
+
+        second.put("title", "Oslo");
+        assertNotEquals(FingerprintStore.fingerprint(first), FingerprintStore.fingerprint(second));
+    }
+
+    @Test
+    public void keepsFingerprintsAcrossRuns() throws Exception {
+        Path dir = Files.createTempDirectory("fingerprints");
+        try (FingerprintStore store = new FingerprintStore(dir, "uuid")) {
+            assertFalse(store.isUnchanged("index", "type", "http://example.org/1", "abc"));
+            store.put("index", "type", "http://example.org/1", "abc");
+            store.put("index", "type", "http://example.org/2", "def");
+            store.remove("index", "type", "http://example.org/2");
+        }
+        try (FingerprintStore store = new FingerprintStore(dir, "uuid")) {
+            assertTrue(store.isUnchanged("index", "type", "http://example.org/1", "abc"));
+            assertFalse(store.isUnchanged("index", "type", "http://example.org/1", "abd"));
+            assertFalse(store.isUnchanged("other", "type", "http://example.org/1", "abc"));
+            assertFalse(store.isUnchanged("index", "type", "http://example.org/2", "def"));
+        }
+    }
+
+    @Test
+    public void dropsFingerprintsOfRecreatedIndex() throws Exception {
+        Path dir = Files.createTempDirectory("fingerprints");
+        try (FingerprintStore store = new FingerprintStore(dir, "uuid")) {
+            store.put("index", "type", "http://example.org/1", "abc");
+        }
+        try (FingerprintStore store = new FingerprintStore(dir, "recreated")) {
+            assertFalse(store.isUnchanged("index", "type", "http://example.org/1", "abc"));
+        }
+    }
+}
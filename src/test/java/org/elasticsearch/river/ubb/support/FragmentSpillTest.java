@@ -0,0 +1,56 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.Resource;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FragmentSpillTest {
+
+    @Test
+    public void replaysSpilledFragmentsBySubject() throws Exception {
+        List<Model> models = new ArrayList<>();
+        try (FragmentSpill spill = new FragmentSpill()) {
+            assertTrue(spill.isEmpty());
+            spill.add(fragment("http://example.org/a", "1"));
+            spill.add(fragment("http://example.org/b", "2"));
+            spill.add(fragment("http://example.org/a", "3"));
+            assertFalse(spill.isEmpty());
+            assertEquals(3, spill.getNumberOfTriples());
+            spill.replay(new SubjectGroupingStream(10, models::add));
+        }
+        assertEquals(2, models.size());
+        assertEquals(3, models.get(0).size() + models.get(1).size());
+    }
+
+    @Test
+    public void keepsLabelsOfBlankNodes() throws Exception {
+        Model model = ModelFactory.createDefaultModel();
+        Resource blank = model.createResource();
+        blank.addProperty(model.createProperty("http://example.org/p"), "1");
+        List<Model> models = new ArrayList<>();
+        try (FragmentSpill spill = new FragmentSpill()) {
+            spill.add(model);
+            spill.add(fragment("http://example.org/a", "2"));
+            spill.replay(new SubjectGroupingStream(10, models::add));
+        }
+        assertEquals(2, models.size());
+        assertEquals(blank.getId().getLabelString(),
+                models.get(0).listSubjects().nextResource().getId().getLabelString());
+    }
+
+    private static Model fragment(String subject, String value) {
+        Model model = ModelFactory.createDefaultModel();
+        Property p = model.createProperty("http://example.org/p");
+        model.createResource(subject).addProperty(p, value);
+        return model;
+    }
+}
@@ -0,0 +1,70 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HarvestCheckpointsTest {
+
+    @Test
+    public void doesNotAdvanceOnceActionsHaveFailed() throws Exception {
+        List<IndexRequest> written = new ArrayList<>();
+        AtomicLong failures = new AtomicLong(3);
+        HarvestCheckpoints checkpoints = new HarvestCheckpoints(newClient(written), "river", "settings",
+                TimeValue.timeValueMillis(0), () -> { }, failures::get);
+
+        checkpoints.update("query", "page-1");
+        assertEquals(1, written.size());
+        assertEquals("page-1", positions(written.get(0)).get("query"));
+        assertFalse(checkpoints.hasFailures());
+
+        //A failed action lies before the next position, which must not be written
+        failures.incrementAndGet();
+        checkpoints.update("query", "page-2");
+        assertEquals(1, written.size());
+        assertTrue(checkpoints.hasFailures());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> positions(IndexRequest request) {
+        return (Map<String, Object>) request.sourceAsMap().get("positions");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Client newClient(List<IndexRequest> written) {
+        Client[] client = new Client[1];
+        client[0] = (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class[]{Client.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "prepareIndex":
+                            return new IndexRequestBuilder(client[0], (String) args[0])
+                                    .setType((String) args[1]).setId((String) args[2]);
+                        case "index":
+                            IndexRequest request = (IndexRequest) args[0];
+                            written.add(request);
+                            ((ActionListener<IndexResponse>) args[1]).onResponse(
+                                    new IndexResponse(request.index(), request.type(), request.id(), 1, true));
+                            return null;
+                        case "threadPool":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        return client[0];
+    }
+}
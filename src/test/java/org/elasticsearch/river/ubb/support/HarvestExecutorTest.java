@@ -0,0 +1,184 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HarvestExecutorTest {
+
+    @Test
+    public void capsNumberOfConcurrentRuns() throws Exception {
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(6);
+        try (HarvestExecutor executor = new HarvestExecutor("test", 2)) {
+            for (int i = 0; i < 6; i++) {
+                executor.submit("river" + i, 1, () -> {
+                    maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                    sleep(20);
+                    active.decrementAndGet();
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+        assertEquals(2, maxActive.get());
+    }
+
+    @Test
+    public void givesMoreTurnsToRiversWithHigherWeight() throws Exception {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(10);
+        try (HarvestExecutor executor = new HarvestExecutor("test", 1)) {
+            //Holds the only thread until both rivers have queued their runs
+            executor.submit("blocker", 1, () -> await(blocked));
+            for (int i = 0; i < 5; i++) {
+                executor.submit("light", 1, () -> run(order, "light", done));
+                executor.submit("heavy", 10, () -> run(order, "heavy", done));
+            }
+            blocked.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+        assertEquals(5, Collections.frequency(order.subList(0, 6), "heavy"));
+    }
+
+    @Test
+    public void riverWakingUpWhileAllAreIdleGetsNoCredit() throws Exception {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(7);
+        try (HarvestExecutor executor = new HarvestExecutor("test", 1)) {
+            //"old" runs alone, then every river is idle before "new" shows up
+            executor.submit("old", 1, () -> {
+                sleep(100);
+                done.countDown();
+            });
+            while (executor.getNumberOfActiveRuns() > 0 || executor.getNumberOfPendingRuns() > 0) {
+                Thread.sleep(5);
+            }
+            executor.submit("blocker", 1, () -> await(blocked));
+            for (int i = 0; i < 3; i++) {
+                executor.submit("new", 1, () -> run(order, "new", done));
+                executor.submit("old", 1, () -> run(order, "old", done));
+            }
+            blocked.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+        //Without a virtual time of the executor, "new" would start at 0 and run three times first
+        assertTrue(order.subList(0, 2).contains("old"));
+    }
+
+    @Test
+    public void cancelDropsWaitingRuns() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch blocked = new CountDownLatch(1);
+        try (HarvestExecutor executor = new HarvestExecutor("test", 1)) {
+            executor.submit("blocker", 1, () -> await(blocked));
+            executor.submit("river", 1, runs::incrementAndGet);
+            executor.submit("river", 1, runs::incrementAndGet);
+            assertEquals(2, executor.getNumberOfPendingRuns());
+            executor.cancel("river");
+            assertEquals(0, executor.getNumberOfPendingRuns());
+            blocked.countDown();
+        }
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void cancelDropsScheduledRuns() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        try (HarvestExecutor executor = new HarvestExecutor("test", 1)) {
+            executor.schedule("river", 1, runs::incrementAndGet, 100);
+            executor.cancel("river");
+            Thread.sleep(300);
+            assertEquals(0, runs.get());
+
+            //The river started again under the same name runs as usual
+            CountDownLatch done = new CountDownLatch(1);
+            executor.submit("river", 1, done::countDown);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void cancelledRiverDoesNotComeBackFromTimer() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        CountDownLatch scheduled = new CountDownLatch(1);
+        try (HarvestExecutor executor = new HarvestExecutor("test", 1)) {
+            executor.submit("river", 1, () -> {
+                runs.incrementAndGet();
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                //Like a scheduled river, the run queues the next one as it ends
+                executor.schedule("river", 1, runs::incrementAndGet, 10);
+                scheduled.countDown();
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            executor.cancel("river");
+            assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+            assertTrue(scheduled.await(5, TimeUnit.SECONDS));
+            Thread.sleep(200);
+        }
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void cancelStopsRunAboutToStart() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        for (int i = 0; i < 20; i++) {
+            try (HarvestExecutor executor = new HarvestExecutor("test", 1)) {
+                //The run is taken from the queue at once, and cancelled before or just after it starts
+                executor.submit("river", 1, () -> {
+                    try {
+                        Thread.sleep(100);
+                        runs.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                executor.cancel("river");
+                while (executor.getNumberOfActiveRuns() > 0) {
+                    Thread.sleep(5);
+                }
+            }
+        }
+        assertEquals(0, runs.get());
+    }
+
+    private static void run(List<String> order, String river, CountDownLatch done) {
+        order.add(river);
+        sleep(10);
+        done.countDown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
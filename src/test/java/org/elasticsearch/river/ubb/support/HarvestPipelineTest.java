@@ -0,0 +1,108 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Resource;
+import org.elasticsearch.action.index.IndexRequest;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HarvestPipelineTest {
+
+    @Test
+    public void buildsOneDocumentPerSubject() throws Exception {
+        Model model = ModelFactory.createDefaultModel();
+        for (int i = 0; i < 100; i++) {
+            Resource rs = model.createResource("http://example.org/s" + i);
+            rs.addProperty(model.createProperty("http://example.org/p"), "a");
+            rs.addProperty(model.createProperty("http://example.org/q"), "b");
+        }
+        Set<String> built = ConcurrentHashMap.newKeySet();
+        //Builders return no requests, so the bulk indexer never needs a client
+        try (HarvestPipeline pipeline = new HarvestPipeline("test", 2, 3, 1, 10, new BulkIndexer(null, 10))) {
+            pipeline.submit(model, m -> {
+                assertEquals(2, m.size());
+                built.add(m.listSubjects().nextResource().getURI());
+                return null;
+            });
+            pipeline.flush();
+            assertEquals(100, built.size());
+            assertEquals(200, pipeline.getNumberOfTriples());
+            assertEquals(0, pipeline.getNumberOfDocuments());
+        }
+        assertTrue(built.contains("http://example.org/s99"));
+    }
+
+    @Test
+    public void waitsForRequestsCompletedLater() throws Exception {
+        AtomicBoolean completed = new AtomicBoolean();
+        try (HarvestPipeline pipeline = new HarvestPipeline("test", 1, 1, 1, 10, new BulkIndexer(null, 10))) {
+            pipeline.submitLater(CompletableFuture.supplyAsync(() -> {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                completed.set(true);
+                return null;
+            }));
+            pipeline.flush();
+            assertTrue(completed.get());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void reportsErrorOfStageOnFlush() throws Exception {
+        Model model = ModelFactory.createDefaultModel();
+        for (int i = 0; i < 20; i++) {
+            model.createResource("http://example.org/s" + i)
+                    .addProperty(model.createProperty("http://example.org/p"), "a");
+        }
+        try (HarvestPipeline pipeline = new HarvestPipeline("test", 1, 1, 1, 2, new BulkIndexer(null, 10))) {
+            pipeline.submit(model, m -> {
+                throw new AssertionError("builder failed");
+            });
+            try {
+                pipeline.flush();
+                fail("Expected the error of the building stage");
+            } catch (ExecutionException e) {
+                assertEquals("builder failed", e.getCause().getMessage());
+            }
+            assertTrue(pipeline.hasFailed());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void countsDocumentsWhichCannotBeBuiltAsFailures() throws Exception {
+        Model model = ModelFactory.createDefaultModel();
+        for (int i = 0; i < 5; i++) {
+            model.createResource("http://example.org/s" + i)
+                    .addProperty(model.createProperty("http://example.org/p"), "a");
+        }
+        BulkIndexer indexer = new BulkIndexer(null, 10);
+        try (HarvestPipeline pipeline = new HarvestPipeline("test", 1, 2, 1, 2, indexer)) {
+            pipeline.submit(model, m -> {
+                if (m.contains(m.createResource("http://example.org/s3"), null)) {
+                    throw new IllegalStateException("builder failed");
+                }
+                return null;
+            });
+            CompletableFuture<IndexRequest> later = new CompletableFuture<>();
+            pipeline.submitLater(later);
+            later.completeExceptionally(new IllegalStateException("content could not be fetched"));
+            pipeline.flush();
+            assertFalse(pipeline.hasFailed());
+        }
+        assertEquals(2, indexer.getNumberOfFailures());
+    }
+}
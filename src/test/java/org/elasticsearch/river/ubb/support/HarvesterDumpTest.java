@@ -0,0 +1,166 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetRequestBuilder;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateRequestBuilder;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.get.GetResult;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HarvesterDumpTest {
+
+    private static final String P = "<http://example.org/p>";
+
+    @Test
+    public void keepsValuesOfSubjectScatteredOverDump() throws Exception {
+        //Only one subject is kept in memory, so the last triple of a is a fragment
+        Path dump = Files.createTempFile("dump", ".nt");
+        Files.write(dump, Arrays.asList(
+                "<http://example.org/a> " + P + " \"1\" .",
+                "<http://example.org/b> " + P + " \"x\" .",
+                "<http://example.org/c> " + P + " \"y\" .",
+                "<http://example.org/a> " + P + " \"2\" .",
+                "<http://example.org/a> " + P + " \"3\" ."), StandardCharsets.UTF_8);
+        Map<String, Map<String, Object>> documents = new HashMap<>();
+        try {
+            newHarvester(documents, dump).dumpParseThreads(1).run();
+        } finally {
+            Files.delete(dump);
+        }
+
+        assertEquals(3, documents.size());
+        Object values = documents.get("http://example.org/a").get("http://example.org/p");
+        assertTrue(values instanceof Collection);
+        assertEquals(3, ((Collection<?>) values).size());
+        assertTrue(((Collection<?>) values).containsAll(Arrays.asList("1", "2", "3")));
+        assertEquals("x", documents.get("http://example.org/b").get("http://example.org/p"));
+    }
+
+    @Test
+    public void mergesFieldsOfFragments() {
+        Map<String, Object> document = new LinkedHashMap<>();
+        document.put("title", "a");
+        document.put("subject", Arrays.asList("x", "y"));
+        document.put("suggest", new HashMap<>(Collections.singletonMap("input", "a")));
+        Map<String, Object> fragment = new LinkedHashMap<>();
+        fragment.put("title", "b");
+        fragment.put("subject", "y");
+        fragment.put("creator", "c");
+        fragment.put("suggest", new HashMap<>(Collections.singletonMap("input", Arrays.asList("b", "c"))));
+
+        Map<String, Object> merged = new Harvester().mergeDocuments(document, fragment);
+        assertEquals(Arrays.asList("a", "b"), merged.get("title"));
+        assertEquals(Arrays.asList("x", "y"), merged.get("subject"));
+        assertEquals("c", merged.get("creator"));
+        assertEquals(Arrays.asList("a", "b", "c"), ((Map<?, ?>) merged.get("suggest")).get("input"));
+    }
+
+    private static Harvester newHarvester(Map<String, Map<String, Object>> documents, Path dump) {
+        return new Harvester() {
+            @Override
+            void setLastUpdate(Date date) {
+            }
+        }.client(newClient(documents))
+                .riverName("river")
+                .index("index")
+                .type("type")
+                .rdfUrl("[" + dump.toUri() + "]")
+                .rdfEndpoint("")
+                .rdfTDBLocation("")
+                .rdfStreamDumps(true)
+                .rdfDumpFormat("N-Triples")
+                .rdfNumberOfBulkActions(1)
+                .rdfUpdateDocuments(false)
+                .rdfAddUriForResource(false)
+                .rdfAddLanguage(false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Client newClient(Map<String, Map<String, Object>> documents) {
+        Client[] client = new Client[1];
+        client[0] = (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class[]{Client.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "prepareIndex":
+                            return new IndexRequestBuilder(client[0], (String) args[0])
+                                    .setType((String) args[1]).setId((String) args[2]);
+                        case "prepareUpdate":
+                            return new UpdateRequestBuilder(client[0], (String) args[0], (String) args[1], (String) args[2]);
+                        case "prepareGet":
+                            return new GetRequestBuilder(client[0], (String) args[0])
+                                    .setType((String) args[1]).setId((String) args[2]);
+                        case "get":
+                            ((ActionListener<GetResponse>) args[1]).onResponse(get(documents, (GetRequest) args[0]));
+                            return null;
+                        case "bulk":
+                            ((ActionListener<BulkResponse>) args[1]).onResponse(bulk(documents, (BulkRequest) args[0]));
+                            return null;
+                        case "threadPool":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        return client[0];
+    }
+
+    private static synchronized GetResponse get(Map<String, Map<String, Object>> documents, GetRequest request)
+            throws Exception {
+        Map<String, Object> document = documents.get(request.id());
+        return new GetResponse(new GetResult(request.index(), request.type(), request.id(), 1, document != null,
+                document == null ? null : XContentFactory.jsonBuilder().map(document).bytes(), null));
+    }
+
+    /**
+     * Applies a bulk the way Elasticsearch does, i.e a partial update replaces the fields it holds
+     */
+    private static synchronized BulkResponse bulk(Map<String, Map<String, Object>> documents, BulkRequest request) {
+        List<ActionRequest> requests = request.requests();
+        BulkItemResponse[] items = new BulkItemResponse[requests.size()];
+        for (int i = 0; i < items.length; i++) {
+            ActionRequest action = requests.get(i);
+            if (action instanceof IndexRequest) {
+                IndexRequest index = (IndexRequest) action;
+                documents.put(index.id(), index.sourceAsMap());
+                items[i] = new BulkItemResponse(i, "index",
+                        new IndexResponse(index.index(), index.type(), index.id(), 1, true));
+            } else {
+                UpdateRequest update = (UpdateRequest) action;
+                Map<String, Object> fields = update.doc().sourceAsMap();
+                boolean created = !documents.containsKey(update.id());
+                documents.computeIfAbsent(update.id(), id -> new LinkedHashMap<>()).putAll(fields);
+                items[i] = new BulkItemResponse(i, "update",
+                        new UpdateResponse(update.index(), update.type(), update.id(), 1, created));
+            }
+        }
+        return new BulkResponse(items, 0);
+    }
+}
@@ -0,0 +1,165 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HarvesterScheduleTest {
+
+    @Test
+    public void delaysNextRunByIntervalAndJitter() {
+        Harvester harvester = new Harvester().syncSchedule("10s", "2s");
+        assertTrue(harvester.isScheduled());
+        for (int i = 0; i < 100; i++) {
+            long delay = harvester.getNextRunDelay();
+            assertTrue(delay >= 10000 && delay <= 12000);
+        }
+        assertEquals(10000, new Harvester().syncSchedule("10s", "").getNextRunDelay());
+        assertFalse(new Harvester().syncSchedule("", "1m").isScheduled());
+    }
+
+    @Test(timeout = 10000)
+    public void skipsRunWhilePreviousRunIsActive() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Harvester harvester = new Harvester() {
+            @Override
+            void harvest() {
+                runs.incrementAndGet();
+                started.countDown();
+                await(release);
+            }
+        }.syncSchedule("1m", "");
+        Thread first = new Thread(harvester);
+        first.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        harvester.run();
+        assertEquals(1, runs.get());
+
+        release.countDown();
+        first.join();
+        harvester.run();
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void keepsStoresBetweenScheduledRuns() throws Exception {
+        AtomicReference<TDBStore> opened = new AtomicReference<>();
+        Harvester harvester = newHarvesterOpeningTDB(opened).syncSchedule("1m", "");
+        harvester.run();
+        assertSame(opened.get(), harvester.getTDBStore());
+
+        harvester.setClose(true);
+        assertNotSame(opened.get(), harvester.getTDBStore());
+        harvester.closeTDBStore();
+    }
+
+    @Test
+    public void releasesStoresAfterSingleRun() throws Exception {
+        AtomicReference<TDBStore> opened = new AtomicReference<>();
+        Harvester harvester = newHarvesterOpeningTDB(opened);
+        harvester.run();
+        assertNotSame(opened.get(), harvester.getTDBStore());
+        harvester.closeTDBStore();
+    }
+
+    @Test(timeout = 10000)
+    public void releasesStoresOfRiverClosedDuringRun() throws Exception {
+        AtomicReference<TDBStore> opened = new AtomicReference<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Harvester harvester = new Harvester() {
+            @Override
+            void harvest() {
+                opened.set(getTDBStore());
+                started.countDown();
+                await(release);
+            }
+        }.syncSchedule("1m", "");
+        harvester.rdfTDBLocation(Files.createTempDirectory("tdb").toString());
+        Thread run = new Thread(harvester);
+        run.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        //The store is in use, so it is released by the run once it ends
+        harvester.setClose(true);
+        release.countDown();
+        run.join();
+        assertNotSame(opened.get(), harvester.getTDBStore());
+        harvester.closeTDBStore();
+    }
+
+    @Test
+    public void startsEachScheduledSyncAtLastUpdate() throws Exception {
+        List<String> syncQueries = new ArrayList<>();
+        List<Date> lastUpdates = new ArrayList<>();
+        Harvester harvester = new Harvester() {
+            @Override
+            SyncUriPager executeSyncQuery(String rdfQuery, String queryObjName) {
+                syncQueries.add(rdfQuery);
+                //Nothing has changed
+                return new SyncUriPager(rdfQuery, queryObjName, 10,
+                        query -> QueryExecutionFactory.create(query, DatasetFactory.create()));
+            }
+
+            @Override
+            void setLastUpdate(Date date) {
+                lastUpdates.add(date);
+            }
+        }.rdfEndpoint("http://example.org/sparql")
+                .rdfIndexType("sync")
+                .rdfUpdateDocuments(false)
+                .rdfSyncOldData(false)
+                .rdfSyncTimeProp("http://purl.org/dc/terms/modified")
+                .rdfSyncConditions("")
+                .rdfStartTime("2000-01-01T00:00:00")
+                .syncSchedule("1m", "");
+
+        harvester.run();
+        Thread.sleep(1000);
+        harvester.run();
+        harvester.setClose(true);
+
+        assertEquals(2, syncQueries.size());
+        assertEquals(2, lastUpdates.size());
+        assertTrue(syncQueries.get(0).contains("2000-01-01T00:00:00"));
+        String firstLastUpdate = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(lastUpdates.get(0));
+        assertTrue(syncQueries.get(1).contains("xsd:dateTime(\"" + firstLastUpdate + "\")"));
+    }
+
+    private static Harvester newHarvesterOpeningTDB(AtomicReference<TDBStore> opened) throws Exception {
+        Harvester harvester = new Harvester() {
+            @Override
+            void harvest() {
+                opened.set(getTDBStore());
+            }
+        };
+        return harvester.rdfTDBLocation(Files.createTempDirectory("tdb").toString());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
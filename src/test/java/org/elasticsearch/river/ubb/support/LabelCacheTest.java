@@ -0,0 +1,85 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LabelCacheTest {
+
+    @Test
+    public void cachesLabelsAndMissingLabels() {
+        LabelCache cache = new LabelCache(10);
+        AtomicInteger lookups = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("A", cache.get("http://example.org/a", uri -> {
+                lookups.incrementAndGet();
+                return "A";
+            }));
+            assertNull(cache.get("http://example.org/b", uri -> {
+                lookups.incrementAndGet();
+                return "";
+            }));
+        }
+        assertEquals(2, lookups.get());
+        assertEquals(4, cache.stats().hitCount());
+        assertEquals(2, cache.stats().missCount());
+    }
+
+    @Test
+    public void doesNotCacheFailedLookups() {
+        LabelCache cache = new LabelCache(10);
+        AtomicInteger lookups = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            assertNull(cache.get("http://example.org/a", uri -> {
+                lookups.incrementAndGet();
+                return null;
+            }));
+        }
+        assertEquals(3, lookups.get());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictsBeyondMaximumSize() {
+        LabelCache cache = new LabelCache(5);
+        for (int i = 0; i < 100; i++) {
+            cache.get("http://example.org/" + i, uri -> "label");
+        }
+        assertTrue(cache.size() <= 5);
+        assertEquals(100 - cache.size(), cache.stats().evictionCount());
+    }
+
+    @Test
+    public void servesPrefetchedLabels() {
+        LabelCache cache = new LabelCache(10);
+        cache.put("http://example.org/a", "A");
+        cache.put("http://example.org/b", null);
+        assertTrue(cache.contains("http://example.org/a"));
+        assertTrue(cache.contains("http://example.org/b"));
+        assertEquals("A", cache.get("http://example.org/a", uri -> "other"));
+        assertNull(cache.get("http://example.org/b", uri -> "other"));
+        assertEquals(2, cache.stats().hitCount());
+    }
+
+    @Test
+    public void looksUpExpiredLabelsAgain() throws Exception {
+        LabelCache cache = new LabelCache(10, TimeValue.timeValueMillis(50));
+        AtomicInteger lookups = new AtomicInteger();
+        assertNull(cache.get("http://example.org/a", uri -> {
+            lookups.incrementAndGet();
+            return "";
+        }));
+        Thread.sleep(100);
+        //The URI has got a label meanwhile
+        assertEquals("A", cache.get("http://example.org/a", uri -> {
+            lookups.incrementAndGet();
+            return "A";
+        }));
+        assertEquals(2, lookups.get());
+    }
+}
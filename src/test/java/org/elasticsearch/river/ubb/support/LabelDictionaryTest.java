@@ -0,0 +1,86 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Property;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LabelDictionaryTest {
+
+    @Test
+    public void keepsFirstLabelOfAUri() {
+        LabelDictionary dictionary = new LabelDictionary();
+        assertTrue(dictionary.putIfAbsent("http://example.org/a", "A"));
+        assertFalse(dictionary.putIfAbsent("http://example.org/a", "Other"));
+        assertEquals("A", dictionary.get("http://example.org/a"));
+        assertNull(dictionary.get("http://example.org/b"));
+        assertEquals(1, dictionary.size());
+    }
+
+    @Test
+    public void growsAndInternsLabels() {
+        LabelDictionary dictionary = new LabelDictionary();
+        int count = 100000;
+        for (int i = 0; i < count; i++) {
+            dictionary.putIfAbsent("http://example.org/" + i, "Label " + (i % 10));
+        }
+        dictionary.seal();
+        assertEquals(count, dictionary.size());
+        assertEquals(10, dictionary.getNumberOfLabels());
+        for (int i = 0; i < count; i++) {
+            assertEquals("Label " + (i % 10), dictionary.get("http://example.org/" + i));
+        }
+    }
+
+    @Test
+    public void pagesPreloadedLabelsByUri() {
+        String label = "http://www.w3.org/2004/02/skos/core#prefLabel";
+        Model model = ModelFactory.createDefaultModel();
+        Property property = model.createProperty(label);
+        for (int i = 0; i < 25; i++) {
+            model.createResource("http://example.org/" + i)
+                    .addProperty(property, "Label " + i)
+                    .addProperty(property, "Other " + i);
+        }
+        Dataset dataset = DatasetFactory.create();
+        dataset.addNamedModel("http://example.org/graph", model);
+        Harvester harvester = new Harvester().rdfLanguage("en").rdfPageSize(10);
+
+        Set<String> uris = new HashSet<>();
+        String lastKey = null;
+        int pages = 0;
+        while (true) {
+            Query query = harvester.getPreloadPageForLabels(label, lastKey);
+            assertFalse(query.hasOffset());
+            try (QueryExecution qexec = QueryExecutionFactory.create(query, dataset)) {
+                ResultSet results = qexec.execSelect();
+                while (results.hasNext()) {
+                    QuerySolution sol = results.nextSolution();
+                    lastKey = sol.getResource("uri").getURI();
+                    uris.add(lastKey);
+                }
+                pages++;
+                if (results.getRowNumber() < 10) {
+                    break;
+                }
+            }
+        }
+        assertEquals(25, uris.size());
+        assertTrue(pages <= 6);
+    }
+}
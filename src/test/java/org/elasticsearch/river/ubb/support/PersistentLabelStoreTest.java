@@ -0,0 +1,99 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PersistentLabelStoreTest {
+
+    @Test
+    public void keepsLabelsAcrossRuns() throws Exception {
+        Path dir = Files.createTempDirectory("labels");
+        try (PersistentLabelStore store = new PersistentLabelStore(dir, null)) {
+            for (int i = 0; i < 100000; i++) {
+                store.put("http://example.org/" + i, "label " + i);
+            }
+            store.put("http://example.org/none", null);
+            store.put("http://example.org/1", "updated");
+            assertEquals(100001, store.size());
+        }
+        try (PersistentLabelStore store = new PersistentLabelStore(dir, null)) {
+            assertEquals(100001, store.size());
+            assertEquals("label 99999", store.get("http://example.org/99999"));
+            assertEquals("updated", store.get("http://example.org/1"));
+            assertEquals("", store.get("http://example.org/none"));
+            assertNull(store.get("http://example.org/missing"));
+        }
+        //The index is rebuilt from the log if it is lost
+        Files.delete(indexFile(dir));
+        try (PersistentLabelStore store = new PersistentLabelStore(dir, null)) {
+            assertEquals(100001, store.size());
+            assertEquals("updated", store.get("http://example.org/1"));
+        }
+    }
+
+    @Test
+    public void expiresLabels() throws Exception {
+        Path dir = Files.createTempDirectory("labels");
+        try (PersistentLabelStore store = new PersistentLabelStore(dir, TimeValue.timeValueMillis(1))) {
+            store.put("http://example.org/a", "A");
+            Thread.sleep(10);
+            assertNull(store.get("http://example.org/a"));
+        }
+    }
+
+    @Test
+    public void dropsLabelsLookedUpWithOtherSettings() throws Exception {
+        Path dir = Files.createTempDirectory("labels");
+        try (PersistentLabelStore store = new PersistentLabelStore(dir, "language=en", null)) {
+            store.put("http://example.org/a", "A");
+        }
+        try (PersistentLabelStore store = new PersistentLabelStore(dir, "language=en", null)) {
+            assertEquals("A", store.get("http://example.org/a"));
+        }
+        try (PersistentLabelStore store = new PersistentLabelStore(dir, "language=no", null)) {
+            assertNull(store.get("http://example.org/a"));
+            assertEquals(0, store.size());
+        }
+    }
+
+    @Test
+    public void rebuildsIndexWhichPointsOutsideOfTheLog() throws Exception {
+        Path dir = Files.createTempDirectory("labels");
+        try (PersistentLabelStore store = new PersistentLabelStore(dir, null)) {
+            store.put("http://example.org/a", "A");
+        }
+        //Points every used slot far beyond the end of the log
+        try (FileChannel channel = FileChannel.open(indexFile(dir), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer slot = ByteBuffer.allocate(8);
+            for (long position = 16; position < channel.size(); position += 16) {
+                slot.clear();
+                channel.read(slot, position + 8);
+                if (slot.getLong(0) != 0) {
+                    slot.clear();
+                    slot.putLong(0, 1L << 40);
+                    channel.write(slot, position + 8);
+                }
+            }
+        }
+        try (PersistentLabelStore store = new PersistentLabelStore(dir, null)) {
+            assertEquals(1, store.size());
+            assertEquals("A", store.get("http://example.org/a"));
+        }
+    }
+
+    private static Path indexFile(Path dir) throws Exception {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.idx")) {
+            return files.iterator().next();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryFactory;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueryPagerTest {
+    private static final String CONSTRUCT = "PREFIX dct: <http://purl.org/dc/terms/> " +
+            "CONSTRUCT { ?s ?p ?o } WHERE { ?s a dct:Agent ; ?p ?o }";
+
+    @Test
+    public void pagesBySubjectWhenQueryBindsSubject() {
+        QueryPager pager = new QueryPager(QueryFactory.create(CONSTRUCT), QueryPager.Mode.KEYSET, 100);
+        assertTrue(pager.isPagedBySubject());
+
+        Query page = QueryFactory.create(pager.subjectPageAfter("http://example.org/a").toString());
+        assertTrue(page.isSelectType());
+        assertTrue(page.isDistinct());
+        assertEquals(100, page.getLimit());
+        assertTrue(page.toString().contains("str(?s) > \"http://example.org/a\""));
+        assertTrue(page.toString().contains("isIRI(?s)"));
+        assertTrue(page.toString().contains("ORDER BY ASC(str(?s))"));
+
+        Query fetch = QueryFactory.create(pager.forSubjects(Arrays.asList(
+                NodeFactory.createURI("http://example.org/a"),
+                NodeFactory.createURI("http://example.org/b"))).toString());
+        assertTrue(fetch.isConstructType());
+        assertTrue(fetch.toString().contains("VALUES ?s"));
+    }
+
+    @Test
+    public void keepsDatasetOfQueryInPagesOfSubjects() {
+        Query query = QueryFactory.create("CONSTRUCT { ?s ?p ?o } FROM <http://example.org/g> " +
+                "FROM NAMED <http://example.org/n> WHERE { ?s ?p ?o }");
+        QueryPager pager = new QueryPager(query, QueryPager.Mode.OFFSET, 10);
+        Query page = pager.subjectPageAt(20);
+        assertEquals(Arrays.asList("http://example.org/g"), page.getGraphURIs());
+        assertEquals(Arrays.asList("http://example.org/n"), page.getNamedGraphURIs());
+        assertEquals(20, page.getOffset());
+    }
+
+    @Test
+    public void fetchesBlankNodeSubjectsSeparately() {
+        QueryPager pager = new QueryPager(QueryFactory.create(CONSTRUCT), QueryPager.Mode.KEYSET, 100);
+        Query blanks = QueryFactory.create(pager.forBlankSubjects().toString());
+        assertTrue(blanks.isConstructType());
+        assertTrue(blanks.toString().contains("isBlank(?s)"));
+        assertFalse(blanks.hasLimit());
+    }
+
+    @Test
+    public void pagesBySolutionWhenQueryDoesNotBindSubject() {
+        Query query = QueryFactory.create("DESCRIBE ?r WHERE { ?r a <http://example.org/Thing> }");
+        QueryPager pager = new QueryPager(query, QueryPager.Mode.KEYSET, 10);
+        assertTrue(pager.isPageable());
+        assertFalse(pager.isPagedBySubject());
+        assertEquals(20, pager.solutionPageAt(20).getOffset());
+    }
+
+    @Test
+    public void doesNotPageConstructQueriesBySolution() {
+        Query query = QueryFactory.create("CONSTRUCT { ?r ?p ?o } WHERE { ?r a <http://example.org/Thing> ; ?p ?o }");
+        QueryPager pager = new QueryPager(query, QueryPager.Mode.OFFSET, 10);
+        assertFalse(pager.isPageable());
+        assertFalse(pager.isPagedBySubject());
+        assertTrue(new QueryPager(QueryFactory.create(CONSTRUCT), QueryPager.Mode.OFFSET, 10).isPagedBySubject());
+    }
+
+    @Test
+    public void doesNotPageLimitedQueries() {
+        Query query = QueryFactory.create(CONSTRUCT + " LIMIT 5");
+        assertFalse(new QueryPager(query, QueryPager.Mode.KEYSET, 10).isPageable());
+        assertFalse(new QueryPager(QueryFactory.create(CONSTRUCT), QueryPager.Mode.NONE, 10).isPageable());
+    }
+
+    @Test
+    public void detectsQueriesOrderedBySubject() {
+        String select = "SELECT ?s ?p ?o WHERE { ?s ?p ?o }";
+        assertTrue(QueryPager.isOrderedBySubject(QueryFactory.create(select + " ORDER BY ?s ?p")));
+        assertFalse(QueryPager.isOrderedBySubject(QueryFactory.create(select + " ORDER BY ?p ?s")));
+        assertFalse(QueryPager.isOrderedBySubject(QueryFactory.create(select)));
+    }
+}
@@ -0,0 +1,106 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.Resource;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueryTemplatesTest {
+    private static final String TITLE = "http://purl.org/dc/terms/title";
+    private static final String LABEL = "http://www.w3.org/2000/01/rdf-schema#label";
+
+    private Dataset createDataset() {
+        Dataset dataset = DatasetFactory.create();
+        Model model = dataset.getNamedModel("http://example.org/graph");
+        Property title = model.createProperty(TITLE);
+        Property label = model.createProperty(LABEL);
+        Resource a = model.createResource("http://example.org/a");
+        Resource b = model.createResource("http://example.org/b");
+        model.add(a, label, "Label of a");
+        model.add(a, title, model.createLiteral("Title of a", "en"));
+        model.add(b, label, "Label of b");
+        model.add(a, model.createProperty("http://example.org/link"), b);
+        return dataset;
+    }
+
+    @Test
+    public void bindsUriOfLabelQuery() {
+        QueryTemplates templates = new QueryTemplates(Arrays.asList(TITLE, LABEL), "en", true);
+        Dataset dataset = createDataset();
+        Query query = templates.labelQuery("http://example.org/a");
+        try (QueryExecution qexec = QueryExecutionFactory.create(query, dataset)) {
+            assertEquals("Title of a", qexec.execSelect().next().getLiteral("label").getLexicalForm());
+        }
+        //The bound query is the same as a query parsed from text
+        assertEquals(query, QueryFactory.create(query.serialize()));
+    }
+
+    @Test
+    public void bindsUrisOfBatchLabelQuery() {
+        QueryTemplates templates = new QueryTemplates(Arrays.asList(TITLE, LABEL), "en", true);
+        Map<String, String> labels = new HashMap<>();
+        Query query = templates.labelsQuery(Arrays.asList("http://example.org/a", "http://example.org/b"));
+        try (QueryExecution qexec = QueryExecutionFactory.create(query, createDataset())) {
+            ResultSet results = qexec.execSelect();
+            while (results.hasNext()) {
+                QuerySolution sol = results.next();
+                labels.putIfAbsent(sol.getResource("uri").getURI(), sol.getLiteral("label").getLexicalForm());
+            }
+        }
+        assertEquals("Title of a", labels.get("http://example.org/a"));
+        assertEquals("Label of b", labels.get("http://example.org/b"));
+        assertEquals(2, labels.size());
+    }
+
+    @Test
+    public void bindsSubjectsOfSyncQuery() {
+        QueryTemplates templates = new QueryTemplates(Collections.singletonList(LABEL), "en", true);
+        List<String> uris = Collections.singletonList("http://example.org/a");
+        Query query = templates.syncQuery(uris);
+        String text = query.serialize();
+        assertTrue(text.contains("<http://example.org/a>"));
+        assertFalse(text.contains("placeholder"));
+        //Each call binds a copy of the parsed template
+        assertEquals(query, templates.syncQuery(uris));
+        assertFalse(query == templates.syncQuery(uris));
+    }
+
+    @Test
+    public void syncQueryReturnsLabelsOfObjects() {
+        QueryTemplates templates = new QueryTemplates(Collections.singletonList(LABEL), "en", true);
+        Query query = templates.syncQuery(Collections.singletonList("http://example.org/a"));
+        assertTrue(query.serialize().contains("VALUES"));
+        Model model = createDataset().getNamedModel("http://example.org/graph");
+        try (QueryExecution qexec = QueryExecutionFactory.create(query, model)) {
+            Model result = qexec.execConstruct();
+            Property link = result.createProperty("http://example.org/link");
+            assertEquals("Label of b", result.listObjectsOfProperty(link).next().asLiteral().getLexicalForm());
+            assertFalse(result.listSubjects().toSet().contains(result.createResource("http://example.org/b")));
+        }
+    }
+
+    @Test
+    public void buildsDescribeQuery() {
+        Query query = QueryTemplates.describeQuery(Arrays.asList("http://example.org/a", "http://example.org/b"));
+        assertTrue(query.isDescribeType());
+        assertEquals(2, query.getResultURIs().size());
+    }
+}
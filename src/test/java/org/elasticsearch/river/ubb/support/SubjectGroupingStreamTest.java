@@ -0,0 +1,81 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SubjectGroupingStreamTest {
+
+    private static Triple triple(String s, String o) {
+        return Triple.create(NodeFactory.createURI(s),
+                NodeFactory.createURI("http://example.org/p"),
+                NodeFactory.createLiteral(o));
+    }
+
+    @Test
+    public void groupsTriplesBySubject() {
+        List<Model> models = new ArrayList<>();
+        SubjectGroupingStream stream = new SubjectGroupingStream(10, models::add);
+        stream.start();
+        stream.triple(triple("http://example.org/a", "1"));
+        stream.triple(triple("http://example.org/a", "2"));
+        stream.triple(triple("http://example.org/b", "3"));
+        stream.triple(triple("http://example.org/a", "4"));
+        stream.finish();
+
+        //Subject "a" was seen last, so it is emitted last
+        assertEquals(2, models.size());
+        assertEquals(1, models.get(0).size());
+        assertEquals(3, models.get(1).size());
+        assertEquals(4, stream.getNumberOfTriples());
+        assertEquals(2, stream.getNumberOfSubjects());
+    }
+
+    @Test
+    public void emitsLeastRecentlySeenSubjectWhenFull() {
+        List<Model> models = new ArrayList<>();
+        SubjectGroupingStream stream = new SubjectGroupingStream(1, models::add);
+        stream.start();
+        stream.triple(triple("http://example.org/a", "1"));
+        stream.triple(triple("http://example.org/b", "2"));
+        assertEquals(1, models.size());
+        assertEquals("http://example.org/a", models.get(0).listSubjects().nextResource().getURI());
+        stream.finish();
+        assertEquals(2, models.size());
+    }
+
+    @Test
+    public void emitsSubjectSeenAgainBeyondWindowAsFragment() {
+        List<Model> models = new ArrayList<>();
+        List<Model> fragments = new ArrayList<>();
+        SubjectGroupingStream stream = new SubjectGroupingStream(1, models::add, fragments::add);
+        stream.start();
+        stream.triple(triple("http://example.org/a", "1"));
+        stream.triple(triple("http://example.org/b", "2"));
+        stream.triple(triple("http://example.org/c", "3"));
+        stream.triple(triple("http://example.org/a", "4"));
+        stream.finish();
+
+        assertEquals(3, models.size());
+        assertEquals(1, fragments.size());
+        assertEquals("http://example.org/a", fragments.get(0).listSubjects().nextResource().getURI());
+        assertEquals("4", fragments.get(0).listObjects().next().asLiteral().getString());
+        assertEquals(3, stream.getNumberOfSubjects());
+        assertEquals(1, stream.getNumberOfFragments());
+    }
+
+    @Test
+    public void capsCapacityOfEmittedSubjects() {
+        SubjectGroupingStream.EmittedSubjects emitted = new SubjectGroupingStream.EmittedSubjects(100000);
+        for (int i = 0; i < 300000; i++) {
+            emitted.add(NodeFactory.createURI("http://example.org/s" + i));
+        }
+        assertEquals(100000, emitted.getCapacity());
+    }
+}
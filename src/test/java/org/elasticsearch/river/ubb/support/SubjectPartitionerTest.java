@@ -0,0 +1,79 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SubjectPartitionerTest {
+
+    @Test
+    public void batchesCoverEachSubjectOnce() {
+        Model data = ModelFactory.createDefaultModel();
+        for (int i = 0; i < 200; i++) {
+            data.createResource("http://example.org/s" + i)
+                    .addProperty(data.createProperty("http://example.org/p"), "v" + i);
+        }
+        for (int i = 0; i < 5; i++) {
+            data.createResource().addProperty(data.createProperty("http://example.org/p"), "b" + i);
+        }
+        Dataset dataset = DatasetFactory.create(data);
+        Query query = QueryFactory.create("CONSTRUCT { ?s ?p ?o } WHERE { ?s ?p ?o }");
+        SubjectPartitioner partitioner = new SubjectPartitioner(query, 4, 30);
+        assertTrue(partitioner.isPartitionable());
+
+        List<List<Node>> batches = new ArrayList<>();
+        try (QueryExecution qexec = QueryExecutionFactory.create(partitioner.subjects(), dataset)) {
+            ResultSet results = qexec.execSelect();
+            List<Node> batch = new ArrayList<>();
+            while (results.hasNext()) {
+                batch.add(results.nextBinding().get(QueryPager.SUBJECT));
+                if (batch.size() == partitioner.getBatchSize()) {
+                    batches.add(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+            batches.add(batch);
+        }
+        assertEquals(7, batches.size());
+
+        Set<String> subjects = new HashSet<>();
+        long triples = 0;
+        for (List<Node> batch : batches) {
+            Query partition = QueryFactory.create(partitioner.forSubjects(batch).toString());
+            try (QueryExecution qexec = QueryExecutionFactory.create(partition, dataset)) {
+                Model model = qexec.execConstruct();
+                triples += model.size();
+                model.listSubjects().forEachRemaining(s -> subjects.add(s.getURI()));
+            }
+        }
+        assertEquals(200, triples);
+        assertEquals(200, subjects.size());
+        try (QueryExecution qexec = QueryExecutionFactory.create(partitioner.forBlankSubjects(), dataset)) {
+            assertEquals(5, qexec.execConstruct().size());
+        }
+    }
+
+    @Test
+    public void doesNotPartitionQueriesWithoutSubject() {
+        Query query = QueryFactory.create("CONSTRUCT { ?x ?p ?o } WHERE { ?x ?p ?o }");
+        assertFalse(new SubjectPartitioner(query, 4, 100).isPartitionable());
+        assertFalse(new SubjectPartitioner(QueryFactory.create("SELECT ?s WHERE { ?s ?p ?o }"), 1, 100).isPartitionable());
+    }
+}
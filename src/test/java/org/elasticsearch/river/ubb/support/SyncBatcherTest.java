@@ -0,0 +1,99 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SyncBatcherTest {
+
+    @Test
+    public void fetchesBatchesConcurrently() throws Exception {
+        Set<String> fetched = ConcurrentHashMap.newKeySet();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        BulkSizeController controller = new BulkSizeController(10, 3);
+        try (SyncBatcher batcher = new SyncBatcher("test", controller, 3, uris -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(20);
+            fetched.addAll(uris);
+            running.decrementAndGet();
+        })) {
+            for (int i = 0; i < 100; i++) {
+                batcher.add("http://example.org/" + i);
+            }
+            batcher.finish();
+            assertEquals(100, batcher.getNumberOfUris());
+        }
+        assertEquals(100, fetched.size());
+        assertTrue(maxRunning.get() > 1 && maxRunning.get() <= 3);
+    }
+
+    @Test
+    public void fetchesMoreBatchesAtOnceWhileEndpointKeepsUp() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        BulkSizeController controller = new BulkSizeController(true, 1, 1, 1, 1, 3, TimeValue.timeValueSeconds(10));
+        try (SyncBatcher batcher = new SyncBatcher("test", controller, 3, uris -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(5);
+            running.decrementAndGet();
+        })) {
+            assertEquals(1, controller.getConcurrentRequests());
+            for (int i = 0; i < 100; i++) {
+                batcher.add("http://example.org/" + i);
+            }
+            batcher.finish();
+        }
+        assertEquals(3, controller.getConcurrentRequests());
+        assertTrue(maxRunning.get() > 1 && maxRunning.get() <= 3);
+    }
+
+    @Test
+    public void splitsFailedBatches() throws Exception {
+        List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        BulkSizeController controller = new BulkSizeController(true, 8, 1, 8, 1, 1, null);
+        try (SyncBatcher batcher = new SyncBatcher("test", controller, 1, uris -> {
+            if (uris.size() > 2) {
+                throw new IllegalStateException("Too many resources");
+            }
+            batches.add(new ArrayList<>(uris));
+        })) {
+            for (int i = 0; i < 8; i++) {
+                batcher.add("http://example.org/" + i);
+            }
+            batcher.finish();
+            assertEquals(8, batcher.getNumberOfUris());
+        }
+        assertEquals(8, batches.stream().mapToInt(List::size).sum());
+        assertTrue(batches.stream().allMatch(batch -> batch.size() <= 2));
+        assertTrue(controller.getBulkActions() < 8);
+    }
+
+    @Test
+    public void failsWhenSingleResourceFails() throws Exception {
+        BulkSizeController controller = new BulkSizeController(true, 4, 1, 4, 1, 1, null);
+        try (SyncBatcher batcher = new SyncBatcher("test", controller, 1, uris -> {
+            if (uris.contains("http://example.org/bad")) {
+                throw new IllegalStateException("Bad resource");
+            }
+        })) {
+            batcher.add("http://example.org/1");
+            batcher.add("http://example.org/bad");
+            batcher.finish();
+            fail("Expected the sync to fail");
+        } catch (ExecutionException e) {
+            assertEquals("Bad resource", e.getCause().getMessage());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Property;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SyncUriPagerTest {
+
+    @Test
+    public void streamsUrisPageByPage() {
+        Model model = ModelFactory.createDefaultModel();
+        Property modified = model.createProperty("http://example.org/modified");
+        for (String uri : Arrays.asList("http://example.org/b", "http://example.org/a",
+                "http://example.org/e", "http://example.org/d", "http://example.org/c")) {
+            model.createResource(uri).addLiteral(modified, 1L).addLiteral(modified, 2L);
+        }
+        model.createResource().addLiteral(modified, 1L);
+
+        AtomicInteger pages = new AtomicInteger();
+        SyncUriPager pager = new SyncUriPager("SELECT ?resource WHERE { ?resource <http://example.org/modified> ?time }",
+                "resource", 2, query -> {
+            pages.incrementAndGet();
+            //Sorted by the same string form which the filter of the next page compares
+            assertTrue(query.toString().contains("ORDER BY ASC(str(?resource))"));
+            return QueryExecutionFactory.create(query, model);
+        });
+        List<String> result = new ArrayList<>();
+        pager.forEachRemaining(result::add);
+
+        assertEquals(Arrays.asList("http://example.org/a", "http://example.org/b", "http://example.org/c",
+                "http://example.org/d", "http://example.org/e"), result);
+        assertEquals(3, pages.get());
+    }
+
+    @Test
+    public void resumesAfterLastKey() {
+        Model model = ModelFactory.createDefaultModel();
+        Property modified = model.createProperty("http://example.org/modified");
+        for (String uri : Arrays.asList("http://example.org/a", "http://example.org/b", "http://example.org/c")) {
+            model.createResource(uri).addLiteral(modified, 1L);
+        }
+
+        SyncUriPager pager = new SyncUriPager("SELECT ?resource WHERE { ?resource <http://example.org/modified> ?time }",
+                "resource", 2, query -> QueryExecutionFactory.create(query, model));
+        assertEquals("http://example.org/a", pager.next());
+        assertFalse(pager.isPageConsumed());
+        assertEquals("http://example.org/b", pager.next());
+        assertTrue(pager.isPageConsumed());
+        assertEquals("http://example.org/b", pager.getLastKey());
+
+        SyncUriPager resumed = new SyncUriPager("SELECT ?resource WHERE { ?resource <http://example.org/modified> ?time }",
+                "resource", 2, query -> QueryExecutionFactory.create(query, model)).resumeAfter(pager.getLastKey());
+        List<String> result = new ArrayList<>();
+        resumed.forEachRemaining(result::add);
+        assertEquals(Arrays.asList("http://example.org/c"), result);
+    }
+}
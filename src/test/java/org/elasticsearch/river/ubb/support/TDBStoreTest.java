@@ -0,0 +1,26 @@
+package org.elasticsearch.river.ubb.support;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TDBStoreTest {
+
+    @Test
+    public void reusesTransactionOfCallingThread() throws Exception {
+        Path location = Files.createTempDirectory("tdb");
+        try (TDBStore store = new TDBStore(location.toString())) {
+            store.executeRead(() -> {
+                assertTrue(store.getDataset().isInTransaction());
+                //A nested read neither begins nor ends another transaction
+                store.executeRead(() -> assertTrue(store.getDataset().isInTransaction()));
+                assertTrue(store.getDataset().isInTransaction());
+            });
+            assertFalse(store.getDataset().isInTransaction());
+        }
+    }
+}
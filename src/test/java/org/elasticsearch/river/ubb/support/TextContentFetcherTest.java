@@ -0,0 +1,141 @@
+package org.elasticsearch.river.ubb.support;
+
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TextContentFetcherTest {
+    private HttpServer server;
+    private final AtomicInteger downloads = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    @Before
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/text", exchange -> {
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                downloads.incrementAndGet();
+                byte[] body = "Some text".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("ETag", "\"v1\"");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.createContext("/other", exchange -> {
+            byte[] body = "Other text".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+            exchange.close();
+        });
+        server.createContext("/flaky", exchange -> {
+            if (failures.incrementAndGet() <= 2) {
+                exchange.sendResponseHeaders(503, -1);
+            } else {
+                byte[] body = "Finally".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private String url(String path) {
+        return "http://localhost:" + server.getAddress().getPort() + path;
+    }
+
+    @Test
+    public void doesNotDownloadUnchangedContentAgain() throws Exception {
+        Path cache = Files.createTempDirectory("text");
+        try (TextContentFetcher fetcher = new TextContentFetcher("test", 2, 1, 0,
+                TimeValue.timeValueSeconds(5), cache, 10)) {
+            assertEquals("Some text", fetcher.fetch(url("/text")).get());
+        }
+        //A new fetcher, e.g of the next run, reads the same cache
+        try (TextContentFetcher fetcher = new TextContentFetcher("test", 2, 1, 0,
+                TimeValue.timeValueSeconds(5), cache, 10)) {
+            assertEquals("Some text", fetcher.fetch(url("/text")).get());
+        }
+        assertEquals(1, downloads.get());
+    }
+
+    @Test
+    public void retriesServerErrors() throws Exception {
+        try (TextContentFetcher fetcher = new TextContentFetcher("test", 1, 1, 2,
+                TimeValue.timeValueSeconds(5), null, 0)) {
+            assertEquals("Finally", fetcher.fetch(url("/flaky")).get());
+        }
+        assertEquals(3, failures.get());
+    }
+
+    @Test
+    public void givesUrlBackWhenRetriesAreExhausted() throws Exception {
+        try (TextContentFetcher fetcher = new TextContentFetcher("test", 1, 1, 1,
+                TimeValue.timeValueSeconds(5), null, 0)) {
+            assertEquals(url("/flaky"), fetcher.read(url("/flaky")));
+        }
+    }
+
+    @Test
+    public void deletesContentOfLeastRecentlyUsedUrls() throws Exception {
+        Path cache = Files.createTempDirectory("text");
+        try (TextContentFetcher fetcher = new TextContentFetcher("test", 1, 1, 0,
+                TimeValue.timeValueSeconds(5), cache, 1)) {
+            assertEquals("Some text", fetcher.read(url("/text")));
+            assertEquals("Other text", fetcher.read(url("/other")));
+        }
+        try (Stream<Path> files = Files.list(cache)) {
+            assertEquals(2, files.count());
+        }
+        //The content of the first URL was dropped, so it is downloaded again
+        try (TextContentFetcher fetcher = new TextContentFetcher("test", 1, 1, 0,
+                TimeValue.timeValueSeconds(5), cache, 1)) {
+            assertEquals("Some text", fetcher.read(url("/text")));
+        }
+        assertEquals(2, downloads.get());
+    }
+
+    @Test(timeout = 10000)
+    public void doesNotHoldHostWhileWaitingToRetry() throws Exception {
+        try (TextContentFetcher fetcher = new TextContentFetcher("test", 2, 1, 2,
+                TimeValue.timeValueSeconds(5), null, 0)) {
+            CompletableFuture<String> flaky = fetcher.fetch(url("/flaky"));
+            while (failures.get() == 0) {
+                Thread.sleep(1);
+            }
+            //The only connection to the host is free while the first request backs off
+            assertEquals("Some text", fetcher.read(url("/text")));
+            assertFalse(flaky.isDone());
+            assertEquals("Finally", flaky.get());
+        }
+    }
+}